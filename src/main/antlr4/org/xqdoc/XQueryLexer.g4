@@ -13,6 +13,12 @@ tokens {EscapeQuot, EscapeApos, DOUBLE_LBRACE, DOUBLE_RBRACE}
 
     // for counting braces inside string literals
     private int bracesInside = 0;
+
+    @Override
+    public void reset() {
+        super.reset();
+        bracesInside = 0;
+    }
 }
 
 IntegerLiteral: Digits ;
@@ -26,6 +26,9 @@ versionDecl: KW_XQUERY KW_VERSION version=stringLiteral
 
 mainModule: prolog queryBody;
 
+// A main module after the first of a chain, parsed on its own by XQDocEngine
+chainedModule: versionDecl? mainModule ;
+
 queryBody: expr ;
 
 libraryModule: moduleDecl prolog;
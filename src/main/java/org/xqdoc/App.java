@@ -1,18 +1,24 @@
 package org.xqdoc;
 
 import org.antlr.v4.runtime.CharStream;
-import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.CommonTokenStream;
 import org.apache.commons.cli.*;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.ParserConfigurationException;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Enumeration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -31,31 +37,9 @@ public class App
      * @throws java.io.IOException a
      * @throws org.xml.sax.SAXException a
      * @throws org.apache.commons.cli.ParseException a
+     * @throws java.lang.InterruptedException a
      */
-    public static void main( String[] args ) throws ParserConfigurationException, IOException, SAXException, ParseException {
-        HashMap uriMap = new HashMap();
-        uriMap.put("fn", "http://www.w3.org/2003/05/xpath-functions");
-        uriMap.put("cts", "http://marklogic.com/cts"); // MarkLogic Server search functions (Core Text Services)
-        uriMap.put("dav", "DAV:"); // Used with WebDAV
-        uriMap.put("dbg", "http://marklogic.com/xdmp/debug"); // Debug Built-In functions
-        uriMap.put("dir", "http://marklogic.com/xdmp/directory"); // MarkLogic Server directory XML
-        uriMap.put("err", "http://www.w3.org/2005/xqt-errors"); // namespace for XQuery and XPath errors
-        uriMap.put("error", "http://marklogic.com/xdmp/error"); // MarkLogic Server error namespace
-        uriMap.put("local", "http://www.w3.org/2005/xquery-local-functions"); // local namespace for functions defined in main modules
-        uriMap.put("lock", "http://marklogic.com/xdmp/lock"); // MarkLogic Server locks
-        uriMap.put("map", "http://marklogic.com/xdmp/map"); // MarkLogic Server maps
-        uriMap.put("math", "http://marklogic.com/xdmp/math"); // math Built-In functions
-        uriMap.put("prof", "http://marklogic.com/xdmp/profile"); // profile Built-In functions
-        uriMap.put("prop", "http://marklogic.com/xdmp/property"); // MarkLogic Server properties
-        uriMap.put("sec", "http://marklogic.com/xdmp/security"); // security Built-In functions
-        uriMap.put("sem", "http://marklogic.com/semantics"); // semantic Built-In functions
-        uriMap.put("spell", "http://marklogic.com/xdmp/spell"); // spelling correction functions
-        uriMap.put("xdmp", "http://marklogic.com/xdmp"); // MarkLogic Server Built-In functions
-        uriMap.put("xml", "http://www.w3.org/XML/1998/namespace"); // XML namespace
-        uriMap.put("xmlns", "http://www.w3.org/2000/xmlns/"); // xmlns namespace
-        uriMap.put("xqe", "http://marklogic.com/xqe"); // deprecated MarkLogic Server xqe namespace
-        uriMap.put("xqterr", "http://www.w3.org/2005/xqt-errors"); // XQuery test suite errors (same as err)
-        uriMap.put("xs", "http://www.w3.org/2001/XMLSchema"); // XML Schema namespace
+    public static void main( String[] args ) throws ParserConfigurationException, IOException, SAXException, ParseException, InterruptedException {
 
         if (true) {
 
@@ -72,35 +56,193 @@ public class App
 
         options.addOption(propertyOption);
         options.addOption("f", true, "file name");
+        options.addOption(null, "dialect", true, "predefined function namespaces: marklogic (default), existdb, w3c or a properties file of prefix=uri");
+        options.addOption("d", "directory", true, "directory of XQuery sources to process in batch mode");
+        options.addOption("g", "glob", true, "glob selecting the sources below the directory (default " + BatchProcessor.DEFAULT_GLOB + ")");
+        options.addOption("l", "list", true, "file listing the XQuery sources to process in batch mode");
+        options.addOption("o", "output", true, "output directory for batch mode");
+        options.addOption("t", "threads", true, "number of worker threads for batch mode");
+        options.addOption("c", "cache", true, "cache directory used to skip unchanged modules in batch mode");
+        options.addOption("w", "watch", false, "keep watching the directory and regenerate the modules that change");
+        options.addOption(Option.builder()
+                .longOpt("debounce")
+                .hasArg()
+                .argName("ms")
+                .desc("time the directory must be quiet before regenerating in watch mode (default " + WatchProcessor.DEFAULT_DEBOUNCE + ")")
+                .build());
+        options.addOption("s", "server", true, "serve xqDoc generation over HTTP on the given loopback port");
+        options.addOption("p", "pipe", false, "read JSON envelopes of XQuery sources from stdin and write the xqDoc envelopes to stdout");
+        options.addOption(null, "signatures", false, "only parse the prolog declarations and skip the function bodies, variable values and query body");
+        options.addOption("q", "quick", false, "build a quick index of the declarations and comments from the lexer tokens without parsing");
+        options.addOption(null, "json", false, "write the documentation of the -f file as JSON instead of xqDoc XML");
+        options.addOption(null, "validate", false, "validate the xqDoc of the -f file or of every module in batch mode against the xqDoc schema, except with --stream");
+        options.addOption(null, "stream", false, "generate the xqDoc of the -f file in constant memory while it is being read, without the module body");
+        options.addOption(Option.builder()
+                .longOpt("profile")
+                .hasArg()
+                .optionalArg(true)
+                .argName("json file")
+                .desc("profile the parser decisions over the sources of -f, -d, -g or -l and print a report, optionally saving every decision as JSON")
+                .build());
 
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse( options, args);
 
+        XQueryDialect dialect = XQueryDialect.MARKLOGIC;
+        if (cmd.hasOption("dialect")) {
+            String name = cmd.getOptionValue("dialect");
+            dialect = XQueryDialect.forName(name);
+            if (dialect == null) {
+                Path file = Paths.get(name);
+                if (!Files.isRegularFile(file)) {
+                    throw new ParseException("unknown dialect " + name + ", expected marklogic, existdb, w3c or a properties file");
+                }
+                dialect = XQueryDialect.load(file.getFileName().toString(), file);
+            }
+        }
         if(cmd.hasOption("D")) {
             Properties properties = cmd.getOptionProperties("D");
-            Enumeration<String> prefixes = (Enumeration<String>) properties.propertyNames();
-            while (prefixes.hasMoreElements()) {
-                String prefix = prefixes.nextElement();
-                uriMap.put(prefix, properties.getProperty(prefix));
+            Map<String, String> prefixes = new HashMap<>();
+            for (String prefix : properties.stringPropertyNames()) {
+                prefixes.put(prefix, properties.getProperty(prefix));
             }
+            dialect = dialect.with(prefixes);
         }
 
-        if (cmd.hasOption("f")) {
-            InputStream is = Files.newInputStream(Paths.get(cmd.getOptionValue("f")));
-            CharStream inputStream = CharStreams.fromStream(is);
-            org.xqdoc.XQueryLexer markupLexer = new org.xqdoc.XQueryLexer(inputStream);
-            CommonTokenStream commonTokenStream = new CommonTokenStream(markupLexer);
-            org.xqdoc.XQueryParser markupParser = new org.xqdoc.XQueryParser(commonTokenStream);
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (cmd.hasOption("t")) {
+            threads = getIntegerOption(cmd, "t");
+        }
 
-            org.xqdoc.XQueryParser.ModuleContext fileContext = markupParser.module();
-            StringBuilder buffer = new StringBuilder();
+        // The server is long-lived, so keep the DFA cache of the parser bounded
+        final XQDocEngine engine = new XQDocEngine(dialect.getNamespaces(), cmd.hasOption("s") ? new DFACache() : null);
+        engine.setSignaturesOnly(cmd.hasOption("signatures"));
+        engine.setQuickIndex(cmd.hasOption("q"));
+        engine.setCommentCache(new XQDocCommentCache());
 
+        if (cmd.hasOption("s")) {
+            final XQDocServer server = new XQDocServer(engine, getIntegerOption(cmd, "s"), threads);
+            server.start();
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    server.stop();
+                    System.err.println(engine.getDFACache());
+                    System.err.println(engine.getCommentCache());
+                }
+            });
+            System.err.println("xqDoc server listening on http://127.0.0.1:" + server.getPort() + XQDocServer.CONTEXT_PATH);
+        }
+        else if (cmd.hasOption("p")) {
+            new PipeProcessor(engine, threads).run(System.in, System.out);
+        }
+        else if (cmd.hasOption("profile")) {
+            List<Path> sources = getSources(cmd);
+            if (cmd.hasOption("f")) {
+                sources.add(0, Paths.get(cmd.getOptionValue("f")));
+            }
+            XQueryProfiler profiler = new XQueryProfiler();
+            for (Path source : sources) {
+                profiler.profile(ByteBufferCharStream.fromPath(source, StandardCharsets.UTF_8));
+            }
+            profiler.writeReport(System.out, 20);
+            if (cmd.getOptionValue("profile") != null) {
+                Files.write(Paths.get(cmd.getOptionValue("profile")), profiler.toJson().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        else if (cmd.hasOption("d") || cmd.hasOption("g") || cmd.hasOption("l")) {
+            if (!cmd.hasOption("o")) {
+                throw new ParseException("batch mode requires an output directory (-o)");
+            }
+            List<Path> sources = getSources(cmd);
+            Path baseDirectory = null;
+            if (cmd.hasOption("d") || cmd.hasOption("g")) {
+                baseDirectory = Paths.get(cmd.getOptionValue("d", "."));
+            }
+            BatchProcessor batchProcessor = new BatchProcessor(engine, Paths.get(cmd.getOptionValue("o")), threads);
+            if (cmd.hasOption("c")) {
+                batchProcessor.setCache(new XQDocCache(Paths.get(cmd.getOptionValue("c"))));
+            }
+            if (cmd.hasOption("validate")) {
+                batchProcessor.setValidator(new XQDocValidator());
+            }
+            if (cmd.hasOption("w")) {
+                if (baseDirectory == null) {
+                    throw new ParseException("watch mode requires a directory (-d)");
+                }
+                long debounce = cmd.hasOption("debounce") ? getIntegerOption(cmd, "debounce") : WatchProcessor.DEFAULT_DEBOUNCE;
+                new WatchProcessor(batchProcessor, baseDirectory, cmd.getOptionValue("g", BatchProcessor.DEFAULT_GLOB), debounce).run();
+                return;
+            }
+            int failed = batchProcessor.process(sources, baseDirectory);
+            if (failed > 0) {
+                System.exit(1);
+            }
+        }
+        else if (cmd.hasOption("f") && cmd.hasOption("stream")) {
+            if (cmd.hasOption("validate")) {
+                throw new ParseException("stream mode cannot validate the xqDoc (--validate)");
+            }
+            Writer output = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            try (Reader input = Files.newBufferedReader(Paths.get(cmd.getOptionValue("f")), StandardCharsets.UTF_8)) {
+                engine.stream(input, cmd.getOptionValue("f"), output, null);
+            }
+        }
+        else if (cmd.hasOption("f")) {
+            CharStream inputStream = ByteBufferCharStream.fromPath(Paths.get(cmd.getOptionValue("f")), StandardCharsets.UTF_8);
+            Writer output = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            List<String> problems = Collections.emptyList();
+            if (cmd.hasOption("json")) {
+                new XQDocJsonSerializer().serialize(engine.buildModel(inputStream, null), output);
+            } else if (cmd.hasOption("validate")) {
+                String xml = engine.process(inputStream);
+                output.write(xml);
+                problems = new XQDocValidator().validate(xml);
+            } else {
+                engine.process(inputStream, output);
+            }
+            output.write(System.lineSeparator());
+            output.flush();
+            for (String problem : problems) {
+                System.err.println(cmd.getOptionValue("f") + ": xqDoc " + problem);
+            }
+            if (!problems.isEmpty()) {
+                System.exit(1);
+            }
+        }
+        }
+
+    }
 
-            XQueryVisitor visitor = new XQueryVisitor(buffer, uriMap);
-            visitor.visit(fileContext);
-            System.out.println(DocumentUtility.getStringFromDoc(DocumentUtility.getDocumentFromBuffer(buffer)));
+    /**
+     *
+     * @param cmd The parsed command line
+     * @return The sources listed by -l followed by the sources selected by -d and -g
+     * @throws java.io.IOException a
+     */
+    private static List<Path> getSources(CommandLine cmd) throws IOException {
+        List<Path> sources = new ArrayList<>();
+        if (cmd.hasOption("l")) {
+            sources.addAll(BatchProcessor.readSourceList(Paths.get(cmd.getOptionValue("l"))));
         }
+        if (cmd.hasOption("d") || cmd.hasOption("g")) {
+            sources.addAll(BatchProcessor.findSources(Paths.get(cmd.getOptionValue("d", ".")), cmd.getOptionValue("g", BatchProcessor.DEFAULT_GLOB)));
         }
+        return sources;
+    }
 
+    /**
+     *
+     * @param cmd The parsed command line
+     * @param option The option holding an integer value
+     * @return The integer value of the option
+     * @throws org.apache.commons.cli.ParseException if the value is not an integer
+     */
+    private static int getIntegerOption(CommandLine cmd, String option) throws ParseException {
+        try {
+            return Integer.parseInt(cmd.getOptionValue(option));
+        } catch (NumberFormatException ex) {
+            throw new ParseException("invalid value for " + option + ": " + cmd.getOptionValue(option));
+        }
     }
 }
@@ -0,0 +1,290 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStream;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>BatchProcessor class.</p>
+ *
+ * Generates the xqDoc XML for many XQuery modules on a pool of worker threads
+ * and writes one xqDoc file per module into an output directory.  A module
+ * that cannot be read, has syntax errors or fails to generate is reported on
+ * the error stream and does not stop the rest of the run.  With a
+ * {@link XQDocCache} set, modules whose source has not changed are not parsed
+ * again and their previous xqDoc is reused.  With a {@link XQDocValidator}
+ * set, the xqDoc of every generated module is validated against the xqDoc
+ * schema, and each problem is reported with the path and line of the xqDoc
+ * file.  An invalid xqDoc is still written, but counts as a failed module.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public class BatchProcessor {
+
+    /** The glob used to select XQuery sources when none is given. */
+    public static final String DEFAULT_GLOB = "**.{xq,xqm,xqy,xql,xquery}";
+
+    private final XQDocEngine engine;
+    private final Path outputDirectory;
+    private final int threads;
+    private PrintStream errorStream = System.err;
+    private XQDocCache cache = null;
+    private XQDocValidator validator = null;
+    private final AtomicInteger unchanged = new AtomicInteger();
+    private final AtomicInteger invalid = new AtomicInteger();
+
+    /**
+     * <p>Constructor for BatchProcessor.</p>
+     *
+     * @param engine The engine that generates the xqDoc XML
+     * @param outputDirectory The directory that receives the xqDoc files
+     * @param threads The number of worker threads
+     */
+    public BatchProcessor(XQDocEngine engine, Path outputDirectory, int threads) {
+        this.engine = engine;
+        this.outputDirectory = outputDirectory;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * <p>getOutputDirectory.</p>
+     *
+     * @return The directory that receives the xqDoc files
+     */
+    public Path getOutputDirectory() {
+        return outputDirectory;
+    }
+
+    /**
+     * Set the stream that receives the per-module error reports.
+     *
+     * @param errorStream The stream for error reports
+     */
+    public void setErrorStream(PrintStream errorStream) {
+        this.errorStream = errorStream;
+    }
+
+    /**
+     * Set the cache used to skip modules that have not changed since a previous run.
+     *
+     * @param cache The xqDoc cache, or null to regenerate every module
+     */
+    public void setCache(XQDocCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Set the validator of the generated xqDoc.  Modules taken from the
+     * cache are not validated again.
+     *
+     * @param validator The xqDoc validator, or null to not validate
+     */
+    public void setValidator(XQDocValidator validator) {
+        this.validator = validator;
+    }
+
+    /**
+     * Find the XQuery sources below a directory.
+     *
+     * @param directory The directory to search
+     * @param glob The glob pattern, relative to the directory, that selects the sources
+     * @return The matching files in sorted order
+     * @throws java.io.IOException a
+     */
+    public static List<Path> findSources(final Path directory, String glob) throws IOException {
+        final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        final List<Path> sources = new ArrayList<>();
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && matcher.matches(directory.relativize(file))) {
+                    sources.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(sources);
+        return sources;
+    }
+
+    /**
+     * Read a file that lists one XQuery source path per line.  Blank lines and
+     * lines starting with '#' are ignored.
+     *
+     * @param listFile The file containing the list of sources
+     * @return The listed sources
+     * @throws java.io.IOException a
+     */
+    public static List<Path> readSourceList(Path listFile) throws IOException {
+        List<Path> sources = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(listFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    sources.add(listFile.resolveSibling(line));
+                }
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * Compute the xqDoc file for a source.  The path of the source relative to
+     * the base directory is kept and the extension is replaced with '.xml'.
+     *
+     * @param source The XQuery source
+     * @param baseDirectory The directory the sources were found in, or null
+     * @return The path of the xqDoc file
+     */
+    public Path getOutputPath(Path source, Path baseDirectory) {
+        Path relative;
+        if (baseDirectory != null && source.toAbsolutePath().normalize().startsWith(baseDirectory.toAbsolutePath().normalize())) {
+            relative = baseDirectory.toAbsolutePath().normalize().relativize(source.toAbsolutePath().normalize());
+        } else {
+            relative = source.getFileName();
+        }
+        String name = relative.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        return outputDirectory.resolve(relative).resolveSibling(name + ".xml");
+    }
+
+    /**
+     * Generate the xqDoc XML for each of the sources.
+     *
+     * @param sources The XQuery sources
+     * @param baseDirectory The directory the sources were found in, or null
+     * @return The number of modules that failed
+     * @throws java.lang.InterruptedException a
+     */
+    public int process(List<Path> sources, Path baseDirectory) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        int failed = 0;
+        unchanged.set(0);
+        invalid.set(0);
+        long fullLL = engine.getLlParseCount();
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (Path source : sources) {
+                results.add(executor.submit(new ModuleTask(source, getOutputPath(source, baseDirectory))));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    if (!results.get(i).get()) {
+                        failed++;
+                    }
+                } catch (ExecutionException ex) {
+                    failed++;
+                    report(sources.get(i) + ": " + ex.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        fullLL = engine.getLlParseCount() - fullLL;
+        String validated = validator != null ? " (" + invalid.get() + " invalid)" : "";
+        if (cache != null) {
+            report("Processed " + sources.size() + " modules, " + unchanged.get() + " unchanged, " + failed + " failed" + validated + ", " + fullLL + " needed full LL parsing");
+        } else {
+            report("Processed " + sources.size() + " modules, " + failed + " failed" + validated + ", " + fullLL + " needed full LL parsing");
+        }
+        return failed;
+    }
+
+    private void report(String message) {
+        synchronized (errorStream) {
+            errorStream.println(message);
+        }
+    }
+
+    /**
+     * Generates the xqDoc file of a single module.
+     */
+    private class ModuleTask implements Callable<Boolean> {
+        private final Path source;
+        private final Path target;
+
+        ModuleTask(Path source, Path target) {
+            this.source = source;
+            this.target = target;
+        }
+
+        @Override
+        public Boolean call() {
+            try {
+                // Read rather than map the source, since it may be edited while it is processed
+                ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(source));
+                if (target.getParent() != null) {
+                    Files.createDirectories(target.getParent());
+                }
+                String key = null;
+                if (cache != null) {
+                    key = XQDocCache.key(bytes, engine.getUriMap(), engine.getMode());
+                    Path cached = cache.lookup(key);
+                    if (cached != null) {
+                        Files.copy(cached, target, StandardCopyOption.REPLACE_EXISTING);
+                        unchanged.incrementAndGet();
+                        return true;
+                    }
+                }
+                CharStream inputStream = ByteBufferCharStream.fromByteBuffer(bytes, StandardCharsets.UTF_8, source.toString());
+                SyntaxErrorCollector errors = new SyntaxErrorCollector();
+                StringBuilder buffer = engine.generate(inputStream, errors);
+                if (errors.hasErrors()) {
+                    for (String message : errors.getMessages()) {
+                        report(source + ":" + message);
+                    }
+                    report(source + ": " + errors.getCount() + " syntax error(s), no xqDoc written");
+                    return false;
+                }
+                String xml = PrettyPrintWriter.format(buffer);
+                try (Writer writer = Files.newBufferedWriter(target, StandardCharsets.UTF_8)) {
+                    writer.write(xml);
+                }
+                if (validator != null) {
+                    List<String> problems = validator.validate(xml);
+                    if (!problems.isEmpty()) {
+                        for (String problem : problems) {
+                            report(target + ":" + problem);
+                        }
+                        invalid.incrementAndGet();
+                        return false;
+                    }
+                }
+                if (cache != null) {
+                    cache.store(key, xml);
+                }
+                return true;
+            } catch (Exception ex) {
+                report(source + ": " + ex);
+                return false;
+            }
+        }
+    }
+}
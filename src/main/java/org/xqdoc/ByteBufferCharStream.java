@@ -0,0 +1,252 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CodePointBuffer;
+import org.antlr.v4.runtime.CodePointCharStream;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.misc.Interval;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * <p>ByteBufferCharStream class.</p>
+ *
+ * A {@link org.antlr.v4.runtime.CharStream} that reads its characters straight
+ * out of a {@link java.nio.ByteBuffer}, typically a memory-mapped file.  When
+ * every byte of the source is a single character in its charset (any ASCII
+ * source in UTF-8, or any ISO-8859-1 source) the lexer works directly on the
+ * buffer and only the text of the tokens is ever copied.  Other sources are
+ * decoded once, straight from the buffer, into an ANTLR code point buffer.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public class ByteBufferCharStream implements CharStream {
+
+    private static final int DECODE_BUFFER_SIZE = 8192;
+
+    private final ByteBuffer bytes;
+    private final int size;
+    private final String name;
+    private int position = 0;
+
+    private ByteBufferCharStream(ByteBuffer bytes, String name) {
+        this.bytes = bytes;
+        this.size = bytes.remaining();
+        this.name = name;
+    }
+
+    /**
+     * Map a file into memory.
+     *
+     * @param path The file to map
+     * @return The read-only mapping of the whole file
+     * @throws java.io.IOException a
+     */
+    public static ByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Create a character stream for a file by memory-mapping it.
+     *
+     * @param path The XQuery source file
+     * @param charset The charset of the file
+     * @return The character stream of the file
+     * @throws java.io.IOException a
+     */
+    public static CharStream fromPath(Path path, Charset charset) throws IOException {
+        return fromByteBuffer(map(path), charset, path.toString());
+    }
+
+    /**
+     * Create a character stream over the remaining bytes of a buffer.  The
+     * buffer itself is not modified, but its content must not change while
+     * the stream is in use.
+     *
+     * @param buffer The encoded XQuery source
+     * @param charset The charset of the source
+     * @param name The source name reported by the stream
+     * @return The character stream of the source
+     * @throws java.nio.charset.CharacterCodingException a
+     */
+    public static CharStream fromByteBuffer(ByteBuffer buffer, Charset charset, String name) throws CharacterCodingException {
+        ByteBuffer bytes = buffer.slice();
+        if (isSingleByte(bytes, charset)) {
+            return new ByteBufferCharStream(bytes, name);
+        }
+        return CodePointCharStream.fromBuffer(decode(bytes, charset), name);
+    }
+
+    /**
+     * Create a character stream by reading an input stream to its end.  The
+     * bytes are read into a single buffer that the stream then works on, so
+     * the source is not first decoded into a String.  The input stream is
+     * not closed.
+     *
+     * @param in The encoded XQuery source
+     * @param charset The charset of the source
+     * @param name The source name reported by the stream
+     * @return The character stream of the source
+     * @throws java.io.IOException a
+     */
+    public static CharStream fromStream(InputStream in, Charset charset, String name) throws IOException {
+        byte[] bytes = new byte[DECODE_BUFFER_SIZE];
+        int length = 0;
+        int read;
+        while ((read = in.read(bytes, length, bytes.length - length)) != -1) {
+            length += read;
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+        }
+        return fromByteBuffer(ByteBuffer.wrap(bytes, 0, length), charset, name);
+    }
+
+    /**
+     *
+     * @param bytes The encoded source
+     * @param charset The charset of the source
+     * @return true if every byte of the source is one character with the same value
+     */
+    private static boolean isSingleByte(ByteBuffer bytes, Charset charset) {
+        if (StandardCharsets.ISO_8859_1.equals(charset)) {
+            return true;
+        }
+        if (!StandardCharsets.UTF_8.equals(charset) && !StandardCharsets.US_ASCII.equals(charset)) {
+            return false;
+        }
+        for (int i = 0; i < bytes.limit(); i++) {
+            if (bytes.get(i) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @param bytes The encoded source
+     * @param charset The charset of the source
+     * @return The code points of the source
+     * @throws java.nio.charset.CharacterCodingException a
+     */
+    private static CodePointBuffer decode(ByteBuffer bytes, Charset charset) throws CharacterCodingException {
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CodePointBuffer.Builder builder = CodePointBuffer.builder(bytes.remaining());
+        CharBuffer chars = CharBuffer.allocate(DECODE_BUFFER_SIZE);
+        ByteBuffer in = bytes.duplicate();
+        CoderResult result;
+        do {
+            result = decoder.decode(in, chars, true);
+            if (result.isError()) {
+                result.throwException();
+            }
+            chars.flip();
+            builder.append(chars);
+            chars.compact();
+        } while (!result.isUnderflow());
+        do {
+            result = decoder.flush(chars);
+            chars.flip();
+            builder.append(chars);
+            chars.compact();
+        } while (!result.isUnderflow());
+        return builder.build();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void consume() {
+        if (position >= size) {
+            throw new IllegalStateException("cannot consume EOF");
+        }
+        position++;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int LA(int i) {
+        if (i > 0) {
+            int index = position + i - 1;
+            return index < size ? bytes.get(index) & 0xFF : IntStream.EOF;
+        } else if (i < 0) {
+            int index = position + i;
+            return index >= 0 ? bytes.get(index) & 0xFF : IntStream.EOF;
+        }
+        return 0;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int mark() {
+        return -1;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void release(int marker) {
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int index() {
+        return position;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void seek(int index) {
+        position = index;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getSourceName() {
+        return (name == null || name.isEmpty()) ? IntStream.UNKNOWN_SOURCE_NAME : name;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getText(Interval interval) {
+        int start = Math.min(interval.a, size);
+        int length = Math.min(interval.b - interval.a + 1, size - start);
+        if (length <= 0) {
+            return "";
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) (bytes.get(start + i) & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return getText(Interval.of(0, size - 1));
+    }
+}
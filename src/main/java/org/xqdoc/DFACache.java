@@ -0,0 +1,208 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.atn.ATN;
+import org.antlr.v4.runtime.atn.ParserATNSimulator;
+import org.antlr.v4.runtime.atn.PredictionContextCache;
+import org.antlr.v4.runtime.dfa.DFA;
+import org.antlr.v4.runtime.dfa.DFAState;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>DFACache class.</p>
+ *
+ * A bounded replacement for the DFA and prediction context cache that the
+ * generated {@link XQueryParser} shares through static fields.  Those static
+ * caches only ever grow, which slowly fills the heap of a long-lived process
+ * that parses arbitrary modules.  A parser that is installed on this cache
+ * uses the current generation of the cache instead; once the generation holds
+ * more DFA states or prediction contexts than allowed, or after a set number
+ * of parses, it is replaced by an empty one.  Parses that are still running
+ * keep the generation they started with, so clearing never needs a lock.
+ *
+ * The ceilings should be well above what the modules of the usual workload
+ * need, so the cache stays warm and is only cleared by unusual input.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public class DFACache {
+
+    /** The default maximum number of DFA states over all decisions. */
+    public static final int DEFAULT_MAX_STATES = 250000;
+
+    /** The default maximum number of cached prediction contexts. */
+    public static final int DEFAULT_MAX_CONTEXTS = 250000;
+
+    private final int maxStates;
+    private final int maxContexts;
+    private final long clearInterval;
+    private final AtomicReference<Generation> current = new AtomicReference<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicLong clears = new AtomicLong();
+
+    /**
+     * <p>Constructor for DFACache with the default ceilings and no periodic clearing.</p>
+     */
+    public DFACache() {
+        this(DEFAULT_MAX_STATES, DEFAULT_MAX_CONTEXTS, 0);
+    }
+
+    /**
+     * <p>Constructor for DFACache.</p>
+     *
+     * @param maxStates The number of DFA states over all decisions above which the cache is cleared
+     * @param maxContexts The number of prediction contexts above which the cache is cleared
+     * @param clearInterval The number of parses after which the cache is cleared, or 0 to never
+     *                      clear the cache periodically
+     */
+    public DFACache(int maxStates, int maxContexts, long clearInterval) {
+        this.maxStates = maxStates;
+        this.maxContexts = maxContexts;
+        this.clearInterval = clearInterval;
+        this.current.set(new Generation(XQueryParser._ATN));
+    }
+
+    /**
+     * Make a parser predict with the current generation of the cache.
+     *
+     * @param parser A parser that has not started parsing yet
+     */
+    public void install(XQueryParser parser) {
+        parser.setInterpreter(new CountingSimulator(parser, current.get()));
+    }
+
+    /**
+     * Record that a parse with an installed parser has finished and clear the
+     * cache when it has grown past its ceilings or the clear interval is reached.
+     */
+    public void parsed() {
+        Generation generation = current.get();
+        long parses = generation.parses.incrementAndGet();
+        boolean expired = clearInterval > 0 && parses >= clearInterval;
+        if (expired || generation.getStateCount() > maxStates || generation.contextCache.size() > maxContexts) {
+            if (current.compareAndSet(generation, new Generation(XQueryParser._ATN))) {
+                clears.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drop every cached DFA state and prediction context.
+     */
+    public void clear() {
+        current.set(new Generation(XQueryParser._ATN));
+        clears.incrementAndGet();
+    }
+
+    /**
+     * <p>getStateCount.</p>
+     *
+     * @return The number of DFA states in the current generation
+     */
+    public int getStateCount() {
+        return current.get().getStateCount();
+    }
+
+    /**
+     * <p>getContextCount.</p>
+     *
+     * @return The number of prediction contexts in the current generation
+     */
+    public int getContextCount() {
+        return current.get().contextCache.size();
+    }
+
+    /**
+     * <p>getHitCount.</p>
+     *
+     * @return The number of DFA transitions that were found in the cache
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * <p>getMissCount.</p>
+     *
+     * @return The number of DFA transitions that had to be computed from the ATN
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * <p>getHitRate.</p>
+     *
+     * @return The fraction of DFA transitions found in the cache, or 0 before the first parse
+     */
+    public double getHitRate() {
+        long found = hits.sum();
+        long total = found + misses.sum();
+        return total == 0 ? 0.0 : (double) found / total;
+    }
+
+    /**
+     * <p>getClearCount.</p>
+     *
+     * @return The number of times the cache has been cleared
+     */
+    public long getClearCount() {
+        return clears.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "DFA cache: " + getStateCount() + " states, " + getContextCount() + " contexts, "
+                + String.format("%.1f", getHitRate() * 100) + "% hit rate, " + getClearCount() + " clears";
+    }
+
+    /**
+     * One generation of DFA states and prediction contexts.
+     */
+    private static class Generation {
+        private final DFA[] decisionToDFA;
+        private final PredictionContextCache contextCache = new PredictionContextCache();
+        private final AtomicLong parses = new AtomicLong();
+
+        Generation(ATN atn) {
+            decisionToDFA = new DFA[atn.getNumberOfDecisions()];
+            for (int i = 0; i < decisionToDFA.length; i++) {
+                decisionToDFA[i] = new DFA(atn.getDecisionState(i), i);
+            }
+        }
+
+        int getStateCount() {
+            int count = 0;
+            for (DFA dfa : decisionToDFA) {
+                count += dfa.states.size();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * A parser simulator that counts the DFA transitions found in the cache.
+     */
+    private class CountingSimulator extends ParserATNSimulator {
+
+        CountingSimulator(XQueryParser parser, Generation generation) {
+            super(parser, parser.getATN(), generation.decisionToDFA, generation.contextCache);
+        }
+
+        @Override
+        protected DFAState getExistingTargetState(DFAState previousD, int t) {
+            DFAState state = super.getExistingTargetState(previousD, t);
+            if (state != null) {
+                hits.increment();
+            } else {
+                misses.increment();
+            }
+            return state;
+        }
+    }
+}
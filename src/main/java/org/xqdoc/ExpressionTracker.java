@@ -0,0 +1,137 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.Token;
+
+import java.util.ArrayDeque;
+
+/**
+ * <p>ExpressionTracker class.</p>
+ *
+ * Follows the tokens of an expression to find the token that ends it, such
+ * as the semicolon after a query body or the closing brace of a function
+ * body.  The end token only counts when it is not nested in braces or in the
+ * content of a direct element constructor, and tokens inside string literals
+ * and attribute values are ignored.  Whether a <code>&lt;</code> starts an
+ * element constructor rather than a comparison is decided from the token in
+ * front of it.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+class ExpressionTracker {
+
+    private static final int NO_TAG = 0;
+    private static final int START_TAG = 1;
+    private static final int END_TAG = 2;
+    private static final int EMPTY_TAG = 3;
+
+    private final int end;
+    // TRUE for the content of an element constructor, FALSE for an enclosed expression
+    private final ArrayDeque<Boolean> nesting = new ArrayDeque<>();
+    private int tag = NO_TAG;
+    private boolean tagStart = false;
+    private Token last = null;
+
+    /**
+     * <p>Constructor for ExpressionTracker.</p>
+     *
+     * @param end The type of the token that ends the expression
+     */
+    ExpressionTracker(int end) {
+        this.end = end;
+    }
+
+    /**
+     * Follow the next token of the default channel.
+     *
+     * @param token The token
+     * @param topLevel Whether the lexer was outside of any string literal when it lexed the token
+     * @return true if the token ends the expression
+     */
+    boolean isEnd(Token token, boolean topLevel) {
+        int type = token.getType();
+        if (!topLevel) {
+            // Inside a string literal or attribute value
+        } else if (tag != NO_TAG) {
+            if (tagStart && type == XQueryLexer.SLASH) {
+                tag = END_TAG;
+            } else if (type == XQueryLexer.SLASH) {
+                tag = EMPTY_TAG;
+            } else if (type == XQueryLexer.RANGLE) {
+                if (tag == START_TAG) {
+                    nesting.push(Boolean.TRUE);
+                } else if (tag == END_TAG && !nesting.isEmpty()) {
+                    nesting.pop();
+                }
+                tag = NO_TAG;
+            }
+            tagStart = false;
+        } else if (nesting.isEmpty() && type == end) {
+            return true;
+        } else if (type == XQueryLexer.LBRACE) {
+            nesting.push(Boolean.FALSE);
+        } else if (type == XQueryLexer.RBRACE) {
+            if (!nesting.isEmpty()) {
+                nesting.pop();
+            }
+        } else if (type == XQueryLexer.LANGLE
+                && ((!nesting.isEmpty() && nesting.peek()) || isOperandPosition(last))) {
+            tag = START_TAG;
+            tagStart = true;
+        }
+        last = token;
+        return false;
+    }
+
+    /**
+     * Decide whether a <code>&lt;</code> after a token starts a direct element
+     * constructor rather than being a less than comparison.
+     *
+     * @param previous The token before the <code>&lt;</code>, or null at the start of the expression
+     * @return true if an operand is expected after the token
+     */
+    private static boolean isOperandPosition(Token previous) {
+        if (previous == null) {
+            return true;
+        }
+        switch (previous.getType()) {
+            case XQueryLexer.LPAREN:
+            case XQueryLexer.LBRACKET:
+            case XQueryLexer.LBRACE:
+            case XQueryLexer.COMMA:
+            case XQueryLexer.COLON_EQ:
+            case XQueryLexer.EQUAL:
+            case XQueryLexer.NOT_EQUAL:
+            case XQueryLexer.LANGLE:
+            case XQueryLexer.RANGLE:
+            case XQueryLexer.PLUS:
+            case XQueryLexer.MINUS:
+            case XQueryLexer.VBAR:
+            case XQueryLexer.BANG:
+            case XQueryLexer.CONCATENATION:
+            case XQueryLexer.KW_RETURN:
+            case XQueryLexer.KW_THEN:
+            case XQueryLexer.KW_ELSE:
+            case XQueryLexer.KW_IN:
+            case XQueryLexer.KW_SATISFIES:
+            case XQueryLexer.KW_AND:
+            case XQueryLexer.KW_OR:
+            case XQueryLexer.KW_TO:
+            case XQueryLexer.KW_UNION:
+            case XQueryLexer.KW_INTERSECT:
+            case XQueryLexer.KW_EXCEPT:
+            case XQueryLexer.KW_EQ:
+            case XQueryLexer.KW_NE:
+            case XQueryLexer.KW_LT:
+            case XQueryLexer.KW_LE:
+            case XQueryLexer.KW_GT:
+            case XQueryLexer.KW_GE:
+            case XQueryLexer.KW_IS:
+            case XQueryLexer.KW_CASE:
+            case XQueryLexer.KW_DEFAULT:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
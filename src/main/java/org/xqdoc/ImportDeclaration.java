@@ -5,7 +5,9 @@ package org.xqdoc;
  *
  * @author lcahlander
  * @version $Id: $Id
+ * @deprecated The imports are {@link XQDocModel.Import} records, written by the {@link XQDocXMLSerializer}
  */
+@Deprecated
 public class ImportDeclaration {
 
     private String prefix = null;
@@ -0,0 +1,305 @@
+package org.xqdoc;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>JsonUtility class.</p>
+ *
+ * Minimal JSON reading and writing for the line oriented protocols of the
+ * xqDoc tools.  Objects are read into a {@link java.util.LinkedHashMap},
+ * arrays into a {@link java.util.List}, numbers into a {@link java.lang.Long}
+ * or {@link java.lang.Double} and the literals into {@link java.lang.Boolean}
+ * or null.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public class JsonUtility
+{
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private JsonUtility() {
+
+    }
+
+    /**
+     * Append a value to a buffer as JSON.
+     *
+     * @param buffer The buffer to append to
+     * @param value A String, Number, Boolean, Map, List or null
+     */
+    public static void append(StringBuilder buffer, Object value) {
+        if (value == null) {
+            buffer.append("null");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            buffer.append(value);
+        } else if (value instanceof Map) {
+            buffer.append('{');
+            boolean first = true;
+            for (Object entry : ((Map) value).entrySet()) {
+                if (!first) {
+                    buffer.append(',');
+                }
+                first = false;
+                appendString(buffer, String.valueOf(((Map.Entry) entry).getKey()));
+                buffer.append(':');
+                append(buffer, ((Map.Entry) entry).getValue());
+            }
+            buffer.append('}');
+        } else if (value instanceof List) {
+            buffer.append('[');
+            boolean first = true;
+            for (Object item : (List) value) {
+                if (!first) {
+                    buffer.append(',');
+                }
+                first = false;
+                append(buffer, item);
+            }
+            buffer.append(']');
+        } else {
+            appendString(buffer, value.toString());
+        }
+    }
+
+    /**
+     * Append a String to a buffer as a quoted and escaped JSON string.
+     *
+     * @param buffer The buffer to append to
+     * @param text The String to append
+     */
+    public static void appendString(StringBuilder buffer, CharSequence text) {
+        buffer.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    buffer.append("\\\"");
+                    break;
+                case '\\':
+                    buffer.append("\\\\");
+                    break;
+                case '\n':
+                    buffer.append("\\n");
+                    break;
+                case '\r':
+                    buffer.append("\\r");
+                    break;
+                case '\t':
+                    buffer.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        buffer.append("\\u")
+                                .append(HEX[(c >> 12) & 0xF]).append(HEX[(c >> 8) & 0xF])
+                                .append(HEX[(c >> 4) & 0xF]).append(HEX[c & 0xF]);
+                    } else {
+                        buffer.append(c);
+                    }
+            }
+        }
+        buffer.append('"');
+    }
+
+    /**
+     * Parse a JSON text.
+     *
+     * @param text The JSON text
+     * @return The parsed value
+     * @throws XQDocException if the text is not valid JSON
+     */
+    public static Object parse(String text) throws XQDocException {
+        Reader reader = new Reader(text);
+        Object value = reader.readValue();
+        reader.skipWhitespace();
+        if (reader.position < text.length()) {
+            throw reader.error("unexpected trailing characters");
+        }
+        return value;
+    }
+
+    /**
+     * Recursive descent reader over a JSON text.
+     */
+    private static class Reader {
+        private final String text;
+        private int position = 0;
+
+        Reader(String text) {
+            this.text = text;
+        }
+
+        Object readValue() throws XQDocException {
+            skipWhitespace();
+            if (position >= text.length()) {
+                throw error("unexpected end of input");
+            }
+            char c = text.charAt(position);
+            switch (c) {
+                case '{':
+                    return readObject();
+                case '[':
+                    return readArray();
+                case '"':
+                    return readString();
+                case 't':
+                    return readLiteral("true", Boolean.TRUE);
+                case 'f':
+                    return readLiteral("false", Boolean.FALSE);
+                case 'n':
+                    return readLiteral("null", null);
+                default:
+                    return readNumber();
+            }
+        }
+
+        Map<String, Object> readObject() throws XQDocException {
+            Map<String, Object> object = new LinkedHashMap<>();
+            position++;
+            skipWhitespace();
+            if (peek() == '}') {
+                position++;
+                return object;
+            }
+            while (true) {
+                skipWhitespace();
+                if (peek() != '"') {
+                    throw error("expected a member name");
+                }
+                String name = readString();
+                skipWhitespace();
+                expect(':');
+                object.put(name, readValue());
+                skipWhitespace();
+                if (peek() == ',') {
+                    position++;
+                } else {
+                    expect('}');
+                    return object;
+                }
+            }
+        }
+
+        List<Object> readArray() throws XQDocException {
+            List<Object> array = new ArrayList<>();
+            position++;
+            skipWhitespace();
+            if (peek() == ']') {
+                position++;
+                return array;
+            }
+            while (true) {
+                array.add(readValue());
+                skipWhitespace();
+                if (peek() == ',') {
+                    position++;
+                } else {
+                    expect(']');
+                    return array;
+                }
+            }
+        }
+
+        String readString() throws XQDocException {
+            StringBuilder buffer = new StringBuilder();
+            position++;
+            while (position < text.length()) {
+                char c = text.charAt(position++);
+                if (c == '"') {
+                    return buffer.toString();
+                } else if (c == '\\') {
+                    if (position >= text.length()) {
+                        break;
+                    }
+                    char escape = text.charAt(position++);
+                    switch (escape) {
+                        case 'b':
+                            buffer.append('\b');
+                            break;
+                        case 'f':
+                            buffer.append('\f');
+                            break;
+                        case 'n':
+                            buffer.append('\n');
+                            break;
+                        case 'r':
+                            buffer.append('\r');
+                            break;
+                        case 't':
+                            buffer.append('\t');
+                            break;
+                        case 'u':
+                            if (position + 4 > text.length()) {
+                                throw error("invalid unicode escape");
+                            }
+                            // Integer.parseInt would also take a sign or other digits than ASCII
+                            int unit = 0;
+                            for (int i = 0; i < 4; i++) {
+                                int digit = "0123456789abcdef".indexOf(Character.toLowerCase(text.charAt(position + i)));
+                                if (digit < 0) {
+                                    throw error("invalid unicode escape");
+                                }
+                                unit = unit * 16 + digit;
+                            }
+                            buffer.append((char) unit);
+                            position += 4;
+                            break;
+                        default:
+                            buffer.append(escape);
+                    }
+                } else {
+                    buffer.append(c);
+                }
+            }
+            throw error("unterminated string");
+        }
+
+        Object readLiteral(String literal, Object value) throws XQDocException {
+            if (!text.startsWith(literal, position)) {
+                throw error("unexpected character");
+            }
+            position += literal.length();
+            return value;
+        }
+
+        Number readNumber() throws XQDocException {
+            int start = position;
+            while (position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0) {
+                position++;
+            }
+            String number = text.substring(start, position);
+            try {
+                if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+                    return Long.valueOf(number);
+                }
+                return Double.valueOf(number);
+            } catch (NumberFormatException ex) {
+                throw error("unexpected character");
+            }
+        }
+
+        void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        char peek() {
+            return position < text.length() ? text.charAt(position) : 0;
+        }
+
+        void expect(char c) throws XQDocException {
+            if (peek() != c) {
+                throw error("expected '" + c + "'");
+            }
+            position++;
+        }
+
+        XQDocException error(String message) {
+            return new XQDocException("Invalid JSON at offset " + position + ": " + message);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenFactory;
+import org.antlr.v4.runtime.TokenSource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>MainModuleSplitter class.</p>
+ *
+ * A token source that passes the tokens of the lexer through unchanged and
+ * notes the semicolons that separate the main modules of a file that chains
+ * several of them.  A statement that does not start with
+ * <code>declare</code>, <code>import</code>, <code>module</code> or
+ * <code>xquery</code> is a query body, and the semicolon that ends it, outside
+ * of braces, strings and element content, is the boundary to the next main
+ * module.  A query body that starts with one of those keywords, such as the
+ * path <code>declare/x</code>, hides its boundary; the main module before it
+ * then does not parse to its last token, and {@link XQDocEngine} parses the
+ * whole file instead.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public class MainModuleSplitter implements TokenSource {
+
+    private final Lexer lexer;
+    private final List<Token> boundaries = new ArrayList<>();
+    private ExpressionTracker statement = null;
+    private boolean queryBody = false;
+
+    /**
+     * <p>Constructor for MainModuleSplitter.</p>
+     *
+     * @param lexer The lexer of the file
+     */
+    public MainModuleSplitter(Lexer lexer) {
+        this.lexer = lexer;
+    }
+
+    /**
+     * <p>getBoundaries.</p>
+     *
+     * @return The semicolons between the main modules lexed so far, in source order
+     */
+    public List<Token> getBoundaries() {
+        return boundaries;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Token nextToken() {
+        boolean topLevel = lexer._modeStack.isEmpty();
+        Token token = lexer.nextToken();
+        if (token.getChannel() != Token.DEFAULT_CHANNEL || token.getType() == Token.EOF) {
+            return token;
+        }
+        if (statement == null) {
+            switch (token.getType()) {
+                case XQueryLexer.XQDocComment:
+                    return token;
+                case XQueryLexer.KW_DECLARE:
+                case XQueryLexer.KW_IMPORT:
+                case XQueryLexer.KW_MODULE:
+                case XQueryLexer.KW_XQUERY:
+                    queryBody = false;
+                    break;
+                default:
+                    queryBody = true;
+            }
+            statement = new ExpressionTracker(XQueryLexer.SEMICOLON);
+        }
+        if (statement.isEnd(token, topLevel)) {
+            if (queryBody) {
+                boundaries.add(token);
+            }
+            statement = null;
+        }
+        return token;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getLine() {
+        return lexer.getLine();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getCharPositionInLine() {
+        return lexer.getCharPositionInLine();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public CharStream getInputStream() {
+        return lexer.getInputStream();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getSourceName() {
+        return lexer.getSourceName();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setTokenFactory(TokenFactory<?> factory) {
+        lexer.setTokenFactory(factory);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public TokenFactory<?> getTokenFactory() {
+        return lexer.getTokenFactory();
+    }
+}
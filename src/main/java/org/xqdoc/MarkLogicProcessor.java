@@ -1,66 +1,28 @@
 package org.xqdoc;
 
-import org.antlr.v4.runtime.CharStream;
-import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.CommonTokenStream;
-import org.xml.sax.SAXException;
-
-import javax.xml.parsers.ParserConfigurationException;
-import java.io.IOException;
-import java.util.HashMap;
-
 /**
  * <p>MarkLogicProcessor class.</p>
  *
+ * An {@link XQDocProcessor} for the modules of MarkLogic.
+ *
  * @author lcahlander
  * @version $Id: $Id
  */
-public class MarkLogicProcessor {
+public class MarkLogicProcessor extends XQDocProcessor {
 
     /**
-     * <p>process.</p>
-     *
-     * @param txt The XQuery source as a String
-     * @return The xqDoc XML Document as a String
-     * @throws javax.xml.parsers.ParserConfigurationException a
-     * @throws java.io.IOException a
-     * @throws org.xml.sax.SAXException a
+     * <p>Constructor for MarkLogicProcessor that uses a DFA cache shared by all processors.</p>
      */
-    public String process(String txt) throws ParserConfigurationException, IOException, SAXException {
-        HashMap uriMap = new HashMap();
-        uriMap.put("fn", "http://www.w3.org/2003/05/xpath-functions");
-        uriMap.put("cts", "http://marklogic.com/cts"); // MarkLogic Server search functions (Core Text Services)
-        uriMap.put("dav", "DAV:"); // Used with WebDAV
-        uriMap.put("dbg", "http://marklogic.com/xdmp/debug"); // Debug Built-In functions
-        uriMap.put("dir", "http://marklogic.com/xdmp/directory"); // MarkLogic Server directory XML
-        uriMap.put("err", "http://www.w3.org/2005/xqt-errors"); // namespace for XQuery and XPath errors
-        uriMap.put("error", "http://marklogic.com/xdmp/error"); // MarkLogic Server error namespace
-        uriMap.put("local", "http://www.w3.org/2005/xquery-local-functions"); // local namespace for functions defined in main modules
-        uriMap.put("lock", "http://marklogic.com/xdmp/lock"); // MarkLogic Server locks
-        uriMap.put("map", "http://marklogic.com/xdmp/map"); // MarkLogic Server maps
-        uriMap.put("math", "http://marklogic.com/xdmp/math"); // math Built-In functions
-        uriMap.put("prof", "http://marklogic.com/xdmp/profile"); // profile Built-In functions
-        uriMap.put("prop", "http://marklogic.com/xdmp/property"); // MarkLogic Server properties
-        uriMap.put("sec", "http://marklogic.com/xdmp/security"); // security Built-In functions
-        uriMap.put("sem", "http://marklogic.com/semantics"); // semantic Built-In functions
-        uriMap.put("spell", "http://marklogic.com/xdmp/spell"); // spelling correction functions
-        uriMap.put("xdmp", "http://marklogic.com/xdmp"); // MarkLogic Server Built-In functions
-        uriMap.put("xml", "http://www.w3.org/XML/1998/namespace"); // XML namespace
-        uriMap.put("xmlns", "http://www.w3.org/2000/xmlns/"); // xmlns namespace
-        uriMap.put("xqe", "http://marklogic.com/xqe"); // deprecated MarkLogic Server xqe namespace
-        uriMap.put("xqterr", "http://www.w3.org/2005/xqt-errors"); // XQuery test suite errors (same as err)
-        uriMap.put("xs", "http://www.w3.org/2001/XMLSchema"); // XML Schema namespace
-        CharStream inputStream = CharStreams.fromString(txt);
-        org.xqdoc.XQueryLexer markupLexer = new org.xqdoc.XQueryLexer(inputStream);
-        CommonTokenStream commonTokenStream = new CommonTokenStream(markupLexer);
-        org.xqdoc.XQueryParser markupParser = new org.xqdoc.XQueryParser(commonTokenStream);
-
-        org.xqdoc.XQueryParser.ModuleContext fileContext = markupParser.module();
-        StringBuilder buffer = new StringBuilder();
-
+    public MarkLogicProcessor() {
+        super(XQueryDialect.MARKLOGIC);
+    }
 
-        XQueryVisitor visitor = new XQueryVisitor(buffer, uriMap);
-        visitor.visit(fileContext);
-        return DocumentUtility.getStringFromDoc(DocumentUtility.getDocumentFromBuffer(buffer));
+    /**
+     * <p>Constructor for MarkLogicProcessor.</p>
+     *
+     * @param dfaCache The bounded DFA cache the parser predicts with
+     */
+    public MarkLogicProcessor(DFACache dfaCache) {
+        super(XQueryDialect.MARKLOGIC, dfaCache);
     }
 }
@@ -0,0 +1,150 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStreams;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>PipeProcessor class.</p>
+ *
+ * Reads a stream of XQuery sources as newline delimited JSON envelopes and
+ * writes the xqDoc of each one as a JSON envelope as soon as it completes, so a
+ * build system can drive a single JVM over any number of modules.
+ *
+ * A request is an object with an <code>id</code>, which is echoed back, and the
+ * XQuery <code>source</code>:
+ * <pre>
+ * {"id": 1, "source": "module namespace a = \"urn:a\"; ..."}
+ * </pre>
+ * The response carries either the <code>xqdoc</code> XML or the
+ * <code>errors</code> of the module:
+ * <pre>
+ * {"id": 1, "xqdoc": "&lt;?xml ..."}
+ * {"id": 2, "errors": ["1:20: mismatched input '{' expecting {RPAREN, DOLLAR}"]}
+ * </pre>
+ * Responses are written in completion order, not request order.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public class PipeProcessor {
+
+    private final XQDocEngine engine;
+    private final int threads;
+
+    /**
+     * <p>Constructor for PipeProcessor.</p>
+     *
+     * @param engine The engine that generates the xqDoc XML
+     * @param threads The number of worker threads
+     */
+    public PipeProcessor(XQDocEngine engine, int threads) {
+        this.engine = engine;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Process requests until the end of the input stream and wait for every
+     * response to be written.
+     *
+     * @param in The stream of request envelopes
+     * @param out The stream that receives the response envelopes
+     * @throws java.io.IOException a
+     * @throws java.lang.InterruptedException a
+     */
+    public void run(InputStream in, OutputStream out) throws IOException, InterruptedException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // Stop reading ahead when the workers fall behind so that pending sources do not pile up in memory
+        final Semaphore pending = new Semaphore(threads * 4);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                pending.acquire();
+                executor.execute(new RequestTask(line, writer, pending));
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            synchronized (writer) {
+                writer.flush();
+            }
+        }
+    }
+
+    /**
+     * Generates the xqDoc for a single request envelope and writes the response.
+     */
+    private class RequestTask implements Runnable {
+        private final String line;
+        private final Writer writer;
+        private final Semaphore pending;
+
+        RequestTask(String line, Writer writer, Semaphore pending) {
+            this.line = line;
+            this.writer = writer;
+            this.pending = pending;
+        }
+
+        @Override
+        public void run() {
+            Map<String, Object> response = new LinkedHashMap<>();
+            SyntaxErrorCollector errors = new SyntaxErrorCollector();
+            try {
+                Object request = JsonUtility.parse(line);
+                if (!(request instanceof Map)) {
+                    throw new XQDocException("A request must be a JSON object");
+                }
+                Map envelope = (Map) request;
+                response.put("id", envelope.get("id"));
+                Object source = envelope.get("source");
+                if (!(source instanceof String)) {
+                    throw new XQDocException("A request must have a string 'source'");
+                }
+                StringBuilder buffer = engine.generate(CharStreams.fromString((String) source), errors);
+                if (!errors.hasErrors()) {
+                    response.put("xqdoc", PrettyPrintWriter.format(buffer));
+                } else {
+                    response.put("errors", errors.getMessages());
+                }
+            } catch (Exception ex) {
+                List<String> messages = new ArrayList<>(errors.getMessages());
+                messages.add(ex.toString());
+                response.put("errors", messages);
+            }
+            StringBuilder json = new StringBuilder();
+            JsonUtility.append(json, response);
+            json.append('\n');
+            try {
+                synchronized (writer) {
+                    writer.write(json.toString());
+                    writer.flush();
+                }
+            } catch (IOException ex) {
+                throw new XQDocRuntimeException("Unable to write the response", ex);
+            } finally {
+                pending.release();
+            }
+        }
+    }
+}
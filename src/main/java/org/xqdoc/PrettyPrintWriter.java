@@ -0,0 +1,575 @@
+package org.xqdoc;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>PrettyPrintWriter class.</p>
+ *
+ * A writer that pretty prints the well-formed XML written to it while it is
+ * being written, in the layout of the DOM Level 3 <code>LSSerializer</code>
+ * with <code>format-pretty-print</code>: an XML declaration, each element
+ * on its own line indented by four spaces, elements without content as
+ * empty tags and elements with only text on one line.  Whitespace between
+ * elements is dropped except under <code>xml:space="preserve"</code>.  Text
+ * and attribute values are escaped again after their references have been
+ * resolved, attributes are sorted by name and line ends are normalized as an
+ * XML parser would.
+ *
+ * Unlike the serializer no <code>Document</code> is built; only the text of
+ * the element being written is held until its end tag, so the XML of the
+ * {@link XQueryVisitor} can be pretty printed on its way to a file or a
+ * socket.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public class PrettyPrintWriter extends Writer {
+
+    private static final String DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+    private static final String INDENT = "    ";
+    private static final String CDATA_START = "<![CDATA[";
+
+    private final Writer out;
+    // The markup or text being read
+    private final StringBuilder token = new StringBuilder();
+    private boolean markup = false;
+    private char quote = 0;
+    private boolean carriageReturn = false;
+    private boolean declared = false;
+    private final ArrayDeque<Element> elements = new ArrayDeque<>();
+    // The text of the current element that is written once it is known whether the element has children
+    private final StringBuilder text = new StringBuilder();
+    private int textStart = 0;
+
+    /**
+     * <p>Constructor for PrettyPrintWriter.</p>
+     *
+     * @param out The writer that receives the pretty printed XML
+     */
+    public PrettyPrintWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * Pretty print an XML document.
+     *
+     * @param xml The XML document
+     * @return The pretty printed XML document
+     */
+    public static String format(CharSequence xml) {
+        StringWriter result = new StringWriter(xml.length() + xml.length() / 4);
+        try (PrettyPrintWriter writer = new PrettyPrintWriter(result)) {
+            writer.append(xml);
+        } catch (IOException e) {
+            throw new XQDocRuntimeException(e.getMessage(), e);
+        }
+        return result.toString();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            accept(cbuf[i]);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            accept(str.charAt(i));
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Writer append(CharSequence csq) throws IOException {
+        CharSequence chars = csq == null ? "null" : csq;
+        for (int i = 0; i < chars.length(); i++) {
+            accept(chars.charAt(i));
+        }
+        return this;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void accept(char c) throws IOException {
+        if (c == '\n' && carriageReturn) {
+            carriageReturn = false;
+            return;
+        }
+        carriageReturn = c == '\r';
+        if (carriageReturn) {
+            c = '\n';
+        }
+        if (!markup) {
+            if (c == '<') {
+                if (token.length() > 0) {
+                    text(decode(token, 0, token.length(), false));
+                    token.setLength(0);
+                }
+                markup = true;
+                quote = 0;
+            }
+            token.append(c);
+            return;
+        }
+        token.append(c);
+        if (isMarkupComplete(c)) {
+            markup();
+            token.setLength(0);
+            markup = false;
+        }
+    }
+
+    /**
+     *
+     * @param c The character just added to the markup
+     * @return true if the markup in the token is complete
+     */
+    private boolean isMarkupComplete(char c) {
+        int length = token.length();
+        if (length < 2) {
+            return false;
+        }
+        switch (token.charAt(1)) {
+            case '!':
+                if (length < 4) {
+                    return false;
+                }
+                if (token.charAt(2) == '-' && token.charAt(3) == '-') {
+                    return length >= 7 && endsWith("-->");
+                }
+                if (length < CDATA_START.length()) {
+                    return false;
+                }
+                if (startsWith(CDATA_START)) {
+                    return length >= CDATA_START.length() + 3 && endsWith("]]>");
+                }
+                return c == '>';
+            case '?':
+                return length >= 4 && endsWith("?>");
+            default:
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '"' || c == '\'') {
+                    quote = c;
+                } else {
+                    return c == '>';
+                }
+                return false;
+        }
+    }
+
+    private void markup() throws IOException {
+        int length = token.length();
+        if (startsWith("<!--")) {
+            node("<!--" + token.substring(4, length - 3) + "-->");
+        } else if (startsWith(CDATA_START)) {
+            cdata(token, CDATA_START.length(), length - 3);
+        } else if (startsWith("<?")) {
+            if (!startsWith("<?xml") || (length > 5 && !isWhitespace(token.charAt(5)))) {
+                node(token.toString());
+            }
+        } else if (startsWith("</")) {
+            endElement();
+        } else if (token.charAt(1) != '!') {
+            startElement();
+        }
+    }
+
+    private void startElement() throws IOException {
+        int end = token.length() - 1;
+        boolean empty = token.charAt(end - 1) == '/';
+        if (empty) {
+            end--;
+        }
+        int i = 1;
+        while (i < end && !isWhitespace(token.charAt(i))) {
+            i++;
+        }
+        String name = token.substring(1, i);
+        Map<String, String> attributes = new TreeMap<>();
+        while (true) {
+            while (i < end && isWhitespace(token.charAt(i))) {
+                i++;
+            }
+            if (i >= end) {
+                break;
+            }
+            int nameStart = i;
+            while (i < end && token.charAt(i) != '=' && !isWhitespace(token.charAt(i))) {
+                i++;
+            }
+            String attributeName = token.substring(nameStart, i);
+            while (i < end && token.charAt(i) != '"' && token.charAt(i) != '\'') {
+                i++;
+            }
+            if (i >= end) {
+                throw new XQDocRuntimeException("The attribute " + attributeName + " of " + name + " has no value");
+            }
+            char valueQuote = token.charAt(i++);
+            int valueStart = i;
+            while (i < end && token.charAt(i) != valueQuote) {
+                i++;
+            }
+            attributes.put(attributeName, decode(token, valueStart, i, true));
+            i++;
+        }
+
+        Element parent = elements.peek();
+        if (parent == null) {
+            if (!declared) {
+                declared = true;
+                out.write(DECLARATION);
+            }
+        } else {
+            startChild(parent);
+        }
+        out.append('<').append(name);
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            out.append(' ').append(attribute.getKey()).append("=\"");
+            escape(out, attribute.getValue(), true);
+            out.append('"');
+        }
+        String space = attributes.get("xml:space");
+        boolean preserve = space == null ? parent != null && parent.preserve : "preserve".equals(space);
+        elements.push(new Element(name, preserve));
+        if (empty) {
+            endElement();
+        }
+    }
+
+    private void endElement() throws IOException {
+        Element element = elements.pop();
+        if (element.preserve) {
+            if (element.startTagOpen) {
+                out.write("/>");
+            } else {
+                out.append("</").append(element.name).append('>');
+            }
+        } else if (element.children) {
+            writeIndentedText(elements.size() + 1);
+            newLine(elements.size());
+            out.append("</").append(element.name).append('>');
+        } else if (text.length() == 0) {
+            out.write("/>");
+        } else {
+            out.append('>').append(text).append("</").append(element.name).append('>');
+            text.setLength(0);
+            textStart = 0;
+        }
+        if (elements.isEmpty()) {
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Write a comment or processing instruction.
+     *
+     * @param node The markup of the node
+     * @throws java.io.IOException a
+     */
+    private void node(String node) throws IOException {
+        Element parent = elements.peek();
+        if (parent != null) {
+            startChild(parent);
+        }
+        out.write(node);
+    }
+
+    private void text(String value) throws IOException {
+        Element element = elements.peek();
+        if (element == null) {
+            return;
+        }
+        if (element.preserve) {
+            closeStartTag(element);
+            escape(out, value, false);
+        } else if (!isWhitespace(value)) {
+            boolean first = text.length() == 0;
+            escape(text, value, false);
+            if (first) {
+                // Indented text does not start with the line ends of the source
+                while (textStart < text.length() && text.charAt(textStart) == '\n') {
+                    textStart++;
+                }
+            }
+        }
+    }
+
+    private void cdata(CharSequence chars, int start, int end) throws IOException {
+        Element element = elements.peek();
+        if (element == null || start == end) {
+            return;
+        }
+        if (element.preserve) {
+            closeStartTag(element);
+            writeCData(out, chars, start, end);
+        } else {
+            writeCData(text, chars, start, end);
+        }
+    }
+
+    /**
+     * Put a child node of an element on a new line.
+     *
+     * @param parent The element
+     * @throws java.io.IOException a
+     */
+    private void startChild(Element parent) throws IOException {
+        closeStartTag(parent);
+        if (!parent.preserve) {
+            parent.children = true;
+            writeIndentedText(elements.size());
+            newLine(elements.size());
+        }
+    }
+
+    private void closeStartTag(Element element) throws IOException {
+        if (element.startTagOpen) {
+            element.startTagOpen = false;
+            out.write('>');
+        }
+    }
+
+    /**
+     * Write the text held for the current element on its own line, for
+     * text that is mixed with elements.
+     *
+     * @param depth The depth of the text in the document
+     * @throws java.io.IOException a
+     */
+    private void writeIndentedText(int depth) throws IOException {
+        if (text.length() > 0) {
+            newLine(depth);
+            out.append(text, textStart, text.length());
+            text.setLength(0);
+        }
+        textStart = 0;
+    }
+
+    private void newLine(int depth) throws IOException {
+        out.write('\n');
+        for (int i = 0; i < depth; i++) {
+            out.write(INDENT);
+        }
+    }
+
+    /**
+     * Write the characters of a CDATA section.  A <code>]]&gt;</code> in the
+     * characters splits the section, and characters outside of the Basic
+     * Multilingual Plane at its start are written in front of it, as the
+     * serializer does.
+     *
+     * @param destination Receives the CDATA section
+     * @param chars The characters of the section
+     * @param start The index of the first character
+     * @param end The index after the last character
+     * @throws java.io.IOException a
+     */
+    private static void writeCData(Appendable destination, CharSequence chars, int start, int end) throws IOException {
+        boolean open = false;
+        for (int i = start; i < end; i++) {
+            char c = chars.charAt(i);
+            if (!open && !Character.isSurrogate(c)) {
+                destination.append(CDATA_START);
+                open = true;
+            }
+            if (c == ']' && i + 2 < end && chars.charAt(i + 1) == ']' && chars.charAt(i + 2) == '>') {
+                destination.append("]]]]><![CDATA[>");
+                i += 2;
+            } else {
+                destination.append(c);
+            }
+        }
+        if (open) {
+            destination.append("]]>");
+        }
+    }
+
+    /**
+     * Escape the characters of text or of an attribute value.
+     *
+     * @param destination Receives the escaped characters
+     * @param value The characters
+     * @param attribute true for an attribute value
+     * @throws java.io.IOException a
+     */
+    private static void escape(Appendable destination, String value, boolean attribute) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    destination.append("&amp;");
+                    break;
+                case '<':
+                    destination.append("&lt;");
+                    break;
+                case '>':
+                    destination.append("&gt;");
+                    break;
+                case '"':
+                    destination.append(attribute ? "&quot;" : "\"");
+                    break;
+                case '\r':
+                    destination.append("&#13;");
+                    break;
+                case '\t':
+                    destination.append(attribute ? "&#9;" : "\t");
+                    break;
+                case '\n':
+                    destination.append(attribute ? "&#10;" : "\n");
+                    break;
+                default:
+                    if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        destination.append("&#").append(Integer.toString(Character.toCodePoint(c, value.charAt(++i)))).append(';');
+                    } else if (!attribute && c >= 0x7F && c <= 0x9F) {
+                        destination.append("&#").append(Integer.toString(c)).append(';');
+                    } else {
+                        destination.append(c);
+                    }
+            }
+        }
+    }
+
+    /**
+     * Resolve the character and predefined entity references of text or of
+     * an attribute value.  A whitespace character of an attribute value is
+     * normalized to a space.  An ampersand that does not start a reference
+     * is kept as it is.
+     *
+     * @param chars The characters
+     * @param start The index of the first character
+     * @param end The index after the last character
+     * @param attribute true for an attribute value
+     * @return The resolved characters
+     */
+    private static String decode(CharSequence chars, int start, int end, boolean attribute) {
+        StringBuilder value = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = chars.charAt(i);
+            if (c == '&') {
+                int semicolon = i + 1;
+                while (semicolon < end && semicolon - i <= 10 && chars.charAt(semicolon) != ';') {
+                    semicolon++;
+                }
+                if (semicolon < end && chars.charAt(semicolon) == ';' && resolve(chars.subSequence(i + 1, semicolon).toString(), value)) {
+                    i = semicolon;
+                    continue;
+                }
+            } else if (attribute && isWhitespace(c)) {
+                c = ' ';
+            }
+            value.append(c);
+        }
+        return value.toString();
+    }
+
+    /**
+     *
+     * @param reference The name of an entity reference or a character reference starting with #
+     * @param value Receives the character of the reference
+     * @return false if it is not a reference
+     */
+    private static boolean resolve(String reference, StringBuilder value) {
+        switch (reference) {
+            case "lt":
+                value.append('<');
+                return true;
+            case "gt":
+                value.append('>');
+                return true;
+            case "amp":
+                value.append('&');
+                return true;
+            case "quot":
+                value.append('"');
+                return true;
+            case "apos":
+                value.append('\'');
+                return true;
+            default:
+                if (reference.length() < 2 || reference.charAt(0) != '#') {
+                    return false;
+                }
+                try {
+                    int codePoint = reference.charAt(1) == 'x'
+                            ? Integer.parseInt(reference.substring(2), 16)
+                            : Integer.parseInt(reference.substring(1));
+                    value.appendCodePoint(codePoint);
+                    return true;
+                } catch (IllegalArgumentException e) {
+                    return false;
+                }
+        }
+    }
+
+    private boolean startsWith(String prefix) {
+        if (token.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (token.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean endsWith(String suffix) {
+        int offset = token.length() - suffix.length();
+        for (int i = 0; i < suffix.length(); i++) {
+            if (token.charAt(offset + i) != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private static boolean isWhitespace(CharSequence chars) {
+        for (int i = 0; i < chars.length(); i++) {
+            if (!isWhitespace(chars.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * An element whose end tag has not been written yet.
+     */
+    private static class Element {
+        private final String name;
+        private final boolean preserve;
+        private boolean startTagOpen = true;
+        private boolean children = false;
+
+        Element(String name, boolean preserve) {
+            this.name = name;
+            this.preserve = preserve;
+        }
+    }
+}
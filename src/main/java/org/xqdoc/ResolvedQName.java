@@ -0,0 +1,113 @@
+package org.xqdoc;
+
+/**
+ * <p>ResolvedQName class.</p>
+ *
+ * The name of a function or variable that a module references, with its
+ * prefix resolved to a namespace URI.  The {@link XQueryVisitor} collects
+ * these in sets for the invoked functions and referenced variables, so the
+ * hash code is computed once.  It is the hash code of the text
+ * <code>uri prefix:localName</code> that the sets held before, which keeps
+ * the order of the references in the xqDoc stable.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+final class ResolvedQName {
+
+    private final String uri;
+    private final String prefix;
+    private final String localName;
+    private final int hash;
+
+    /**
+     * <p>Constructor for ResolvedQName.</p>
+     *
+     * @param uri The namespace URI
+     * @param prefix The prefix as it is written in the module, or null
+     * @param localName The local name
+     */
+    ResolvedQName(String uri, String prefix, String localName) {
+        this.uri = uri;
+        this.prefix = prefix;
+        this.localName = localName;
+        int h = hash(0, uri);
+        h = 31 * h + ' ';
+        if (prefix != null) {
+            h = hash(h, prefix);
+            h = 31 * h + ':';
+        }
+        this.hash = hash(h, localName);
+    }
+
+    private static int hash(int h, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            h = 31 * h + text.charAt(i);
+        }
+        return h;
+    }
+
+    /**
+     * <p>getUri.</p>
+     *
+     * @return The namespace URI
+     */
+    String getUri() {
+        return uri;
+    }
+
+    /**
+     * <p>getPrefix.</p>
+     *
+     * @return The prefix as it is written in the module, or null
+     */
+    String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * <p>getLocalName.</p>
+     *
+     * @return The local name
+     */
+    String getLocalName() {
+        return localName;
+    }
+
+    /**
+     * <p>getLexicalName.</p>
+     *
+     * @return The name as it is written in the module, with its prefix
+     */
+    String getLexicalName() {
+        return prefix != null ? prefix + ":" + localName : localName;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ResolvedQName)) {
+            return false;
+        }
+        ResolvedQName other = (ResolvedQName) obj;
+        return hash == other.hash
+                && localName.equals(other.localName)
+                && uri.equals(other.uri)
+                && (prefix == null ? other.prefix == null : prefix.equals(other.prefix));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return uri + " " + getLexicalName();
+    }
+}
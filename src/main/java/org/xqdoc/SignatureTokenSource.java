@@ -0,0 +1,186 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenFactory;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.misc.Pair;
+
+import java.util.ArrayDeque;
+
+/**
+ * <p>SignatureTokenSource class.</p>
+ *
+ * A token source that hands the parser only the skeleton of a module: the
+ * prolog declarations with their names, annotations and signatures.  The
+ * tokens of every function body, variable value and query body are dropped
+ * and replaced by an empty parenthesized expression, so the parser never
+ * has to predict its way through the expressions.  The original opening and
+ * closing braces of a function body are kept, and the synthetic parentheses
+ * carry the character positions of the skipped range, so the bodies of the
+ * parse tree still cover the raw text of the source.
+ *
+ * Braces are only counted while the lexer is outside of string literals, so
+ * braces in strings and attribute values do not throw the skipping off, and a
+ * semicolon in the content of a direct element constructor does not end a
+ * query body.  Should the skeleton still fail to parse, the engine parses the
+ * whole module instead.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public class SignatureTokenSource implements TokenSource {
+
+    private final Lexer lexer;
+    private final Pair<TokenSource, CharStream> source;
+    private final ArrayDeque<Token> pending = new ArrayDeque<>();
+    private boolean statementStart = true;
+    private boolean declaration = false;
+    // Whether the lexer was outside of any string literal when it lexed the last token
+    private boolean topLevel;
+
+    /**
+     * <p>Constructor for SignatureTokenSource.</p>
+     *
+     * @param lexer The lexer of the module
+     */
+    public SignatureTokenSource(Lexer lexer) {
+        this.lexer = lexer;
+        this.source = new Pair<TokenSource, CharStream>(this, lexer.getInputStream());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Token nextToken() {
+        if (!pending.isEmpty()) {
+            return pending.poll();
+        }
+        Token token = lex();
+        if (token.getChannel() != Token.DEFAULT_CHANNEL || token.getType() == Token.EOF) {
+            return token;
+        }
+        if (statementStart) {
+            switch (token.getType()) {
+                case XQueryLexer.XQDocComment:
+                    return token;
+                case XQueryLexer.KW_DECLARE:
+                    statementStart = false;
+                    declaration = true;
+                    return token;
+                case XQueryLexer.KW_IMPORT:
+                case XQueryLexer.KW_MODULE:
+                case XQueryLexer.KW_XQUERY:
+                    statementStart = false;
+                    declaration = false;
+                    return token;
+                default:
+                    // Anything else starts the query body, which runs to the end of the main module
+                    skip(token, XQueryLexer.SEMICOLON);
+                    return pending.poll();
+            }
+        }
+        if (token.getType() == XQueryLexer.SEMICOLON) {
+            statementStart = true;
+        } else if (declaration && token.getType() == XQueryLexer.COLON_EQ) {
+            skip(null, XQueryLexer.SEMICOLON);
+        } else if (declaration && token.getType() == XQueryLexer.LBRACE && topLevel) {
+            skip(null, XQueryLexer.RBRACE);
+        }
+        return token;
+    }
+
+    /**
+     * Skip the tokens of an expression and queue an empty parenthesized
+     * expression in their place, followed by the token that ends it.  The
+     * expression ends at the first end token that is not nested in braces or
+     * in the content of a direct element constructor.
+     *
+     * @param start The first token of the expression, or null if it has not been lexed yet
+     * @param end The type of the token that ends the expression
+     */
+    private void skip(Token start, int end) {
+        Token first = null;
+        Token last = null;
+        ExpressionTracker tracker = new ExpressionTracker(end);
+        Token token = start != null ? start : lex();
+        while (token.getType() != Token.EOF) {
+            if (token.getChannel() == Token.DEFAULT_CHANNEL) {
+                if (tracker.isEnd(token, topLevel)) {
+                    break;
+                }
+                if (first == null) {
+                    first = token;
+                }
+                last = token;
+            }
+            token = lex();
+        }
+        if (first != null) {
+            pending.add(createToken(XQueryLexer.LPAREN, "(", first, first.getStartIndex()));
+            pending.add(createToken(XQueryLexer.RPAREN, ")", last, last.getStopIndex()));
+        }
+        if (token.getType() == XQueryLexer.SEMICOLON) {
+            statementStart = true;
+        }
+        pending.add(token);
+    }
+
+    /**
+     *
+     * @param type The token type
+     * @param text The token text
+     * @param position The token whose line and column the new token takes
+     * @param index The index of the character the new token is placed at
+     * @return A token that is not in the character stream
+     */
+    private Token createToken(int type, String text, Token position, int index) {
+        CommonToken token = new CommonToken(source, type, Token.DEFAULT_CHANNEL, index, index);
+        token.setText(text);
+        token.setLine(position.getLine());
+        token.setCharPositionInLine(position.getCharPositionInLine());
+        return token;
+    }
+
+    private Token lex() {
+        topLevel = lexer._modeStack.isEmpty();
+        return lexer.nextToken();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getLine() {
+        return lexer.getLine();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getCharPositionInLine() {
+        return lexer.getCharPositionInLine();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public CharStream getInputStream() {
+        return lexer.getInputStream();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getSourceName() {
+        return lexer.getSourceName();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setTokenFactory(TokenFactory<?> factory) {
+        lexer.setTokenFactory(factory);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public TokenFactory<?> getTokenFactory() {
+        return lexer.getTokenFactory();
+    }
+}
@@ -0,0 +1,60 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>SyntaxErrorCollector class.</p>
+ *
+ * Collects the syntax errors of one XQuery source, each as
+ * <code>line:column: message</code>, instead of printing them on the
+ * console, so that the caller can return them, report them with the name
+ * of the source or only count them.  A collector is used for one source by
+ * one thread.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public class SyntaxErrorCollector extends BaseErrorListener {
+
+    private final List<String> messages = new ArrayList<>();
+
+    /** {@inheritDoc} */
+    @Override
+    public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
+                            int charPositionInLine, String msg, RecognitionException e) {
+        messages.add(line + ":" + charPositionInLine + ": " + msg);
+    }
+
+    /**
+     * <p>getMessages.</p>
+     *
+     * @return The syntax errors in the order they were found, each as line:column: message
+     */
+    public List<String> getMessages() {
+        return Collections.unmodifiableList(messages);
+    }
+
+    /**
+     * <p>getCount.</p>
+     *
+     * @return The number of syntax errors
+     */
+    public int getCount() {
+        return messages.size();
+    }
+
+    /**
+     * <p>hasErrors.</p>
+     *
+     * @return true if the source has a syntax error
+     */
+    public boolean hasErrors() {
+        return !messages.isEmpty();
+    }
+}
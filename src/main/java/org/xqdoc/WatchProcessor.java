@@ -0,0 +1,260 @@
+package org.xqdoc;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>WatchProcessor class.</p>
+ *
+ * Watches a source tree and regenerates the xqDoc of the modules that change.
+ * The whole tree is processed once at start up; after that only the modules
+ * that were created or modified are regenerated, and the xqDoc of a deleted
+ * module, or of every module under a deleted directory, is removed.  Events are collected until the tree has been quiet for
+ * the debounce interval, so a burst of editor saves results in a single
+ * regeneration.  The parser runtime stays warm between events since the JVM
+ * keeps running.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public class WatchProcessor {
+
+    /** The default time in milliseconds the tree must be quiet before regenerating. */
+    public static final long DEFAULT_DEBOUNCE = 250;
+
+    private final BatchProcessor batchProcessor;
+    private final Path directory;
+    private final PathMatcher matcher;
+    private final String glob;
+    private final long debounce;
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+    private PrintStream errorStream = System.err;
+    private WatchService watcher;
+
+    /**
+     * <p>Constructor for WatchProcessor.</p>
+     *
+     * @param batchProcessor The batch processor that generates and writes the xqDoc files
+     * @param directory The root of the source tree
+     * @param glob The glob pattern, relative to the directory, that selects the sources
+     * @param debounce The time in milliseconds the tree must be quiet before regenerating
+     */
+    public WatchProcessor(BatchProcessor batchProcessor, Path directory, String glob, long debounce) {
+        this.batchProcessor = batchProcessor;
+        this.directory = directory;
+        this.glob = glob;
+        this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        this.debounce = debounce;
+    }
+
+    /**
+     * Set the stream that receives the progress and error reports.
+     *
+     * @param errorStream The stream for reports
+     */
+    public void setErrorStream(PrintStream errorStream) {
+        this.errorStream = errorStream;
+        batchProcessor.setErrorStream(errorStream);
+    }
+
+    /**
+     * Process the whole tree and then regenerate changed modules until the
+     * thread is interrupted or {@link #stop()} is called.
+     *
+     * @throws java.io.IOException a
+     * @throws java.lang.InterruptedException a
+     */
+    public void run() throws IOException, InterruptedException {
+        synchronized (this) {
+            watcher = FileSystems.getDefault().newWatchService();
+        }
+        try {
+            registerTree(directory);
+            batchProcessor.process(BatchProcessor.findSources(directory, glob), directory);
+            errorStream.println("Watching " + directory + " for changes");
+
+            while (true) {
+                TreeSet<Path> changed = new TreeSet<>();
+                TreeSet<Path> deleted = new TreeSet<>();
+                TreeSet<Path> deletedDirectories = new TreeSet<>();
+                boolean overflow = collect(watcher.take(), changed, deleted, deletedDirectories);
+                // Keep collecting until the tree has been quiet for the debounce interval
+                WatchKey key;
+                while ((key = watcher.poll(debounce, TimeUnit.MILLISECONDS)) != null) {
+                    overflow |= collect(key, changed, deleted, deletedDirectories);
+                }
+                if (overflow) {
+                    batchProcessor.process(BatchProcessor.findSources(directory, glob), directory);
+                    continue;
+                }
+                for (Path deletedDirectory : deletedDirectories) {
+                    deleteOutputs(deletedDirectory);
+                }
+                for (Path source : deleted) {
+                    if (!changed.contains(source)) {
+                        Files.deleteIfExists(batchProcessor.getOutputPath(source, directory));
+                    }
+                }
+                if (!changed.isEmpty()) {
+                    batchProcessor.process(new ArrayList<>(changed), directory);
+                }
+            }
+        } catch (ClosedWatchServiceException ex) {
+            // stop() was called
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Stop watching the source tree.
+     */
+    public synchronized void stop() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException ex) {
+                errorStream.println("Unable to close the watch service: " + ex);
+            }
+        }
+    }
+
+    /**
+     *
+     * @param key The signalled watch key
+     * @param changed Receives the sources that were created or modified
+     * @param deleted Receives the sources that were deleted
+     * @param deletedDirectories Receives the watched directories that were deleted
+     * @return true if events were lost and the whole tree must be processed
+     * @throws java.io.IOException a
+     */
+    private boolean collect(WatchKey key, TreeSet<Path> changed, TreeSet<Path> deleted,
+                            TreeSet<Path> deletedDirectories) throws IOException {
+        boolean overflow = false;
+        Path parent = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            if (parent == null) {
+                continue;
+            }
+            Path path = parent.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                if (keys.containsValue(path)) {
+                    // A deleted or moved directory takes its sources along without an event for each
+                    deletedDirectories.add(path);
+                    Iterator<Path> sources = changed.iterator();
+                    while (sources.hasNext()) {
+                        if (sources.next().startsWith(path)) {
+                            sources.remove();
+                        }
+                    }
+                } else if (isSource(path)) {
+                    deleted.add(path);
+                    changed.remove(path);
+                }
+            } else if (Files.isDirectory(path)) {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    try {
+                        // A new directory may already hold sources by the time it is registered
+                        registerTree(path);
+                        for (Path source : BatchProcessor.findSources(path, "**")) {
+                            if (isSource(source)) {
+                                changed.add(source);
+                            }
+                        }
+                    } catch (NoSuchFileException ex) {
+                        // The directory was removed again before it could be watched
+                    }
+                }
+            } else if (isSource(path) && Files.isRegularFile(path)) {
+                changed.add(path);
+            }
+        }
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+        return overflow;
+    }
+
+    /**
+     *
+     * @param deletedDirectory A deleted directory of the source tree
+     * @throws java.io.IOException a
+     */
+    private void deleteOutputs(Path deletedDirectory) throws IOException {
+        Path outputs = batchProcessor.getOutputDirectory().resolve(directory.relativize(deletedDirectory).toString());
+        if (!Files.isDirectory(outputs)) {
+            return;
+        }
+        Files.walkFileTree(outputs, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (file.getFileName().toString().endsWith(".xml")) {
+                    Files.delete(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+                try {
+                    Files.delete(dir);
+                } catch (DirectoryNotEmptyException notEmpty) {
+                    // Keep a directory that holds anything but xqDoc files
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private boolean isSource(Path path) {
+        return matcher.matches(directory.relativize(path));
+    }
+
+    /**
+     *
+     * @param root The directory to register along with all of its subdirectories
+     * @throws java.io.IOException a
+     */
+    private void registerTree(Path root) throws IOException {
+        final List<Path> directories = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                directories.add(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        for (Path dir : directories) {
+            WatchKey key = dir.register(watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            keys.put(key, dir);
+        }
+    }
+}
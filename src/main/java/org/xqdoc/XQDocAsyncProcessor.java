@@ -0,0 +1,342 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * <p>XQDocAsyncProcessor class.</p>
+ *
+ * Generates the xqDoc of XQuery sources on a fixed pool of worker threads
+ * that share one {@link XQDocEngine}, so a service can keep every core busy
+ * without managing threads itself.  At most a set number of sources are
+ * pending at any time: {@link #processAsync(Source)} blocks the caller until
+ * a worker has finished one, and {@link #processAll(Collection)} only reads
+ * ahead as far as the limit allows, so sources that arrive faster than they
+ * can be documented do not pile up in memory.
+ *
+ * A source with syntax errors, or that cannot be read, gives a result with
+ * the errors instead of the xqDoc, as in the {@link PipeProcessor}.  Close
+ * the processor to stop its threads once the pending sources are done.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public class XQDocAsyncProcessor implements Closeable {
+
+    private static final AtomicInteger POOLS = new AtomicInteger();
+
+    private final XQDocEngine engine;
+    private final ExecutorService executor;
+    private final Semaphore pending;
+
+    /**
+     * <p>Constructor for XQDocAsyncProcessor that lets four sources per thread be pending.</p>
+     *
+     * @param engine The engine that generates the xqDoc XML
+     * @param threads The number of worker threads
+     */
+    public XQDocAsyncProcessor(XQDocEngine engine, int threads) {
+        this(engine, threads, Math.max(1, threads) * 4);
+    }
+
+    /**
+     * <p>Constructor for XQDocAsyncProcessor.</p>
+     *
+     * @param engine The engine that generates the xqDoc XML
+     * @param threads The number of worker threads
+     * @param maxPending The number of sources that may be queued or in progress
+     *                   before callers have to wait
+     */
+    public XQDocAsyncProcessor(XQDocEngine engine, int threads, int maxPending) {
+        this.engine = engine;
+        this.pending = new Semaphore(Math.max(1, maxPending));
+        final int pool = POOLS.incrementAndGet();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "xqdoc-" + pool + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Generate the xqDoc of a source on a worker thread.  The caller waits
+     * while the maximum number of sources are pending.
+     *
+     * @param source The XQuery source
+     * @return The result, completed when the xqDoc has been generated
+     * @throws java.lang.InterruptedException a
+     */
+    public CompletableFuture<Result> processAsync(Source source) throws InterruptedException {
+        pending.acquire();
+        return submit(source);
+    }
+
+    /**
+     * Generate the xqDoc of many sources.  The sources are submitted while
+     * the results are read, never more than the maximum number of pending
+     * sources ahead of the reader, and the results are returned in
+     * completion order, not in the order of the sources.
+     *
+     * @param sources The XQuery sources
+     * @return The results, one for each source; {@link Iterator#next()} waits for the next result
+     */
+    public Iterator<Result> processAll(Collection<? extends Source> sources) {
+        final Iterator<? extends Source> remaining = new ArrayList<>(sources).iterator();
+        final BlockingQueue<Result> completed = new LinkedBlockingQueue<>();
+        return new Iterator<Result>() {
+            private int outstanding = 0;
+
+            @Override
+            public boolean hasNext() {
+                return outstanding > 0 || remaining.hasNext();
+            }
+
+            @Override
+            public Result next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    while (remaining.hasNext() && (outstanding == 0 ? acquire() : pending.tryAcquire())) {
+                        final Source source = remaining.next();
+                        outstanding++;
+                        submit(source).whenComplete(new BiConsumer<Result, Throwable>() {
+                            @Override
+                            public void accept(Result result, Throwable failure) {
+                                completed.add(result != null ? result : new Result(source, null,
+                                        Collections.singletonList(String.valueOf(failure))));
+                            }
+                        });
+                    }
+                    Result result = completed.take();
+                    outstanding--;
+                    return result;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new XQDocRuntimeException("Interrupted while waiting for xqDoc results", ex);
+                }
+            }
+
+            private boolean acquire() throws InterruptedException {
+                pending.acquire();
+                return true;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Stop accepting sources, and wait for the pending sources to be done
+     * before the worker threads stop.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     *
+     * @param source The XQuery source, for which a permit has been acquired
+     * @return The result, completed when the xqDoc has been generated
+     */
+    private CompletableFuture<Result> submit(final Source source) {
+        final CompletableFuture<Result> future = new CompletableFuture<>();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Result result = null;
+                    Throwable failure = null;
+                    try {
+                        result = generate(source);
+                    } catch (Throwable t) {
+                        failure = t;
+                    } finally {
+                        pending.release();
+                    }
+                    if (failure == null) {
+                        future.complete(result);
+                    } else {
+                        future.completeExceptionally(failure);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            pending.release();
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    /**
+     *
+     * @param source The XQuery source
+     * @return The xqDoc of the source, or its errors
+     */
+    private Result generate(Source source) {
+        SyntaxErrorCollector errors = new SyntaxErrorCollector();
+        try {
+            StringBuilder buffer = engine.generate(source.open(), errors);
+            if (!errors.hasErrors()) {
+                return new Result(source, PrettyPrintWriter.format(buffer), errors.getMessages());
+            }
+            return new Result(source, null, errors.getMessages());
+        } catch (Exception ex) {
+            List<String> messages = new ArrayList<>(errors.getMessages());
+            messages.add(ex.toString());
+            return new Result(source, null, messages);
+        }
+    }
+
+    /**
+     * An XQuery source, read when a worker gets to it.
+     */
+    public abstract static class Source {
+        private final String name;
+
+        Source(String name) {
+            this.name = name;
+        }
+
+        /**
+         * <p>getName.</p>
+         *
+         * @return The name of the source, such as its path
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         *
+         * @return The characters of the source
+         * @throws java.io.IOException a
+         */
+        abstract CharStream open() throws IOException;
+
+        /**
+         * A source held in memory.
+         *
+         * @param name The name of the source
+         * @param text The XQuery source
+         * @return The source
+         */
+        public static Source fromString(String name, final String text) {
+            return new Source(name) {
+                @Override
+                CharStream open() {
+                    return CharStreams.fromString(text, getName());
+                }
+            };
+        }
+
+        /**
+         * A UTF-8 source file, which is mapped into memory when a worker gets to it.
+         *
+         * @param path The path of the source
+         * @return The source
+         */
+        public static Source fromPath(final Path path) {
+            return new Source(path.toString()) {
+                @Override
+                CharStream open() throws IOException {
+                    return ByteBufferCharStream.fromPath(path, StandardCharsets.UTF_8);
+                }
+            };
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * The xqDoc of a source, or the reasons there is none.
+     */
+    public static final class Result {
+        private final Source source;
+        private final String xqDoc;
+        private final List<String> errors;
+
+        Result(Source source, String xqDoc, List<String> errors) {
+            this.source = source;
+            this.xqDoc = xqDoc;
+            this.errors = Collections.unmodifiableList(errors);
+        }
+
+        /**
+         * <p>getSource.</p>
+         *
+         * @return The source
+         */
+        public Source getSource() {
+            return source;
+        }
+
+        /**
+         * <p>getXQDoc.</p>
+         *
+         * @return The pretty printed xqDoc XML, or null if the source has errors
+         */
+        public String getXQDoc() {
+            return xqDoc;
+        }
+
+        /**
+         * <p>getErrors.</p>
+         *
+         * @return The syntax errors, each as line:column: message, or the
+         *         reason the source could not be read
+         */
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        /**
+         * <p>hasErrors.</p>
+         *
+         * @return true if no xqDoc was generated
+         */
+        public boolean hasErrors() {
+            return xqDoc == null;
+        }
+    }
+}
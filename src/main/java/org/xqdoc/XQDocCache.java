@@ -0,0 +1,176 @@
+package org.xqdoc;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>XQDocCache class.</p>
+ *
+ * A persistent on-disk cache of generated xqDoc XML.  Entries are keyed by a
+ * SHA-256 hash of the tool version, the predefined function namespaces, the
+ * generation mode and the bytes of the XQuery source, so a module is only
+ * regenerated when one of them changes.  The cache is safe to use from several threads and processes since
+ * entries are written to a temporary file and then moved into place.  An
+ * entry that does not end with the end tag of the xqDoc, because it was cut
+ * short or changed outside of the cache, is not found and is written again.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public class XQDocCache {
+
+    /** The version of the xqDoc tool that is part of every cache key. */
+    public static final String TOOL_VERSION = getToolVersion();
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final String END_TAG = "</xqdoc:xqdoc>";
+
+    private final Path directory;
+
+    /**
+     * <p>Constructor for XQDocCache.</p>
+     *
+     * @param directory The directory that holds the cache entries
+     */
+    public XQDocCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * <p>getDirectory.</p>
+     *
+     * @return The directory that holds the cache entries
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Compute the cache key of an XQuery source.
+     *
+     * @param source The bytes of the XQuery source
+     * @param uriMap The predefined function namespaces used to generate the xqDoc
+     * @return The cache key as a hexadecimal string
+     */
+    public static String key(byte[] source, Map uriMap) {
+        return key(ByteBuffer.wrap(source), uriMap, "full");
+    }
+
+    /**
+     * Compute the cache key of an XQuery source.
+     *
+     * @param source The remaining bytes of the buffer are the XQuery source;
+     *               the position of the buffer is not changed
+     * @param uriMap The predefined function namespaces used to generate the xqDoc
+     * @param mode The kind of xqDoc that is generated, see {@link XQDocEngine#getMode()}
+     * @return The cache key as a hexadecimal string
+     */
+    public static String key(ByteBuffer source, Map uriMap, String mode) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new XQDocRuntimeException("SHA-256 is not available", ex);
+        }
+        digest.update(TOOL_VERSION.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        // Sort the prefixes so that the key does not depend on the iteration order of the map
+        for (Object entry : new TreeMap(uriMap).entrySet()) {
+            Map.Entry prefix = (Map.Entry) entry;
+            digest.update(String.valueOf(prefix.getKey()).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '=');
+            digest.update(String.valueOf(prefix.getValue()).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        digest.update(mode.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(source.duplicate());
+
+        byte[] hash = digest.digest();
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX[(hash[i] >> 4) & 0x0F];
+            hex[i * 2 + 1] = HEX[hash[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Find the cached xqDoc XML for a key.
+     *
+     * @param key The cache key
+     * @return The file holding the cached xqDoc XML, or null when there is none
+     *         or it is not complete
+     */
+    public Path lookup(String key) {
+        Path entry = getEntryPath(key);
+        return Files.isRegularFile(entry) && isComplete(entry) ? entry : null;
+    }
+
+    /**
+     *
+     * @param entry The file of a cache entry
+     * @return true if the entry ends with the end tag of the xqDoc
+     */
+    private static boolean isComplete(Path entry) {
+        try (SeekableByteChannel channel = Files.newByteChannel(entry)) {
+            // Only the tail is read, with room for the whitespace after the end tag
+            ByteBuffer tail = ByteBuffer.allocate(END_TAG.length() + 16);
+            channel.position(Math.max(0, channel.size() - tail.capacity()));
+            while (tail.hasRemaining()) {
+                if (channel.read(tail) < 0) {
+                    break;
+                }
+            }
+            return new String(tail.array(), 0, tail.position(), StandardCharsets.UTF_8).trim().endsWith(END_TAG);
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Store the xqDoc XML for a key.
+     *
+     * @param key The cache key
+     * @param xml The generated xqDoc XML
+     * @throws java.io.IOException a
+     */
+    public void store(String key, String xml) throws IOException {
+        Path entry = getEntryPath(key);
+        Files.createDirectories(entry.getParent());
+        Path temp = Files.createTempFile(entry.getParent(), key, ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writer.write(xml);
+            }
+            try {
+                Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private Path getEntryPath(String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key + ".xml");
+    }
+
+    private static String getToolVersion() {
+        String version = XQDocCache.class.getPackage().getImplementationVersion();
+        return version != null ? version : "development";
+    }
+}
@@ -19,10 +19,8 @@
 
 package org.xqdoc;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This class knows hows to 'parse' through a string of text that consists of a
@@ -31,16 +29,39 @@ import java.util.ArrayList;
  * experience with ANTLR grows, I will move this logic. The class does assume
  * that a xqDoc comment is separated into 'lines'.
  *
+ * The comment is scanned once, character by character.  The text of every
+ * part is appended to one buffer, and a part is only its state, its custom
+ * tag and where its text starts and ends in that buffer.  Strings are made
+ * for the parts when the comment is asked for, so an instance can be
+ * cleared and reused for the next comment without allocating.
+ *
  * @author Darin McBeath
  * @author Loren Cahlander
  * @version 2.0.0
  */
 public class XQDocComment {
 
-    // Buffer array for holding the current xqDoc comment block
-    private StringBuffer[] xqDocCommentBlock = new StringBuffer[XQDOC_STATE_LAST];
+    // Text of all the parts of the current xqDoc comment block
+    private final StringBuilder xqDocCommentText = new StringBuilder(512);
+
+    // State, custom tag and text range of each part, in the order of the comment
+    private int[] xqDocCommentPartState = new int[8];
+
+    private String[] xqDocCommentPartTag = new String[8];
+
+    private int[] xqDocCommentPartStart = new int[8];
+
+    private int[] xqDocCommentPartEnd = new int[8];
+
+    private int xqDocCommentParts = 0;
 
-    // Current xqDoc Comment State ... valid values are -1 to 9
+    // Whether the last part is still receiving text
+    private boolean xqDocCommentPartOpen = false;
+
+    // Where the tags of the table were first found on the current line, or -1
+    private final int[] xqDocCommentTagIndex = new int[XQDOC_COMMENT_TAGS.length];
+
+    // Current xqDoc Comment State ... valid values are -1 to 10
     private int xqDocCommentState = -1;
 
     private int xqDocDescriptionLeadingSpaces = 0;
@@ -51,57 +72,43 @@ public class XQDocComment {
     private int xqDocCommentStart = 0;
     private int xqDocCommentEnd = 0;
 
-    // xqDoc XML tag for comments
-    private static final String XQDOC_COMMENT_TAG = "comment";
+    // Whether the comment block has been split into its parts
+    private boolean xqDocCommentBuilt = false;
 
     // Various xqDoc Comment States and Names
     private static final int XQDOC_STATE_DESCRIPTION = 0;
 
     private static final int XQDOC_STATE_AUTHOR = 1;
 
-    private static final String XQDOC_COMMENT_AUTHOR = "@author";
-
     private static final int XQDOC_STATE_VERSION = 2;
 
-    private static final String XQDOC_COMMENT_VERSION = "@version";
-
     private static final int XQDOC_STATE_PARAM = 3;
 
-    private static final String XQDOC_COMMENT_PARAM = "@param";
-
     private static final int XQDOC_STATE_RETURN = 4;
 
-    private static final String XQDOC_COMMENT_RETURN = "@return";
-
     private static final int XQDOC_STATE_ERROR = 5;
 
-    private static final String XQDOC_COMMENT_ERROR = "@error";
-
     private static final int XQDOC_STATE_DEPRECATED = 6;
 
-    private static final String XQDOC_COMMENT_DEPRECATED = "@deprecated";
-
     private static final int XQDOC_STATE_SEE = 7;
 
-    private static final String XQDOC_COMMENT_SEE = "@see";
-
     private static final int XQDOC_STATE_SINCE = 8;
 
-    private static final String XQDOC_COMMENT_SINCE = "@since";
-
     private static final int XQDOC_STATE_FORMAT = 9;
 
-    private static final String XQDOC_COMMENT_FORMAT = "@format";
-
     private static final int XQDOC_STATE_CUSTOM = 10;
 
-    private static final String XQDOC_COMMENT_CUSTOM = "@custom";
-
     private static final int XQDOC_STATE_LAST = 11;
 
-    private static final String BEGIN_XQDOC_COMMENT = "(:~";
+    // The tags in the order they are tried on a line, and the state each one
+    // begins.  A line with several tags begins the state of the first tag in
+    // this table, not the first tag on the line.
+    private static final String[] XQDOC_COMMENT_TAGS = { "@param", "@return", "@error",
+            "@deprecated", "@see", "@since", "@format", "@custom", "@author", "@version" };
 
-    private static final String END_XQDOC_COMMENT = ":)";
+    private static final int[] XQDOC_COMMENT_TAG_STATE = { XQDOC_STATE_PARAM, XQDOC_STATE_RETURN,
+            XQDOC_STATE_ERROR, XQDOC_STATE_DEPRECATED, XQDOC_STATE_SEE, XQDOC_STATE_SINCE,
+            XQDOC_STATE_FORMAT, XQDOC_STATE_CUSTOM, XQDOC_STATE_AUTHOR, XQDOC_STATE_VERSION };
 
     // The order of the following tags must match the order of the values
     // assigned to the various xqDoc comment states.
@@ -117,9 +124,10 @@ public class XQDocComment {
         xqDocCommentString = null;
         xqDocDescriptionLeadingSpaces = 0;
         xqDocCommentState = -1;
-        for (int i = 0; i < xqDocCommentBlock.length; i++) {
-            xqDocCommentBlock[i] = new StringBuffer(512);
-        }
+        xqDocCommentBuilt = false;
+        xqDocCommentText.setLength(0);
+        xqDocCommentParts = 0;
+        xqDocCommentPartOpen = false;
     }
 
     /**
@@ -139,250 +147,318 @@ public class XQDocComment {
         xqDocCommentStart = start +1;
         xqDocCommentEnd = end +1;
         xqDocDescriptionLeadingSpaces = 0;
+        xqDocCommentBuilt = false;
     }
 
     /**
-     * Loop through the array of string buffers for the xqDoc comment block and
-     * construct a complete comment block.
+     * Construct the complete xqDoc comment element from the parts of the
+     * comment block.
      *
      * @return a {@link java.lang.StringBuilder} object.
      */
     public StringBuilder getXML() {
         StringBuilder sb = new StringBuilder(1024);
-        if (xqDocCommentString != null) {
-            buildXQDocCommentSection();
-            sb.append(XQDocXML.buildBeginTagWithStartAndEndAttributes(XQDOC_COMMENT_TAG, xqDocCommentStart, xqDocCommentEnd));
-            for (int i = 0; i < xqDocCommentBlock.length; i++) {
-                sb.append(xqDocCommentBlock[i]);
-            }
-            sb.append(XQDocXML.buildEndTag(XQDOC_COMMENT_TAG));
+        XQDocModel.Comment comment = getComment();
+        if (comment != null) {
+            XQDocXMLSerializer.writeComment(new XQDocWriter(sb), comment);
+            sb.setLength(sb.length() - 1);
         }
         return sb;
     }
 
     /**
+     * Split the xqDoc comment block into its description and tagged parts.
+     *
+     * @return The comment for an {@link XQDocModel}, or null if no comment is set
+     */
+    public XQDocModel.Comment getComment() {
+        if (xqDocCommentString == null) {
+            return null;
+        }
+        buildXQDocCommentSection();
+        List<XQDocModel.CommentEntry> entries = new ArrayList<>(xqDocCommentParts);
+        for (int state = 0; state < XQDOC_STATE_LAST; state++) {
+            for (int i = 0; i < xqDocCommentParts; i++) {
+                if (xqDocCommentPartState[i] == state) {
+                    entries.add(new XQDocModel.CommentEntry(XQDOC_STATE_TAG[state], xqDocCommentPartTag[i],
+                            xqDocCommentText.substring(xqDocCommentPartStart[i], xqDocCommentPartEnd[i])));
+                }
+            }
+        }
+        return new XQDocModel.Comment(xqDocCommentStart, xqDocCommentEnd, entries);
+    }
+
+    /**
+     * The characters that <code>\s</code> matches in a regular expression.
      *
-     * @param text
-     *            The String to test
+     * @param c The character to test
+     * @return Whether the character is white space
+     */
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * The characters other than a line feed or a carriage return that end a
+     * line for <code>.</code> and <code>$</code> in a regular expression.
+     *
+     * @param c The character to test
+     * @return Whether the character is a next line, line or paragraph separator
+     */
+    private static boolean isLineSeparator(char c) {
+        return c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     *
+     * @param from
+     *            The start of the text in the comment
+     * @param to
+     *            The end of the text in the comment
      * @return
      *            The number of leading spaces of the text
      */
-    private int leadingSpacesCount(String text) {
-        String regex = "^\\s+";
-        String trimmedString1 = text.replaceAll(regex, "");
-        return text.length() - trimmedString1.length();
+    private int leadingSpacesCount(int from, int to) {
+        int i = from;
+        while (i < to && isSpace(xqDocCommentString.charAt(i))) {
+            i++;
+        }
+        return i - from;
     }
 
     /**
-     * Append the current comment line to the comment buffer associated with the
-     * current xqDoc comment state.
+     * Append the text after a tag to the part of the current xqDoc comment
+     * state, trimmed of white space.
      *
-     * @param line
-     *            Current line from module containing a xqDoc comment
-     * @param index
-     *            Current xqDoc comment state
+     * @param from
+     *            Where the text after the tag starts in the comment
+     * @param to
+     *            Where the text ends, at the end of the line or the end of
+     *            the comment block
      */
-    private void xqDocCommentStateConcat(String line, int index) {
-        int last = line.indexOf(END_XQDOC_COMMENT);
-        if (last == -1) {
-            last = line.length();
+    private void xqDocCommentStateConcat(int from, int to) {
+        if (from >= to) {
+            xqDocDescriptionLeadingSpaces = 0;
+            return;
         }
-        if (index == -1) {
-            int i;
-            if ((i = line.indexOf(BEGIN_XQDOC_COMMENT)) > -1) {
-                String trimmedLine = line.substring(i + BEGIN_XQDOC_COMMENT.length(), last);
-                int compareSize = XQDOC_STATE_TAG[xqDocCommentState].length() + 8;
-                if (xqDocCommentBlock[xqDocCommentState].length() > compareSize) {
-                    xqDocDescriptionLeadingSpaces = leadingSpacesCount(trimmedLine);
-                    trimmedLine = trimmedLine.substring(xqDocDescriptionLeadingSpaces);
-                }
-                xqDocCommentBlock[xqDocCommentState].append(trimmedLine);
-            } else if (line.matches("^\\s*:.*")) {
-                i = line.indexOf(':');
-                if (i < last) {
-                    String trimmedLine = line.substring(i + 1, last);
-                    int compareSize = XQDOC_STATE_TAG[xqDocCommentState].length() + 8;
-                    if (xqDocCommentBlock[xqDocCommentState].length() > compareSize) {
-                        xqDocCommentBlock[xqDocCommentState].append("\n");
-                    } else {
-                        xqDocDescriptionLeadingSpaces = leadingSpacesCount(trimmedLine);
-                    }
-                    trimmedLine = trimmedLine.length() >= xqDocDescriptionLeadingSpaces ? trimmedLine.substring(xqDocDescriptionLeadingSpaces) : trimmedLine;
-                    xqDocCommentBlock[xqDocCommentState].append(trimmedLine);
-                }
-                // Get up to the closing comment
-                else if (last != line.length()) {
-                    int compareSize = XQDOC_STATE_TAG[xqDocCommentState].length() + 8;
-                    if (xqDocCommentBlock[xqDocCommentState].length() > compareSize) {
-                        xqDocCommentBlock[xqDocCommentState].append("\n");
-                    }
-                    xqDocCommentBlock[xqDocCommentState].append(line.substring(0, last));
-                }
-            } else {
-                int compareSize = XQDOC_STATE_TAG[xqDocCommentState].length() + 8;
-                if (xqDocCommentBlock[xqDocCommentState].length() > compareSize) {
-                    xqDocCommentBlock[xqDocCommentState].append("\n");
-                }
-                xqDocCommentBlock[xqDocCommentState].append(line.substring(0, last));
-            }
-        } else {
-            String trimmedLine = line.substring(index, last);
-            xqDocDescriptionLeadingSpaces = leadingSpacesCount(trimmedLine);
-            xqDocCommentBlock[xqDocCommentState].append(trimmedLine.trim());
+        xqDocDescriptionLeadingSpaces = leadingSpacesCount(from, to);
+        while (from < to && xqDocCommentString.charAt(from) <= ' ') {
+            from++;
+        }
+        while (to > from && xqDocCommentString.charAt(to - 1) <= ' ') {
+            to--;
         }
+        xqDocCommentText.append(xqDocCommentString, from, to);
     }
 
     /**
-     * Begin a new comment within the current xqDoc comment state by appending
-     * this comment to the buffer associated with the current xqDoc comment
-     * state.
+     * Begin a new part within the current xqDoc comment state.
      *
      * @param tag
-     *              The tag following the @ in the comment block
+     *              The tag following the @custom: in the comment block, or null
      */
     private void xqDocCommentStateBegin(String tag) {
-        if (tag != null) {
-            xqDocCommentBlock[xqDocCommentState].append(XQDocXML
-                    .buildBeginTagWithTagAttribute(XQDOC_STATE_TAG[xqDocCommentState], tag));
-        } else {
-            xqDocCommentBlock[xqDocCommentState].append(XQDocXML
-                    .buildBeginTag(XQDOC_STATE_TAG[xqDocCommentState]));
+        if (xqDocCommentParts == xqDocCommentPartState.length) {
+            int length = xqDocCommentParts * 2;
+            int[] state = new int[length];
+            String[] tags = new String[length];
+            int[] start = new int[length];
+            int[] end = new int[length];
+            System.arraycopy(xqDocCommentPartState, 0, state, 0, xqDocCommentParts);
+            System.arraycopy(xqDocCommentPartTag, 0, tags, 0, xqDocCommentParts);
+            System.arraycopy(xqDocCommentPartStart, 0, start, 0, xqDocCommentParts);
+            System.arraycopy(xqDocCommentPartEnd, 0, end, 0, xqDocCommentParts);
+            xqDocCommentPartState = state;
+            xqDocCommentPartTag = tags;
+            xqDocCommentPartStart = start;
+            xqDocCommentPartEnd = end;
         }
-        xqDocCommentBlock[xqDocCommentState].append("<![CDATA[");
+        xqDocCommentPartState[xqDocCommentParts] = xqDocCommentState;
+        xqDocCommentPartTag[xqDocCommentParts] = tag;
+        xqDocCommentPartStart[xqDocCommentParts] = xqDocCommentText.length();
+        xqDocCommentPartEnd[xqDocCommentParts] = xqDocCommentText.length();
+        xqDocCommentParts++;
+        xqDocCommentPartOpen = true;
     }
 
     /**
-     * Close a comment within the current xqDoc comment state by appending this
-     * comment to the buffer associated with the current xqDoc comment state.
-     *
+     * Close the open part, trimming the white space at the end of its text.
      */
     private void xqDocCommentStateClose() {
-        String line = xqDocCommentBlock[xqDocCommentState].toString().replaceFirst("\\s++$", "");
-        xqDocCommentBlock[xqDocCommentState] = new StringBuffer();
-        xqDocCommentBlock[xqDocCommentState].append(line);
-        xqDocCommentBlock[xqDocCommentState].append("]]>");
-        xqDocCommentBlock[xqDocCommentState].append(XQDocXML
-                .buildEndTag(XQDOC_STATE_TAG[xqDocCommentState]));
+        if (!xqDocCommentPartOpen) {
+            return;
+        }
+        int start = xqDocCommentPartStart[xqDocCommentParts - 1];
+        int end = xqDocCommentText.length();
+        while (end > start && isSpace(xqDocCommentText.charAt(end - 1))) {
+            end--;
+        }
+        if (end == xqDocCommentText.length() && end > start && isLineSeparator(xqDocCommentText.charAt(end - 1))) {
+            // As "\\s++$" did, drop the white space in front of a separator that ends the text
+            int separator = end - 1;
+            int space = separator;
+            while (space > start && isSpace(xqDocCommentText.charAt(space - 1))) {
+                space--;
+            }
+            xqDocCommentText.delete(space, separator);
+            end -= separator - space;
+        }
+        xqDocCommentText.setLength(end);
+        xqDocCommentPartEnd[xqDocCommentParts - 1] = end;
+        xqDocCommentPartOpen = false;
     }
 
     /**
-     * Process the xqDoc comment block. This includes converting the String of
-     * xqDoc comment (set by the parser) into a list of 'lines'. Each line will
-     * then be iteratively processed by invoking processXQDocLine.
-     *
-     * @throws XQDocRuntimeException
-     *             Problems processing the xqDoc comment
+     * Process the xqDoc comment block, one line at a time.  A line ends at a
+     * line feed, a carriage return or both, as with
+     * {@link java.io.BufferedReader#readLine()}.
      */
     private void buildXQDocCommentSection()  {
-        try {
-            if (xqDocCommentString == null)
-                return;
-
-            BufferedReader br = new BufferedReader(new StringReader(
-                    xqDocCommentString));
-            String line = null;
-            ArrayList lines = new ArrayList();
-            while ((line = br.readLine()) != null) {
-                lines.add(line);
-            }
-            br.close();
-
-            for (int i = 0; i < lines.size(); i++) {
-                processXQDocLine((String) lines.get(i));
+        if (xqDocCommentString == null || xqDocCommentBuilt)
+            return;
+        xqDocCommentBuilt = true;
+        xqDocCommentState = -1;
+        xqDocDescriptionLeadingSpaces = 0;
+        xqDocCommentText.setLength(0);
+        xqDocCommentParts = 0;
+        xqDocCommentPartOpen = false;
+
+        int length = xqDocCommentString.length();
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = processXQDocLine(lineStart, length);
+            lineStart = lineEnd + 1;
+            if (lineEnd + 1 < length && xqDocCommentString.charAt(lineEnd) == '\r'
+                    && xqDocCommentString.charAt(lineEnd + 1) == '\n') {
+                lineStart++;
             }
-        } catch (IOException ex) {
-            throw new XQDocRuntimeException(
-                    "Problems processing the comment block.", ex);
         }
+        xqDocCommentStateClose();
     }
 
     /**
-     * Process the line and determine the 'state' of the comment. In other
-     * words, is this for an 'author', 'version', 'description', etc. Then,
-     * append the comment information to the correct buffer (depending on the
-     * state).
+     * Scan the line once for the tags, the start and the end of the comment,
+     * and its first colon.  Then determine the 'state' of the comment. In
+     * other words, is this for an 'author', 'version', 'description', etc.
+     * Then, append the comment information to the part of that state.
      *
-     * @param line
-     *            Current line of xqDoc comment
+     * @param lineStart
+     *            Where the current line of xqDoc comment starts
+     * @param length
+     *            The length of the comment block
+     * @return Where the line ends, at its line terminator or the end of the block
      */
-    private void processXQDocLine(String line) {
-        int index;
-        if ((index = line.indexOf(XQDOC_COMMENT_PARAM)) > -1) {
-            xqDocCommentStateClose();
-            xqDocCommentState = XQDOC_STATE_PARAM;
-            xqDocCommentStateBegin(null);
-            xqDocCommentStateConcat(line, index + XQDOC_COMMENT_PARAM.length());
-        } else if ((index = line.indexOf(XQDOC_COMMENT_RETURN)) > -1) {
-            xqDocCommentStateClose();
-            xqDocCommentState = XQDOC_STATE_RETURN;
-            xqDocCommentStateBegin(null);
-            xqDocCommentStateConcat(line, index + XQDOC_COMMENT_RETURN.length());
-        } else if ((index = line.indexOf(XQDOC_COMMENT_ERROR)) > -1) {
-            xqDocCommentStateClose();
-            xqDocCommentState = XQDOC_STATE_ERROR;
-            xqDocCommentStateBegin(null);
-            xqDocCommentStateConcat(line, index + XQDOC_COMMENT_ERROR.length());
-        } else if ((index = line.indexOf(XQDOC_COMMENT_DEPRECATED)) > -1) {
-            xqDocCommentStateClose();
-            xqDocCommentState = XQDOC_STATE_DEPRECATED;
-            xqDocCommentStateBegin(null);
-            xqDocCommentStateConcat(line, index
-                    + XQDOC_COMMENT_DEPRECATED.length());
-        } else if ((index = line.indexOf(XQDOC_COMMENT_SEE)) > -1) {
-            xqDocCommentStateClose();
-            xqDocCommentState = XQDOC_STATE_SEE;
-            xqDocCommentStateBegin(null);
-            xqDocCommentStateConcat(line, index + XQDOC_COMMENT_SEE.length());
-        } else if ((index = line.indexOf(XQDOC_COMMENT_SINCE)) > -1) {
-            xqDocCommentStateClose();
-            xqDocCommentState = XQDOC_STATE_SINCE;
-            xqDocCommentStateBegin(null);
-            xqDocCommentStateConcat(line, index + XQDOC_COMMENT_SINCE.length());
-        } else if ((index = line.indexOf(XQDOC_COMMENT_FORMAT)) > -1) {
-            xqDocCommentStateClose();
-            xqDocCommentState = XQDOC_STATE_FORMAT;
-            xqDocCommentStateBegin(null);
-            xqDocCommentStateConcat(line, index + XQDOC_COMMENT_FORMAT.length());
-        } else if ((index = line.indexOf(XQDOC_COMMENT_CUSTOM)) > -1) {
+    private int processXQDocLine(int lineStart, int length) {
+        String comment = xqDocCommentString;
+        int[] tagIndex = xqDocCommentTagIndex;
+        for (int t = 0; t < tagIndex.length; t++) {
+            tagIndex[t] = -1;
+        }
+        int firstNonSpace = -1;
+        int colon = -1;
+        int begin = -1;
+        int end = -1;
+        // A line with a NEL or a line or paragraph separator never matched "^\\s*:.*"
+        boolean separator = false;
+
+        int lineEnd = lineStart;
+        for (; lineEnd < length; lineEnd++) {
+            char c = comment.charAt(lineEnd);
+            if (c == '\n' || c == '\r') {
+                break;
+            }
+            if (firstNonSpace == -1 && !isSpace(c)) {
+                firstNonSpace = lineEnd;
+            }
+            switch (c) {
+                case ':':
+                    if (colon == -1) {
+                        colon = lineEnd;
+                    }
+                    if (end == -1 && lineEnd + 1 < length && comment.charAt(lineEnd + 1) == ')') {
+                        end = lineEnd;
+                    }
+                    break;
+                case '(':
+                    if (begin == -1 && lineEnd + 2 < length && comment.charAt(lineEnd + 1) == ':'
+                            && comment.charAt(lineEnd + 2) == '~') {
+                        begin = lineEnd;
+                    }
+                    break;
+                case '@':
+                    for (int t = 0; t < XQDOC_COMMENT_TAGS.length; t++) {
+                        if (tagIndex[t] == -1 && comment.startsWith(XQDOC_COMMENT_TAGS[t], lineEnd)) {
+                            tagIndex[t] = lineEnd;
+                        }
+                    }
+                    break;
+                default:
+                    if (isLineSeparator(c)) {
+                        separator = true;
+                    }
+                    break;
+            }
+        }
+        int last = end == -1 ? lineEnd : end;
+
+        int tag = 0;
+        while (tag < tagIndex.length && tagIndex[tag] == -1) {
+            tag++;
+        }
+        if (tag < tagIndex.length) {
             xqDocCommentStateClose();
-            xqDocCommentState = XQDOC_STATE_CUSTOM;
-            int offset = index + XQDOC_COMMENT_CUSTOM.length();
-            String customString = line.substring(offset);
-            String tag = null;
-            if (customString.startsWith(":")) {
+            xqDocCommentState = XQDOC_COMMENT_TAG_STATE[tag];
+            int offset = tagIndex[tag] + XQDOC_COMMENT_TAGS[tag].length();
+            // A plain @custom has an empty tag, as the tag attribute is required
+            String customTag = xqDocCommentState == XQDOC_STATE_CUSTOM ? "" : null;
+            if (xqDocCommentState == XQDOC_STATE_CUSTOM && offset < lineEnd && comment.charAt(offset) == ':') {
                 offset++;
-                customString = customString.substring(1);
-                if (customString.contains(" ")) {
-                    tag = customString.substring(0, customString.indexOf(' '));
-                } else {
-                    tag = customString;
+                int space = comment.indexOf(' ', offset);
+                if (space == -1 || space > lineEnd) {
+                    space = lineEnd;
                 }
-                offset += tag.length();
+                customTag = comment.substring(offset, space);
+                offset = space;
             }
-            xqDocCommentStateBegin(tag);
-            xqDocCommentStateConcat(line, offset);
-        } else if ((index = line.indexOf(XQDOC_COMMENT_AUTHOR)) > -1) {
-            xqDocCommentStateClose();
-            xqDocCommentState = XQDOC_STATE_AUTHOR;
-            xqDocCommentStateBegin(null);
-            xqDocCommentStateConcat(line, index + XQDOC_COMMENT_AUTHOR.length());
-        } else if ((index = line.indexOf(XQDOC_COMMENT_VERSION)) > -1) {
-            xqDocCommentStateClose();
-            xqDocCommentState = XQDOC_STATE_VERSION;
-            xqDocCommentStateBegin(null);
-            xqDocCommentStateConcat(line, index
-                    + XQDOC_COMMENT_VERSION.length());
+            xqDocCommentStateBegin(customTag);
+            xqDocCommentStateConcat(offset, last);
         } else {
             if (xqDocCommentState == -1) {
                 xqDocCommentState = XQDOC_STATE_DESCRIPTION;
                 xqDocCommentStateBegin(null);
+            } else if (!xqDocCommentPartOpen) {
+                // Text after a nested comment continues the part it closed
+                xqDocCommentPartOpen = true;
             }
             // Concatenate to previous state
-            xqDocCommentStateConcat(line, -1);
+            if (begin > -1) {
+                int from = begin + 3;
+                if (from < last) {
+                    xqDocDescriptionLeadingSpaces = leadingSpacesCount(from, last);
+                    xqDocCommentText.append(comment, from + xqDocDescriptionLeadingSpaces, last);
+                } else {
+                    xqDocDescriptionLeadingSpaces = 0;
+                }
+            } else if (firstNonSpace > -1 && comment.charAt(firstNonSpace) == ':' && !separator) {
+                if (colon < last) {
+                    int from = colon + 1;
+                    if (last - from >= xqDocDescriptionLeadingSpaces) {
+                        from += xqDocDescriptionLeadingSpaces;
+                    }
+                    xqDocCommentText.append('\n').append(comment, from, last);
+                }
+                // Get up to the closing comment
+                else if (last != lineEnd) {
+                    xqDocCommentText.append('\n').append(comment, lineStart, last);
+                }
+            } else {
+                xqDocCommentText.append('\n').append(comment, lineStart, last);
+            }
         }
 
-        if (line.indexOf(END_XQDOC_COMMENT) > -1) {
+        if (end > -1) {
             xqDocCommentStateClose();
         }
+        return lineEnd;
     }
 }
@@ -0,0 +1,148 @@
+package org.xqdoc;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>XQDocCommentCache class.</p>
+ *
+ * A bounded cache of the xqDoc comment blocks that a batch keeps seeing:
+ * license headers, boilerplate author and version blocks and the comments
+ * of generated functions.  A comment is keyed on its text alone, and is
+ * split into its parts and rendered as xqDoc XML the first time it is seen.
+ * Every later occurrence shares those parts and that XML, and only gets
+ * the start and end of its own position.
+ *
+ * Like the {@link DFACache}, the cache is replaced by an empty one when it
+ * holds more comments than allowed, so a run over arbitrary sources never
+ * needs a lock and never grows past its ceiling.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public class XQDocCommentCache {
+
+    /** The default maximum number of cached comments. */
+    public static final int DEFAULT_MAX_COMMENTS = 4096;
+
+    private final int maxComments;
+    private final AtomicReference<ConcurrentHashMap<String, XQDocModel.Comment>> current = new AtomicReference<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicLong clears = new AtomicLong();
+
+    /**
+     * <p>Constructor for XQDocCommentCache with the default ceiling.</p>
+     */
+    public XQDocCommentCache() {
+        this(DEFAULT_MAX_COMMENTS);
+    }
+
+    /**
+     * <p>Constructor for XQDocCommentCache.</p>
+     *
+     * @param maxComments The number of comments above which the cache is cleared
+     */
+    public XQDocCommentCache(int maxComments) {
+        this.maxComments = maxComments;
+        this.current.set(new ConcurrentHashMap<String, XQDocModel.Comment>());
+    }
+
+    /**
+     * Get the comment for the text of an xqDoc comment block, splitting it
+     * with the scanner only if the text is not cached.
+     *
+     * @param text The xqDoc comment block
+     * @param start The character location of the start of the comment
+     * @param end The character location of the end of the comment
+     * @param scanner The scanner of the calling thread, used when the text is not cached
+     * @return The comment at the given position
+     */
+    public XQDocModel.Comment getComment(String text, int start, int end, XQDocComment scanner) {
+        ConcurrentHashMap<String, XQDocModel.Comment> comments = current.get();
+        XQDocModel.Comment cached = comments.get(text);
+        if (cached != null) {
+            hits.increment();
+            return cached.at(start + 1, end + 1);
+        }
+        misses.increment();
+        scanner.clear();
+        scanner.setComment(text, start, end);
+        XQDocModel.Comment comment = scanner.getComment();
+        StringBuilder xml = new StringBuilder();
+        XQDocXMLSerializer.writeCommentEntries(new XQDocWriter(xml), comment.getEntries());
+        comment = comment.withEntriesXML(xml.toString());
+        if (comments.size() >= maxComments) {
+            if (current.compareAndSet(comments, new ConcurrentHashMap<String, XQDocModel.Comment>())) {
+                clears.incrementAndGet();
+            }
+            comments = current.get();
+        }
+        comments.putIfAbsent(text, comment);
+        return comment;
+    }
+
+    /**
+     * Drop every cached comment.
+     */
+    public void clear() {
+        current.set(new ConcurrentHashMap<String, XQDocModel.Comment>());
+        clears.incrementAndGet();
+    }
+
+    /**
+     * <p>getSize.</p>
+     *
+     * @return The number of cached comments
+     */
+    public int getSize() {
+        return current.get().size();
+    }
+
+    /**
+     * <p>getHitCount.</p>
+     *
+     * @return The number of comments that were found in the cache
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * <p>getMissCount.</p>
+     *
+     * @return The number of comments that had to be split and rendered
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * <p>getHitRate.</p>
+     *
+     * @return The fraction of comments found in the cache, or 0 before the first comment
+     */
+    public double getHitRate() {
+        long found = hits.sum();
+        long total = found + misses.sum();
+        return total == 0 ? 0.0 : (double) found / total;
+    }
+
+    /**
+     * <p>getClearCount.</p>
+     *
+     * @return The number of times the cache has been cleared
+     */
+    public long getClearCount() {
+        return clears.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "Comment cache: " + getSize() + " comments, "
+                + String.format("%.1f", getHitRate() * 100) + "% hit rate, " + getClearCount() + " clears";
+    }
+}
@@ -0,0 +1,604 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.ANTLRErrorListener;
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ConsoleErrorListener;
+import org.antlr.v4.runtime.ListTokenSource;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.WritableToken;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNodeImpl;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>XQDocEngine class.</p>
+ *
+ * Generates the xqDoc XML for XQuery sources using a fixed map of predefined
+ * function namespaces.  The engine keeps no per-document state, so a single
+ * instance can be shared by all of the worker threads of a batch run.  Each
+ * thread gets its own lexer, token stream and parser, which are reset and
+ * reused for every document the thread processes, and which let go of the
+ * document when it is done.
+ *
+ * Modules are parsed in two stages.  The parser first runs with the cheaper
+ * SLL prediction mode and an error strategy that bails out on the first
+ * syntax error.  Only when that fails is the module parsed again with full LL
+ * prediction and the normal error reporting and recovery, so a module with
+ * real syntax errors gets exactly the same errors and parse tree as before.
+ *
+ * By default the parser predicts with the DFA cache that the generated parser
+ * shares through static fields.  Long-lived processes can give the engine a
+ * {@link DFACache} to keep that cache bounded.
+ *
+ * In signatures-only mode the parser only sees the prolog declarations; the
+ * function bodies, variable values and query body are skipped by a
+ * {@link SignatureTokenSource}.  The xqDoc then has no invoked functions or
+ * referenced variables, and the bodies are only included as raw text.  The
+ * quick index mode goes one step further and never runs the parser at all;
+ * see {@link XQDocScanner}.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public class XQDocEngine {
+
+    private static final Logger LOGGER = Logger.getLogger(XQDocEngine.class.getName());
+
+    private final Map uriMap;
+
+    private final DFACache dfaCache;
+
+    private final XQDocScanner scanner;
+
+    private final XQDocStreamer streamer;
+
+    private final ThreadLocal<Recognizers> recognizers = new ThreadLocal<Recognizers>() {
+        @Override
+        protected Recognizers initialValue() {
+            return new Recognizers();
+        }
+    };
+
+    private boolean signaturesOnly = false;
+
+    private boolean quickIndex = false;
+
+    private XQDocCommentCache commentCache = null;
+
+    private final AtomicLong sllParses = new AtomicLong();
+
+    private final AtomicLong llParses = new AtomicLong();
+
+    /**
+     * <p>Constructor for XQDocEngine.</p>
+     *
+     * @param uriMap The predefined function namespaces.  The map is only read
+     *               by the engine and must not be modified while it is in use.
+     */
+    public XQDocEngine(Map uriMap) {
+        this(uriMap, null);
+    }
+
+    /**
+     * <p>Constructor for XQDocEngine.</p>
+     *
+     * @param uriMap The predefined function namespaces.  The map is only read
+     *               by the engine and must not be modified while it is in use.
+     * @param dfaCache The bounded DFA cache the parser predicts with, or null
+     *                 to use the static DFA cache of the generated parser
+     */
+    public XQDocEngine(Map uriMap, DFACache dfaCache) {
+        this.uriMap = uriMap;
+        this.dfaCache = dfaCache;
+        this.scanner = new XQDocScanner(uriMap);
+        this.streamer = new XQDocStreamer(uriMap);
+    }
+
+    /**
+     * <p>getUriMap.</p>
+     *
+     * @return The predefined function namespaces used by this engine
+     */
+    public Map getUriMap() {
+        return uriMap;
+    }
+
+    /**
+     * <p>getDFACache.</p>
+     *
+     * @return The bounded DFA cache of this engine, or null when it uses the
+     *         static DFA cache of the generated parser
+     */
+    public DFACache getDFACache() {
+        return dfaCache;
+    }
+
+    /**
+     * Set whether only the prolog declarations are parsed.  This must be set
+     * before the engine is shared between threads.
+     *
+     * @param bool true to skip the function bodies, variable values and query body
+     */
+    public void setSignaturesOnly(boolean bool) {
+        this.signaturesOnly = bool;
+    }
+
+    /**
+     * <p>getSignaturesOnly.</p>
+     *
+     * @return true if only the prolog declarations are parsed
+     */
+    public boolean getSignaturesOnly() {
+        return signaturesOnly;
+    }
+
+    /**
+     * Set whether a quick index is built from the lexer tokens instead of
+     * parsing the module.  This must be set before the engine is shared
+     * between threads.
+     *
+     * @param bool true to only run the lexer
+     */
+    public void setQuickIndex(boolean bool) {
+        this.quickIndex = bool;
+    }
+
+    /**
+     * <p>getQuickIndex.</p>
+     *
+     * @return true if a quick index is built from the lexer tokens
+     */
+    public boolean getQuickIndex() {
+        return quickIndex;
+    }
+
+    /**
+     * Set the cache of the comment blocks that repeat between modules.  This
+     * must be set before the engine is shared between threads.
+     *
+     * @param commentCache The comment cache, or null to split every comment
+     */
+    public void setCommentCache(XQDocCommentCache commentCache) {
+        this.commentCache = commentCache;
+    }
+
+    /**
+     * <p>getCommentCache.</p>
+     *
+     * @return The comment cache, or null if every comment is split
+     */
+    public XQDocCommentCache getCommentCache() {
+        return commentCache;
+    }
+
+    /**
+     * <p>getMode.</p>
+     *
+     * @return The name of the kind of xqDoc the engine generates, which is
+     *         "quick-index", "signatures" or "full"
+     */
+    public String getMode() {
+        if (quickIndex) {
+            return "quick-index";
+        }
+        return signaturesOnly ? "signatures" : "full";
+    }
+
+    /**
+     * Lex, parse and visit an XQuery source and return the raw xqDoc XML.
+     *
+     * @param input The XQuery source
+     * @param errorListener The listener that receives the syntax errors of the
+     *                      source, or null to keep the ANTLR console listener
+     * @return The xqDoc XML as built by the {@link XQueryVisitor}
+     */
+    public StringBuilder generate(CharStream input, ANTLRErrorListener errorListener) {
+        StringBuilder buffer = new StringBuilder();
+        generate(input, errorListener, new XQDocWriter(buffer), null);
+        return buffer;
+    }
+
+    /**
+     * Lex, parse and visit an XQuery source and write the raw xqDoc XML.  The
+     * sections of a library module are written to the writer while its parse
+     * tree is visited, without collecting the document in memory first.
+     *
+     * @param input The XQuery source
+     * @param errorListener The listener that receives the syntax errors of the
+     *                      source, or null to keep the ANTLR console listener
+     * @param output Receives the xqDoc XML as built by the {@link XQueryVisitor}
+     */
+    public void generate(CharStream input, ANTLRErrorListener errorListener, Writer output) {
+        generate(input, errorListener, new XQDocWriter(output), null);
+    }
+
+    /**
+     * Lex, parse and visit an XQuery source into an {@link XQDocModel}, which
+     * any number of {@link XQDocSerializer}s can render without parsing the
+     * source again.  The model is always filled from the parse tree, so the
+     * quick index setting is not used.
+     *
+     * @param input The XQuery source
+     * @param errorListener The listener that receives the syntax errors of the
+     *                      source, or null to keep the ANTLR console listener
+     * @return The documentation of the module
+     */
+    public XQDocModel buildModel(CharStream input, ANTLRErrorListener errorListener) {
+        XQDocModel model = new XQDocModel();
+        generate(input, errorListener, XQDocWriter.discarding(), model);
+        return model;
+    }
+
+    /**
+     *
+     * @param input The XQuery source
+     * @param errorListener The listener for syntax errors, or null for the ANTLR console listener
+     * @param output Receives the xqDoc XML
+     * @param model Receives the documentation of the module, or null
+     */
+    private void generate(CharStream input, ANTLRErrorListener errorListener, XQDocWriter output, XQDocModel model) {
+        Recognizers threadRecognizers = recognizers.get();
+        try {
+            if (quickIndex && model == null) {
+                output.append(scanner.scan(threadRecognizers.lex(input, errorListener)));
+                output.flush();
+                return;
+            }
+            if (signaturesOnly) {
+                int index = input.index();
+                SyntaxErrorCollector errors = new SyntaxErrorCollector();
+                XQueryLexer markupLexer = threadRecognizers.lex(input, errors);
+                XQueryParser.ModuleContext fileContext = parse(threadRecognizers.parse(new SignatureTokenSource(markupLexer)), errors);
+                if (!errors.hasErrors()) {
+                    visit(fileContext, output, model);
+                    return;
+                }
+                // The skeleton did not parse, so parse the whole module to report its errors
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine(input.getSourceName() + ": signatures did not parse, parsing the whole module");
+                }
+                input.seek(index);
+            }
+            XQueryLexer markupLexer = threadRecognizers.lex(input, errorListener);
+            MainModuleSplitter splitter = new MainModuleSplitter(markupLexer);
+            CommonTokenStream tokens = threadRecognizers.fill(splitter);
+            if (!splitter.getBoundaries().isEmpty()) {
+                XQueryParser.ModuleContext fileContext = parseChain(tokens, splitter.getBoundaries());
+                if (fileContext != null) {
+                    visit(fileContext, output, model);
+                    return;
+                }
+                // A main module did not parse on its own, so parse the whole file, which also reports its errors
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine(input.getSourceName() + ": chained main modules did not parse, parsing the whole file");
+                }
+            }
+            visit(parse(threadRecognizers.parse(), errorListener), output, model);
+        } finally {
+            threadRecognizers.release();
+        }
+    }
+
+    /**
+     *
+     * @param markupParser The parser positioned at the start of the module
+     * @param errorListener The listener for syntax errors, or null for the ANTLR console listener
+     * @return The parse tree of the module
+     */
+    private XQueryParser.ModuleContext parse(XQueryParser markupParser, ANTLRErrorListener errorListener) {
+        if (dfaCache != null) {
+            dfaCache.install(markupParser);
+        }
+        try {
+            XQueryParser.ModuleContext context = (XQueryParser.ModuleContext) parseModule(markupParser, errorListener, false);
+            if (markupParser.getInterpreter().getPredictionMode() == PredictionMode.LL) {
+                llParses.incrementAndGet();
+            } else {
+                sllParses.incrementAndGet();
+            }
+            return context;
+        } finally {
+            if (dfaCache != null) {
+                dfaCache.parsed();
+            }
+        }
+    }
+
+    /**
+     * Parse the main modules of a file that chains several of them on the
+     * threads of the common fork/join pool, and graft them into the parse
+     * tree of the first one in source order, as if the file had been parsed
+     * in one go.
+     *
+     * @param tokens Every token of the file
+     * @param boundaries The semicolons between the main modules
+     * @return The parse tree of the file, or null if a main module has syntax
+     *         errors or ends before its last token, as when a query body that
+     *         starts with a keyword hid a boundary from the splitter
+     */
+    private XQueryParser.ModuleContext parseChain(CommonTokenStream tokens, List<Token> boundaries) {
+        List<Token> all = tokens.getTokens();
+        List<ChainedModule> modules = new ArrayList<>();
+        int from = 0;
+        for (Token boundary : boundaries) {
+            modules.add(new ChainedModule(all.subList(from, boundary.getTokenIndex()), modules.isEmpty(), tokens.getSourceName()));
+            from = boundary.getTokenIndex() + 1;
+        }
+        modules.add(new ChainedModule(all.subList(from, all.size()), false, tokens.getSourceName()));
+
+        List<ParserRuleContext> contexts = new ArrayList<>();
+        boolean fullLL = false;
+        try {
+            for (Future<ParserRuleContext> result : ForkJoinPool.commonPool().invokeAll(modules)) {
+                contexts.add(result.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XQDocRuntimeException(e.getMessage(), e);
+        } catch (ExecutionException e) {
+            throw new XQDocRuntimeException(e.getCause().getMessage(), e.getCause());
+        } finally {
+            // The token stream of each main module numbered its tokens from zero
+            for (int i = 0; i < all.size(); i++) {
+                ((WritableToken) all.get(i)).setTokenIndex(i);
+            }
+            if (dfaCache != null) {
+                dfaCache.parsed();
+            }
+        }
+        for (ChainedModule module : modules) {
+            if (module.errors.hasErrors() || !module.complete) {
+                return null;
+            }
+            fullLL |= module.fullLL;
+        }
+        if (fullLL) {
+            llParses.incrementAndGet();
+        } else {
+            sllParses.incrementAndGet();
+        }
+
+        XQueryParser.ModuleContext fileContext = (XQueryParser.ModuleContext) contexts.get(0);
+        for (int i = 1; i < contexts.size(); i++) {
+            TerminalNodeImpl semicolon = new TerminalNodeImpl(boundaries.get(i - 1));
+            semicolon.setParent(fileContext);
+            fileContext.addChild(semicolon);
+            ParserRuleContext chainedContext = contexts.get(i);
+            for (ParseTree child : chainedContext.children) {
+                ParserRuleContext childContext = (ParserRuleContext) child;
+                childContext.setParent(fileContext);
+                fileContext.addChild(childContext);
+            }
+            fileContext.stop = chainedContext.stop;
+        }
+        return fileContext;
+    }
+
+    /**
+     *
+     * @param fileContext The parse tree of the module
+     * @param output Receives the raw xqDoc XML
+     * @param model Receives the documentation of the module, or null
+     */
+    private void visit(XQueryParser.ModuleContext fileContext, XQDocWriter output, XQDocModel model) {
+        XQueryVisitor visitor = new XQueryVisitor(output, uriMap);
+        visitor.setModel(model);
+        visitor.setCommentCache(commentCache);
+        visitor.visit(fileContext);
+    }
+
+    /**
+     * Parse a module with SLL prediction and fall back to full LL prediction
+     * when the SLL parse fails.
+     *
+     * @param parser The parser positioned at the start of the module
+     * @param errorListener The listener for the syntax errors of the full LL
+     *                      parse, or null for the ANTLR console listener
+     * @param chained Whether the module follows another main module of the same file
+     * @return The parse tree of the module
+     */
+    private ParserRuleContext parseModule(XQueryParser parser, ANTLRErrorListener errorListener, boolean chained) {
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
+        try {
+            ParserRuleContext context = chained ? parser.chainedModule() : parser.module();
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(parser.getSourceName() + ": parsed with SLL prediction");
+            }
+            return context;
+        } catch (ParseCancellationException ex) {
+            // reset() rewinds the token stream, so the tokens are not lexed again
+            parser.reset();
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            parser.addErrorListener(errorListener != null ? errorListener : ConsoleErrorListener.INSTANCE);
+            ParserRuleContext context = chained ? parser.chainedModule() : parser.module();
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(parser.getSourceName() + ": SLL prediction failed, parsed with full LL prediction");
+            }
+            return context;
+        }
+    }
+
+    /**
+     * <p>getSllParseCount.</p>
+     *
+     * @return The number of modules parsed with SLL prediction alone
+     */
+    public long getSllParseCount() {
+        return sllParses.get();
+    }
+
+    /**
+     * <p>getLlParseCount.</p>
+     *
+     * @return The number of modules that needed the full LL parse
+     */
+    public long getLlParseCount() {
+        return llParses.get();
+    }
+
+    /**
+     * <p>process.</p>
+     *
+     * @param input The XQuery source
+     * @return The pretty printed xqDoc XML Document as a String
+     * @throws java.io.IOException a
+     */
+    public String process(CharStream input) throws IOException {
+        StringWriter output = new StringWriter();
+        process(input, output);
+        return output.toString();
+    }
+
+    /**
+     * Generate the xqDoc of an XQuery source and write it pretty printed.
+     * The XML is pretty printed by a {@link PrettyPrintWriter} as the
+     * {@link XQueryVisitor} writes it, without parsing it into a DOM first.
+     *
+     * @param input The XQuery source
+     * @param output Receives the pretty printed xqDoc XML Document
+     * @throws java.io.IOException a
+     */
+    public void process(CharStream input, Writer output) throws IOException {
+        try {
+            generate(input, null, new PrettyPrintWriter(output));
+        } catch (XQDocRuntimeException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Generate the xqDoc of a very large module in constant memory, writing
+     * each declaration as soon as it has been parsed.  The module section has
+     * no body and the output is not pretty printed, see {@link XQDocStreamer}.
+     *
+     * @param input The XQuery source
+     * @param sourceName The name of the source in error messages
+     * @param output Receives the xqDoc XML
+     * @param errorListener The listener that receives the syntax errors of the
+     *                      source, or null to keep the ANTLR console listeners
+     * @throws java.io.IOException a
+     */
+    public void stream(Reader input, String sourceName, Writer output, ANTLRErrorListener errorListener) throws IOException {
+        streamer.stream(input, sourceName, output, errorListener);
+    }
+
+    /**
+     * The lexer, token stream and parser of a thread.
+     */
+    private static class Recognizers {
+        private final XQueryLexer lexer = new XQueryLexer(null);
+        private final CommonTokenStream tokens = new CommonTokenStream(lexer);
+        private final XQueryParser parser = new XQueryParser(null);
+
+        /**
+         *
+         * @param input The XQuery source
+         * @param errorListener The listener for lexer errors, or null for the ANTLR console listener
+         * @return The lexer, reset to the start of the source
+         */
+        XQueryLexer lex(CharStream input, ANTLRErrorListener errorListener) {
+            lexer.setInputStream(input);
+            lexer.removeErrorListeners();
+            lexer.addErrorListener(errorListener != null ? errorListener : ConsoleErrorListener.INSTANCE);
+            return lexer;
+        }
+
+        /**
+         *
+         * @param tokenSource The tokens of the module
+         * @return The parser, reset to the start of the tokens
+         */
+        XQueryParser parse(TokenSource tokenSource) {
+            tokens.setTokenSource(tokenSource);
+            return parse();
+        }
+
+        /**
+         *
+         * @param tokenSource The tokens of the module
+         * @return The token stream, holding every token of the module
+         */
+        CommonTokenStream fill(TokenSource tokenSource) {
+            tokens.setTokenSource(tokenSource);
+            tokens.fill();
+            return tokens;
+        }
+
+        /**
+         *
+         * @return The parser, reset to the start of the tokens of the token stream
+         */
+        XQueryParser parse() {
+            parser.setTokenStream(tokens);
+            return parser;
+        }
+
+        /**
+         * Drop every reference to the last document, so that its source,
+         * tokens and parse tree can be collected while the thread is idle.
+         */
+        void release() {
+            parser.setTokenStream(null);
+            tokens.setTokenSource(lexer);
+            lexer.setInputStream(null);
+        }
+    }
+
+    /**
+     * Parses one of the main modules of a file that chains several of them.
+     */
+    private class ChainedModule implements Callable<ParserRuleContext> {
+        private final List<Token> tokens;
+        private final boolean first;
+        private final String sourceName;
+        private final SyntaxErrorCollector errors = new SyntaxErrorCollector();
+        private boolean fullLL = false;
+        // Whether the parse reached the end of the tokens, rather than stopping at a missed boundary
+        private boolean complete = false;
+
+        ChainedModule(List<Token> tokens, boolean first, String sourceName) {
+            this.tokens = tokens;
+            this.first = first;
+            this.sourceName = sourceName;
+        }
+
+        @Override
+        public ParserRuleContext call() {
+            XQueryParser markupParser = new XQueryParser(new CommonTokenStream(new ListTokenSource(tokens, sourceName)));
+            if (dfaCache != null) {
+                dfaCache.install(markupParser);
+            }
+            ParserRuleContext context = parseModule(markupParser, errors, !first);
+            fullLL = markupParser.getInterpreter().getPredictionMode() == PredictionMode.LL;
+            complete = markupParser.getCurrentToken().getType() == Token.EOF;
+            return context;
+        }
+    }
+}
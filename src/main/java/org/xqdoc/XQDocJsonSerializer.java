@@ -0,0 +1,200 @@
+package org.xqdoc;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>XQDocJsonSerializer class.</p>
+ *
+ * Renders an {@link XQDocModel} as one JSON object with the sections of the
+ * xqDoc XML as members: control, module, imports, namespaces, variables,
+ * functions and queryBodies.  Optional values are null, and absent lists are
+ * empty arrays.  A comment is its start, end and entries, each entry with the
+ * name of its part, the tag of a custom part and the text.  A body is its
+ * start, end and text.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public class XQDocJsonSerializer implements XQDocSerializer {
+
+    /** {@inheritDoc} */
+    @Override
+    public void serialize(XQDocModel model, Writer output) throws IOException {
+        StringBuilder buffer = new StringBuilder();
+        JsonUtility.append(buffer, toJson(model));
+        output.append(buffer);
+        output.flush();
+    }
+
+    /**
+     * Convert a model into the maps and lists of {@link JsonUtility}.
+     *
+     * @param model The documentation of a module
+     * @return The JSON object of the documentation
+     */
+    public static Map<String, Object> toJson(XQDocModel model) {
+        Map<String, Object> control = new LinkedHashMap<>();
+        control.put("date", model.getDate());
+        control.put("version", model.getVersion());
+
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("control", control);
+        json.put("module", model.getModule() != null ? module(model.getModule()) : null);
+        List<Object> imports = new ArrayList<>();
+        for (XQDocModel.Import importDeclaration : model.getImports()) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("type", importDeclaration.getType());
+            item.put("prefix", importDeclaration.getPrefix());
+            item.put("uri", importDeclaration.getUri());
+            item.put("location", importDeclaration.getLocation());
+            item.put("comment", comment(importDeclaration.getComment()));
+            item.put("body", body(importDeclaration.getBody()));
+            imports.add(item);
+        }
+        json.put("imports", imports);
+        List<Object> namespaces = new ArrayList<>();
+        for (Map.Entry<String, String> namespace : model.getNamespaces().entrySet()) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("prefix", namespace.getKey());
+            item.put("uri", namespace.getValue());
+            namespaces.add(item);
+        }
+        json.put("namespaces", namespaces);
+        List<Object> variables = new ArrayList<>();
+        for (XQDocModel.Variable variable : model.getVariables()) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("uri", variable.getUri());
+            item.put("name", variable.getName());
+            item.put("comment", comment(variable.getComment()));
+            item.put("annotations", annotations(variable.getAnnotations()));
+            item.put("type", type(variable.getType()));
+            item.put("body", body(variable.getBody()));
+            variables.add(item);
+        }
+        json.put("variables", variables);
+        List<Object> functions = new ArrayList<>();
+        for (XQDocModel.Function function : model.getFunctions()) {
+            functions.add(function(function));
+        }
+        json.put("functions", functions);
+        List<Object> queryBodies = new ArrayList<>();
+        for (XQDocModel.SourceText queryBody : model.getQueryBodies()) {
+            queryBodies.add(body(queryBody));
+        }
+        json.put("queryBodies", queryBodies);
+        return json;
+    }
+
+    private static Map<String, Object> module(XQDocModel.Module module) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("type", module.getType());
+        json.put("uri", module.getUri());
+        json.put("name", module.getName());
+        List<Object> comments = new ArrayList<>();
+        for (XQDocModel.Comment comment : module.getComments()) {
+            comments.add(comment(comment));
+        }
+        json.put("comments", comments);
+        json.put("invoked", references(module.getInvoked()));
+        json.put("referencedVariables", references(module.getReferencedVariables()));
+        json.put("body", body(module.getBody()));
+        return json;
+    }
+
+    private static Map<String, Object> function(XQDocModel.Function function) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("name", function.getName());
+        json.put("arity", function.getArity());
+        json.put("comment", comment(function.getComment()));
+        json.put("annotations", annotations(function.getAnnotations()));
+        json.put("signature", function.getSignature());
+        List<Object> parameters = new ArrayList<>();
+        for (XQDocModel.Parameter parameter : function.getParameters()) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("name", parameter.getName());
+            item.put("type", type(parameter.getType()));
+            parameters.add(item);
+        }
+        json.put("parameters", parameters);
+        json.put("return", type(function.getReturnType()));
+        json.put("invoked", references(function.getInvoked()));
+        json.put("referencedVariables", references(function.getReferencedVariables()));
+        json.put("body", body(function.getBody()));
+        return json;
+    }
+
+    private static Map<String, Object> comment(XQDocModel.Comment comment) {
+        if (comment == null) {
+            return null;
+        }
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("start", comment.getStart());
+        json.put("end", comment.getEnd());
+        List<Object> entries = new ArrayList<>();
+        for (XQDocModel.CommentEntry entry : comment.getEntries()) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("name", entry.getName());
+            item.put("tag", entry.getTag());
+            item.put("text", entry.getText());
+            entries.add(item);
+        }
+        json.put("entries", entries);
+        return json;
+    }
+
+    private static List<Object> annotations(List<XQDocModel.Annotation> annotations) {
+        List<Object> json = new ArrayList<>();
+        for (XQDocModel.Annotation annotation : annotations) {
+            List<Object> literals = new ArrayList<>();
+            for (int i = 0; i < annotation.getLiterals().size(); i++) {
+                Map<String, Object> literal = new LinkedHashMap<>();
+                literal.put("type", annotation.getLiteralTypes().get(i));
+                literal.put("text", annotation.getLiterals().get(i).getText());
+                literals.add(literal);
+            }
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("name", annotation.getName());
+            item.put("literals", literals);
+            json.add(item);
+        }
+        return json;
+    }
+
+    private static Map<String, Object> type(XQDocModel.Type type) {
+        if (type == null) {
+            return null;
+        }
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("itemType", type.getItemType());
+        json.put("occurrence", type.getOccurrence());
+        return json;
+    }
+
+    private static List<Object> references(List<XQDocModel.Reference> references) {
+        List<Object> json = new ArrayList<>();
+        for (XQDocModel.Reference reference : references) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("uri", reference.getUri());
+            item.put("prefix", reference.getPrefix());
+            item.put("name", reference.getName());
+            json.add(item);
+        }
+        return json;
+    }
+
+    private static Map<String, Object> body(XQDocModel.SourceText body) {
+        if (body == null) {
+            return null;
+        }
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("start", body.getStart());
+        json.put("end", body.getEnd());
+        json.put("text", body.getText());
+        return json;
+    }
+}
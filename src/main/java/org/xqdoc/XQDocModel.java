@@ -0,0 +1,882 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CodePointCharStream;
+import org.antlr.v4.runtime.misc.Interval;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>XQDocModel class.</p>
+ *
+ * The documentation of an XQuery module as objects: the module, its imports,
+ * namespaces, variables, functions and query bodies, with the xqDoc comments
+ * split into their parts and the invoked functions and referenced variables
+ * resolved to their namespaces.  The {@link XQueryVisitor} fills the model in
+ * the same pass that writes the xqDoc XML, and any number of
+ * {@link XQDocSerializer}s can render it afterwards, so one parse gives every
+ * output format.
+ *
+ * The sections are kept in the order of the xqDoc XML.  The bodies and the
+ * annotation literals are spans of the {@link CharStream} of the module,
+ * which are only taken out as strings when they are asked for, unless the
+ * stream only holds a window of the source.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public class XQDocModel {
+
+    private String date;
+    private String version;
+    private Module module;
+    private final List<Import> imports = new ArrayList<>();
+    private final Map<String, String> namespaces = new LinkedHashMap<>();
+    private final List<Variable> variables = new ArrayList<>();
+    private final List<Function> functions = new ArrayList<>();
+    private final List<SourceText> queryBodies = new ArrayList<>();
+
+    void setControl(String date, String version) {
+        this.date = date;
+        this.version = version;
+    }
+
+    void setModule(Module module) {
+        this.module = module;
+    }
+
+    void addImport(Import importDeclaration) {
+        imports.add(importDeclaration);
+    }
+
+    void addNamespace(String prefix, String uri) {
+        namespaces.put(prefix, uri);
+    }
+
+    void addVariable(Variable variable) {
+        variables.add(variable);
+    }
+
+    void addFunction(Function function) {
+        functions.add(function);
+    }
+
+    void addQueryBody(SourceText body) {
+        queryBodies.add(body);
+    }
+
+    /**
+     * <p>getDate.</p>
+     *
+     * @return The time the xqDoc was generated, in ISO format
+     */
+    public String getDate() {
+        return date;
+    }
+
+    /**
+     * <p>getVersion.</p>
+     *
+     * @return The version of the xqDoc vocabulary
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * <p>getModule.</p>
+     *
+     * @return The module
+     */
+    public Module getModule() {
+        return module;
+    }
+
+    /**
+     * <p>getImports.</p>
+     *
+     * @return The imported schemas and library modules
+     */
+    public List<Import> getImports() {
+        return Collections.unmodifiableList(imports);
+    }
+
+    /**
+     * <p>getNamespaces.</p>
+     *
+     * @return The namespaces declared in the prolog by their prefixes
+     */
+    public Map<String, String> getNamespaces() {
+        return Collections.unmodifiableMap(namespaces);
+    }
+
+    /**
+     * <p>getVariables.</p>
+     *
+     * @return The declared variables
+     */
+    public List<Variable> getVariables() {
+        return Collections.unmodifiableList(variables);
+    }
+
+    /**
+     * <p>getFunctions.</p>
+     *
+     * @return The declared functions
+     */
+    public List<Function> getFunctions() {
+        return Collections.unmodifiableList(functions);
+    }
+
+    /**
+     * <p>getQueryBodies.</p>
+     *
+     * @return The query bodies of the main modules
+     */
+    public List<SourceText> getQueryBodies() {
+        return Collections.unmodifiableList(queryBodies);
+    }
+
+    private static <T> List<T> list(List<T> items) {
+        return items == null || items.isEmpty() ? Collections.<T>emptyList() : Collections.unmodifiableList(items);
+    }
+
+    /**
+     * A span of the source of the module.
+     */
+    public static final class SourceText {
+        private final CharStream input;
+        private final int startIndex;
+        private final int stopIndex;
+        private final String text;
+
+        private SourceText(CharStream input, int startIndex, int stopIndex, String text) {
+            this.input = input;
+            this.startIndex = startIndex;
+            this.stopIndex = stopIndex;
+            this.text = text;
+        }
+
+        /**
+         *
+         * @param input The source of the module
+         * @param startIndex The index of the first character of the span
+         * @param stopIndex The index of the last character of the span
+         * @return The span, holding its text if the stream cannot go back to it later
+         */
+        static SourceText of(CharStream input, int startIndex, int stopIndex) {
+            if (input instanceof CodePointCharStream || input instanceof ByteBufferCharStream) {
+                return new SourceText(input, startIndex, stopIndex, null);
+            }
+            String text = stopIndex < startIndex ? "" : input.getText(new Interval(startIndex, stopIndex));
+            return new SourceText(null, startIndex, stopIndex, text);
+        }
+
+        /**
+         *
+         * @return The source of the module, or null if the span holds its text
+         */
+        CharStream getInput() {
+            return input;
+        }
+
+        int getStartIndex() {
+            return startIndex;
+        }
+
+        int getStopIndex() {
+            return stopIndex;
+        }
+
+        /**
+         * <p>getStart.</p>
+         *
+         * @return The position of the first character, counting from 1
+         */
+        public int getStart() {
+            return startIndex + 1;
+        }
+
+        /**
+         * <p>getEnd.</p>
+         *
+         * @return The position of the last character, counting from 1
+         */
+        public int getEnd() {
+            return stopIndex + 1;
+        }
+
+        /**
+         * <p>getText.</p>
+         *
+         * @return The text of the span
+         */
+        public String getText() {
+            if (text != null) {
+                return text;
+            }
+            return stopIndex < startIndex ? "" : input.getText(new Interval(startIndex, stopIndex));
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String toString() {
+            return getText();
+        }
+    }
+
+    /**
+     * An xqDoc comment, in the order of the xqDoc XML: the description,
+     * then the authors, versions, params and so on.
+     */
+    public static final class Comment {
+        private final int start;
+        private final int end;
+        private final List<CommentEntry> entries;
+        // The entries as xqDoc XML, when they have been rendered once for a cache
+        private final String entriesXML;
+
+        Comment(int start, int end, List<CommentEntry> entries) {
+            this(start, end, list(entries), null);
+        }
+
+        private Comment(int start, int end, List<CommentEntry> entries, String entriesXML) {
+            this.start = start;
+            this.end = end;
+            this.entries = entries;
+            this.entriesXML = entriesXML;
+        }
+
+        /**
+         * The same comment at another position of a source.
+         *
+         * @param start The position of the first character of the comment, counting from 1
+         * @param end The position of the last character of the comment, counting from 1
+         * @return A comment that shares the entries and their XML with this one
+         */
+        Comment at(int start, int end) {
+            return new Comment(start, end, entries, entriesXML);
+        }
+
+        /**
+         *
+         * @param xml The entries of this comment as xqDoc XML
+         * @return A copy of this comment that keeps the XML of its entries
+         */
+        Comment withEntriesXML(String xml) {
+            return new Comment(start, end, entries, xml);
+        }
+
+        /**
+         * <p>getEntriesXML.</p>
+         *
+         * @return The entries as xqDoc XML, or null if they have not been rendered
+         */
+        String getEntriesXML() {
+            return entriesXML;
+        }
+
+        /**
+         * <p>getStart.</p>
+         *
+         * @return The position of the first character of the comment, counting from 1
+         */
+        public int getStart() {
+            return start;
+        }
+
+        /**
+         * <p>getEnd.</p>
+         *
+         * @return The position of the last character of the comment, counting from 1
+         */
+        public int getEnd() {
+            return end;
+        }
+
+        /**
+         * <p>getEntries.</p>
+         *
+         * @return The description and the tagged parts of the comment
+         */
+        public List<CommentEntry> getEntries() {
+            return entries;
+        }
+
+        /**
+         * Get the parts of the comment with a name.
+         *
+         * @param name description, author, version, param, return, error,
+         *             deprecated, see, since, format or custom
+         * @return The texts of the parts with the name
+         */
+        public List<String> get(String name) {
+            List<String> texts = new ArrayList<>();
+            for (CommentEntry entry : entries) {
+                if (entry.getName().equals(name)) {
+                    texts.add(entry.getText());
+                }
+            }
+            return texts;
+        }
+    }
+
+    /**
+     * The description or one tagged part of an xqDoc comment.
+     */
+    public static final class CommentEntry {
+        private final String name;
+        private final String tag;
+        private final String text;
+
+        CommentEntry(String name, String tag, String text) {
+            this.name = name;
+            this.tag = tag;
+            this.text = text;
+        }
+
+        /**
+         * <p>getName.</p>
+         *
+         * @return description, author, version, param, return, error,
+         *         deprecated, see, since, format or custom
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * <p>getTag.</p>
+         *
+         * @return The tag of a custom part, as in <code>@custom:tag</code>, or null
+         */
+        public String getTag() {
+            return tag;
+        }
+
+        /**
+         * <p>getText.</p>
+         *
+         * @return The text of the part
+         */
+        public String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * The module declaration of a library module, or a main module.
+     */
+    public static final class Module {
+        private final String type;
+        private final String uri;
+        private final String name;
+        private final List<Comment> comments;
+        private final List<Reference> invoked;
+        private final List<Reference> referencedVariables;
+        private final SourceText body;
+
+        Module(String type, String uri, String name, List<Comment> comments,
+               List<Reference> invoked, List<Reference> referencedVariables, SourceText body) {
+            this.type = type;
+            this.uri = uri;
+            this.name = name;
+            this.comments = list(comments);
+            this.invoked = list(invoked);
+            this.referencedVariables = list(referencedVariables);
+            this.body = body;
+        }
+
+        /**
+         * <p>getType.</p>
+         *
+         * @return library or main
+         */
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * <p>getUri.</p>
+         *
+         * @return The namespace of a library module, or null
+         */
+        public String getUri() {
+            return uri;
+        }
+
+        /**
+         * <p>getName.</p>
+         *
+         * @return The prefix of a library module, or null
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * <p>getComments.</p>
+         *
+         * @return The xqDoc comments in front of the module
+         */
+        public List<Comment> getComments() {
+            return comments;
+        }
+
+        /**
+         * <p>getInvoked.</p>
+         *
+         * @return The functions invoked by the query body of a main module
+         */
+        public List<Reference> getInvoked() {
+            return invoked;
+        }
+
+        /**
+         * <p>getReferencedVariables.</p>
+         *
+         * @return The variables referenced by the query body of a main module
+         */
+        public List<Reference> getReferencedVariables() {
+            return referencedVariables;
+        }
+
+        /**
+         * <p>getBody.</p>
+         *
+         * @return The source of the whole module, or null for a streamed module
+         */
+        public SourceText getBody() {
+            return body;
+        }
+    }
+
+    /**
+     * A schema or module import.
+     */
+    public static final class Import {
+        private final String type;
+        private final String prefix;
+        private final String uri;
+        private final String location;
+        private final Comment comment;
+        private final SourceText body;
+
+        Import(String type, String prefix, String uri, String location, Comment comment, SourceText body) {
+            this.type = type;
+            this.prefix = prefix;
+            this.uri = uri;
+            this.location = location;
+            this.comment = comment;
+            this.body = body;
+        }
+
+        /**
+         * <p>getType.</p>
+         *
+         * @return schema or library
+         */
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * <p>getPrefix.</p>
+         *
+         * @return The prefix bound to the imported namespace, or null
+         */
+        public String getPrefix() {
+            return prefix;
+        }
+
+        /**
+         * <p>getUri.</p>
+         *
+         * @return The imported namespace
+         */
+        public String getUri() {
+            return uri;
+        }
+
+        /**
+         * <p>getLocation.</p>
+         *
+         * @return The comma separated location hints, or null
+         */
+        public String getLocation() {
+            return location;
+        }
+
+        /**
+         * <p>getComment.</p>
+         *
+         * @return The xqDoc comment of the import, or null
+         */
+        public Comment getComment() {
+            return comment;
+        }
+
+        /**
+         * <p>getBody.</p>
+         *
+         * @return The source of the import
+         */
+        public SourceText getBody() {
+            return body;
+        }
+    }
+
+    /**
+     * A variable declaration.
+     */
+    public static final class Variable {
+        private final String uri;
+        private final String name;
+        private final Comment comment;
+        private final List<Annotation> annotations;
+        private final Type type;
+        private final SourceText body;
+
+        Variable(String uri, String name, Comment comment, List<Annotation> annotations, Type type, SourceText body) {
+            this.uri = uri;
+            this.name = name;
+            this.comment = comment;
+            this.annotations = list(annotations);
+            this.type = type;
+            this.body = body;
+        }
+
+        /**
+         * <p>getUri.</p>
+         *
+         * @return The namespace of the variable
+         */
+        public String getUri() {
+            return uri;
+        }
+
+        /**
+         * <p>getName.</p>
+         *
+         * @return The local name of the variable
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * <p>getComment.</p>
+         *
+         * @return The xqDoc comment of the variable, or null
+         */
+        public Comment getComment() {
+            return comment;
+        }
+
+        /**
+         * <p>getAnnotations.</p>
+         *
+         * @return The annotations of the variable
+         */
+        public List<Annotation> getAnnotations() {
+            return annotations;
+        }
+
+        /**
+         * <p>getType.</p>
+         *
+         * @return The declared type, or null
+         */
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * <p>getBody.</p>
+         *
+         * @return The source of the declaration
+         */
+        public SourceText getBody() {
+            return body;
+        }
+    }
+
+    /**
+     * A function declaration.
+     */
+    public static final class Function {
+        private final String name;
+        private final Comment comment;
+        private final List<Annotation> annotations;
+        private final String signature;
+        private final List<Parameter> parameters;
+        private final Type returnType;
+        private final List<Reference> invoked;
+        private final List<Reference> referencedVariables;
+        private final SourceText body;
+
+        Function(String name, Comment comment, List<Annotation> annotations, String signature,
+                 List<Parameter> parameters, Type returnType,
+                 List<Reference> invoked, List<Reference> referencedVariables, SourceText body) {
+            this.name = name;
+            this.comment = comment;
+            this.annotations = list(annotations);
+            this.signature = signature;
+            this.parameters = list(parameters);
+            this.returnType = returnType;
+            this.invoked = list(invoked);
+            this.referencedVariables = list(referencedVariables);
+            this.body = body;
+        }
+
+        /**
+         * <p>getName.</p>
+         *
+         * @return The local name of the function
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * <p>getComment.</p>
+         *
+         * @return The xqDoc comment of the function, or null
+         */
+        public Comment getComment() {
+            return comment;
+        }
+
+        /**
+         * <p>getAnnotations.</p>
+         *
+         * @return The annotations of the function
+         */
+        public List<Annotation> getAnnotations() {
+            return annotations;
+        }
+
+        /**
+         * <p>getSignature.</p>
+         *
+         * @return The signature as <code>declare function name(params) as type</code>
+         */
+        public String getSignature() {
+            return signature;
+        }
+
+        /**
+         * <p>getParameters.</p>
+         *
+         * @return The parameters of the function
+         */
+        public List<Parameter> getParameters() {
+            return parameters;
+        }
+
+        /**
+         * <p>getReturnType.</p>
+         *
+         * @return The declared return type, or null
+         */
+        public Type getReturnType() {
+            return returnType;
+        }
+
+        /**
+         * <p>getArity.</p>
+         *
+         * @return The number of parameters
+         */
+        public int getArity() {
+            return parameters.size();
+        }
+
+        /**
+         * <p>getInvoked.</p>
+         *
+         * @return The functions invoked by the function
+         */
+        public List<Reference> getInvoked() {
+            return invoked;
+        }
+
+        /**
+         * <p>getReferencedVariables.</p>
+         *
+         * @return The variables of other modules referenced by the function
+         */
+        public List<Reference> getReferencedVariables() {
+            return referencedVariables;
+        }
+
+        /**
+         * <p>getBody.</p>
+         *
+         * @return The source of the declaration
+         */
+        public SourceText getBody() {
+            return body;
+        }
+    }
+
+    /**
+     * A parameter of a function.
+     */
+    public static final class Parameter {
+        private final String name;
+        private final Type type;
+
+        Parameter(String name, Type type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        /**
+         * <p>getName.</p>
+         *
+         * @return The name of the parameter
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * <p>getType.</p>
+         *
+         * @return The declared type, or null
+         */
+        public Type getType() {
+            return type;
+        }
+    }
+
+    /**
+     * A sequence type.
+     */
+    public static final class Type {
+        private final String itemType;
+        private final String occurrence;
+
+        Type(String itemType, String occurrence) {
+            this.itemType = itemType;
+            this.occurrence = occurrence;
+        }
+
+        /**
+         * <p>getItemType.</p>
+         *
+         * @return The item type as it is written in the module
+         */
+        public String getItemType() {
+            return itemType;
+        }
+
+        /**
+         * <p>getOccurrence.</p>
+         *
+         * @return ?, * or +, or null
+         */
+        public String getOccurrence() {
+            return occurrence;
+        }
+    }
+
+    /**
+     * An annotation of a function or variable.
+     */
+    public static final class Annotation {
+        private final String name;
+        private final List<SourceText> literals;
+        private final List<String> literalTypes;
+
+        Annotation(String name, List<SourceText> literals, List<String> literalTypes) {
+            this.name = name;
+            this.literals = list(literals);
+            this.literalTypes = list(literalTypes);
+        }
+
+        /**
+         * <p>getName.</p>
+         *
+         * @return The name of the annotation as it is written in the module
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * <p>getLiterals.</p>
+         *
+         * @return The literals of the annotation, without the quotes of a string
+         */
+        public List<SourceText> getLiterals() {
+            return literals;
+        }
+
+        /**
+         * <p>getLiteralTypes.</p>
+         *
+         * @return The type of each literal, in the order of the literals:
+         *         xs:string, xs:integer, xs:decimal or xs:double
+         */
+        public List<String> getLiteralTypes() {
+            return literalTypes;
+        }
+    }
+
+    /**
+     * An invoked function or a referenced variable.
+     */
+    public static final class Reference {
+        private final String uri;
+        private final String prefix;
+        private final String name;
+
+        Reference(String uri, String prefix, String name) {
+            this.uri = uri;
+            this.prefix = prefix;
+            this.name = name;
+        }
+
+        /**
+         * <p>getUri.</p>
+         *
+         * @return The namespace the name resolves to
+         */
+        public String getUri() {
+            return uri;
+        }
+
+        /**
+         * <p>getPrefix.</p>
+         *
+         * @return The prefix as it is written in the module, or null
+         */
+        public String getPrefix() {
+            return prefix;
+        }
+
+        /**
+         * <p>getName.</p>
+         *
+         * @return The local name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * <p>getLexicalName.</p>
+         *
+         * @return The name as it is written in the module, with its prefix
+         */
+        public String getLexicalName() {
+            return prefix != null ? prefix + ":" + name : name;
+        }
+    }
+}
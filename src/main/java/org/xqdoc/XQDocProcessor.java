@@ -0,0 +1,219 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.IntStream;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>XQDocProcessor class.</p>
+ *
+ * Generates the xqDoc of XQuery sources written for one {@link XQueryDialect}.
+ * The engine of a processor is built once, so a processor can be kept and
+ * shared by any number of threads, each of which reuses its own lexer and
+ * parser.  Sources can be given as text, a reader, a stream of bytes or a
+ * byte buffer, and the xqDoc can be returned or written to a writer or
+ * stream as it is generated.  {@link #newAsyncProcessor(int)} runs the same
+ * engine on a pool of worker threads.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public class XQDocProcessor {
+
+    // Shared by every processor so that embedding applications get a warm but bounded DFA cache
+    private static final DFACache SHARED_DFA_CACHE = new DFACache();
+
+    // Shared by every processor so that comment blocks repeated between sources are split once
+    private static final XQDocCommentCache SHARED_COMMENT_CACHE = new XQDocCommentCache();
+
+    private final XQueryDialect dialect;
+
+    private final DFACache dfaCache;
+
+    // Kept for the lifetime of the processor so that each thread reuses its lexer and parser
+    private final XQDocEngine engine;
+
+    /**
+     * <p>Constructor for XQDocProcessor that uses a DFA cache shared by all processors.</p>
+     *
+     * @param dialect The predefined function namespaces of the sources
+     */
+    public XQDocProcessor(XQueryDialect dialect) {
+        this(dialect, SHARED_DFA_CACHE);
+    }
+
+    /**
+     * <p>Constructor for XQDocProcessor.</p>
+     *
+     * @param dialect The predefined function namespaces of the sources
+     * @param dfaCache The bounded DFA cache the parser predicts with
+     */
+    public XQDocProcessor(XQueryDialect dialect, DFACache dfaCache) {
+        this.dialect = dialect;
+        this.dfaCache = dfaCache;
+        this.engine = new XQDocEngine(dialect.getNamespaces(), dfaCache);
+        this.engine.setCommentCache(SHARED_COMMENT_CACHE);
+    }
+
+    /**
+     * <p>getDialect.</p>
+     *
+     * @return The predefined function namespaces of the sources
+     */
+    public XQueryDialect getDialect() {
+        return dialect;
+    }
+
+    /**
+     * <p>getDFACache.</p>
+     *
+     * @return The DFA cache of this processor, for its size and hit rate
+     */
+    public DFACache getDFACache() {
+        return dfaCache;
+    }
+
+    /**
+     * Make an asynchronous processor that generates the xqDoc with the engine
+     * of this processor on its own worker threads.
+     *
+     * @param threads The number of worker threads
+     * @return The asynchronous processor, which the caller must close
+     */
+    public XQDocAsyncProcessor newAsyncProcessor(int threads) {
+        return new XQDocAsyncProcessor(engine, threads);
+    }
+
+    /**
+     * <p>process.</p>
+     *
+     * @param txt The XQuery source as a String
+     * @return The xqDoc XML Document as a String
+     * @throws java.io.IOException a
+     */
+    public String process(String txt) throws IOException {
+        CharStream inputStream = CharStreams.fromString(txt);
+        return engine.process(inputStream);
+    }
+
+    /**
+     * <p>process.</p>
+     *
+     * @param in The XQuery source encoded in UTF-8, read to its end but not closed
+     * @return The xqDoc XML Document as a String
+     * @throws java.io.IOException a
+     */
+    public String process(InputStream in) throws IOException {
+        StringWriter output = new StringWriter();
+        process(in, StandardCharsets.UTF_8, output);
+        return output.toString();
+    }
+
+    /**
+     * <p>process.</p>
+     *
+     * @param reader The XQuery source, read to its end but not closed
+     * @return The xqDoc XML Document as a String
+     * @throws java.io.IOException a
+     */
+    public String process(Reader reader) throws IOException {
+        StringWriter output = new StringWriter();
+        process(reader, output);
+        return output.toString();
+    }
+
+    /**
+     * <p>process.</p>
+     *
+     * @param buffer The encoded XQuery source, from its position to its limit
+     * @param charset The charset of the source
+     * @return The xqDoc XML Document as a String
+     * @throws java.io.IOException a
+     */
+    public String process(ByteBuffer buffer, Charset charset) throws IOException {
+        StringWriter output = new StringWriter();
+        process(buffer, charset, output);
+        return output.toString();
+    }
+
+    /**
+     * Generate the xqDoc of an XQuery source and write it, pretty printed,
+     * as it is generated.
+     *
+     * @param txt The XQuery source as a String
+     * @param output Receives the xqDoc XML Document
+     * @throws java.io.IOException a
+     */
+    public void process(String txt, Writer output) throws IOException {
+        engine.process(CharStreams.fromString(txt), output);
+    }
+
+    /**
+     * Generate the xqDoc of an XQuery source read from a stream.  The bytes
+     * are read into one buffer that the lexer works on, and an ASCII source
+     * is never decoded at all.
+     *
+     * @param in The encoded XQuery source, read to its end but not closed
+     * @param charset The charset of the source
+     * @param output Receives the xqDoc XML Document
+     * @throws java.io.IOException a
+     */
+    public void process(InputStream in, Charset charset, Writer output) throws IOException {
+        engine.process(ByteBufferCharStream.fromStream(in, charset, IntStream.UNKNOWN_SOURCE_NAME), output);
+    }
+
+    /**
+     * Generate the xqDoc of a UTF-8 XQuery source read from a stream and
+     * write it as UTF-8, the encoding in its XML declaration.  The output
+     * stream is flushed but not closed.
+     *
+     * @param in The XQuery source encoded in UTF-8, read to its end but not closed
+     * @param out Receives the xqDoc XML Document
+     * @throws java.io.IOException a
+     */
+    public void process(InputStream in, OutputStream out) throws IOException {
+        Writer output = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        process(in, StandardCharsets.UTF_8, output);
+        output.flush();
+    }
+
+    /**
+     * Generate the xqDoc of an XQuery source read from a reader, which is
+     * decoded straight into the code points the lexer works on.
+     *
+     * @param reader The XQuery source, read to its end but not closed
+     * @param output Receives the xqDoc XML Document
+     * @throws java.io.IOException a
+     */
+    public void process(Reader reader, Writer output) throws IOException {
+        engine.process(CharStreams.fromReader(reader), output);
+    }
+
+    /**
+     * Generate the xqDoc of an XQuery source held in a buffer, such as a
+     * memory-mapped file or a network buffer.  The lexer works on the buffer
+     * itself when every byte is a character, see {@link ByteBufferCharStream}.
+     * The buffer is not modified, but its content must not change until the
+     * xqDoc has been written.
+     *
+     * @param buffer The encoded XQuery source, from its position to its limit
+     * @param charset The charset of the source
+     * @param output Receives the xqDoc XML Document
+     * @throws java.io.IOException a
+     */
+    public void process(ByteBuffer buffer, Charset charset, Writer output) throws IOException {
+        engine.process(ByteBufferCharStream.fromByteBuffer(buffer, charset, IntStream.UNKNOWN_SOURCE_NAME), output);
+    }
+}
@@ -0,0 +1,515 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.ANTLRErrorListener;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.misc.Interval;
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>XQDocScanner class.</p>
+ *
+ * A quick index of an XQuery module that only runs the lexer.  The module,
+ * the imports, the namespace declarations, the variable declarations and the
+ * function signatures are recognised from the token stream, along with the
+ * xqDoc comments in front of them.  Function bodies, variable values and the
+ * query body are skipped by a {@link SignatureTokenSource}, and no parse tree
+ * is ever built.
+ *
+ * The result uses the xqDoc vocabulary, but it has no bodies and no invoked
+ * functions or referenced variables.  Since nothing checks the grammar, a
+ * module with syntax errors outside of its bodies may be indexed partially.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public class XQDocScanner {
+
+    private final Map uriMap;
+    private final DateTimeFormatter isoFormat = ISODateTimeFormat.dateTime();
+
+    /**
+     * <p>Constructor for XQDocScanner.</p>
+     *
+     * @param uriMap The predefined function namespaces
+     */
+    public XQDocScanner(Map uriMap) {
+        this.uriMap = uriMap;
+    }
+
+    /**
+     * Scan an XQuery source and return its quick index.
+     *
+     * @param input The XQuery source
+     * @param errorListener The listener that receives the lexer errors of the
+     *                      source, or null to keep the ANTLR console listener
+     * @return The xqDoc XML of the quick index
+     */
+    public StringBuilder scan(CharStream input, ANTLRErrorListener errorListener) {
+        XQueryLexer markupLexer = new XQueryLexer(input);
+        if (errorListener != null) {
+            markupLexer.removeErrorListeners();
+            markupLexer.addErrorListener(errorListener);
+        }
+        return scan(markupLexer);
+    }
+
+    /**
+     * Scan the source of a lexer and return its quick index.
+     *
+     * @param markupLexer The lexer positioned at the start of the XQuery source
+     * @return The xqDoc XML of the quick index
+     */
+    public StringBuilder scan(XQueryLexer markupLexer) {
+        return new Scan(markupLexer.getInputStream()).run(new SignatureTokenSource(markupLexer));
+    }
+
+    /**
+     * The state of a single scan.
+     */
+    private class Scan {
+        private final CharStream input;
+        private final StringBuilder moduleXQDoc = new StringBuilder();
+        private final Map<String, String> moduleMap = new LinkedHashMap<>();
+        private final StringBuilder imports = new StringBuilder();
+        private final Map<String, String> namespaces = new LinkedHashMap<>();
+        private final StringBuilder variables = new StringBuilder();
+        private final StringBuilder functions = new StringBuilder();
+        private final XQDocComment xqDocComment = new XQDocComment();
+        private String modulePrefix = null;
+        private String moduleUri = null;
+        private boolean prologStarted = false;
+
+        Scan(CharStream input) {
+            this.input = input;
+        }
+
+        StringBuilder run(TokenSource tokens) {
+            List<Token> statement = new ArrayList<>();
+            Token comment = null;
+            Token token;
+            do {
+                token = tokens.nextToken();
+                if (token.getChannel() != Token.DEFAULT_CHANNEL) {
+                    continue;
+                }
+                if (token.getType() == XQueryLexer.XQDocComment && statement.isEmpty()) {
+                    if (comment != null && !prologStarted) {
+                        moduleXQDoc.append(printXQDocumentation(comment));
+                    }
+                    comment = token;
+                } else if (token.getType() == XQueryLexer.SEMICOLON || token.getType() == Token.EOF) {
+                    if (!statement.isEmpty()) {
+                        statement(statement, comment);
+                        statement.clear();
+                        comment = null;
+                    }
+                } else {
+                    statement.add(token);
+                }
+            } while (token.getType() != Token.EOF);
+            if (comment != null && !prologStarted) {
+                moduleXQDoc.append(printXQDocumentation(comment));
+            }
+            return build();
+        }
+
+        /**
+         *
+         * @param tokens The default channel tokens of a statement, without the semicolon
+         * @param comment The xqDoc comment in front of the statement, or null
+         */
+        private void statement(List<Token> tokens, Token comment) {
+            int first = tokens.get(0).getType();
+            int second = tokens.size() > 1 ? tokens.get(1).getType() : Token.INVALID_TYPE;
+            if (first == XQueryLexer.KW_XQUERY) {
+                if (comment != null) {
+                    moduleXQDoc.append(printXQDocumentation(comment));
+                }
+                return;
+            }
+            String xqDoc = comment != null ? printXQDocumentation(comment) : "";
+            if (!prologStarted) {
+                // The first comment of a module documents the module, as in the grammar
+                prologStarted = true;
+                moduleXQDoc.append(xqDoc);
+                xqDoc = "";
+            }
+            if (first == XQueryLexer.KW_MODULE && second == XQueryLexer.KW_NAMESPACE && tokens.size() > 4) {
+                modulePrefix = tokens.get(2).getText();
+                moduleUri = literal(tokens, 4);
+                moduleMap.put(modulePrefix, moduleUri);
+            } else if (first == XQueryLexer.KW_IMPORT) {
+                importDecl(tokens, xqDoc, second == XQueryLexer.KW_SCHEMA ? "schema" : "library");
+            } else if (first == XQueryLexer.KW_DECLARE && second == XQueryLexer.KW_NAMESPACE && tokens.size() > 4) {
+                String prefix = tokens.get(2).getText();
+                if (!namespaces.containsKey(prefix)) {
+                    namespaces.put(prefix, literal(tokens, 4));
+                }
+            } else if (first == XQueryLexer.KW_DECLARE) {
+                int index = skipAnnotations(tokens, 1);
+                if (index < tokens.size() && tokens.get(index).getType() != XQueryLexer.KW_VARIABLE
+                        && tokens.get(index).getType() != XQueryLexer.KW_FUNCTION) {
+                    // declare private function ...
+                    index++;
+                }
+                if (index < tokens.size() && tokens.get(index).getType() == XQueryLexer.KW_VARIABLE) {
+                    varDecl(tokens, index + 1, xqDoc);
+                } else if (index < tokens.size() && tokens.get(index).getType() == XQueryLexer.KW_FUNCTION) {
+                    functionDecl(tokens, index + 1, xqDoc);
+                }
+            }
+        }
+
+        /**
+         *
+         * @param tokens The tokens of an import statement
+         * @param xqDoc The xqDoc XML comment block of the import
+         * @param importType The type of the import (schema|library)
+         */
+        private void importDecl(List<Token> tokens, String xqDoc, String importType) {
+            String prefix = null;
+            int index = 2;
+            if (index < tokens.size() && tokens.get(index).getType() == XQueryLexer.KW_DEFAULT) {
+                // import schema default element namespace "..."
+                index += 3;
+            } else if (index < tokens.size() && tokens.get(index).getType() == XQueryLexer.KW_NAMESPACE) {
+                prefix = tokens.get(index + 1).getText();
+                index += 3;
+            }
+            if (index >= tokens.size()) {
+                return;
+            }
+            String uri = literal(tokens, index);
+            String location = null;
+            for (index = skipLiteral(tokens, index); index < tokens.size(); index = skipLiteral(tokens, index)) {
+                int type = tokens.get(index).getType();
+                if (type == XQueryLexer.KW_AT || type == XQueryLexer.COMMA) {
+                    index++;
+                    location = location == null ? literal(tokens, index) : location + "," + literal(tokens, index);
+                } else {
+                    break;
+                }
+            }
+            imports.append(new ImportDeclaration(prefix, uri, importType, location, xqDoc, null).toString());
+        }
+
+        /**
+         *
+         * @param tokens The tokens of a variable declaration
+         * @param index The index of the dollar sign in front of the variable name
+         * @param xqDoc The xqDoc XML comment block of the variable
+         */
+        private void varDecl(List<Token> tokens, int index, String xqDoc) {
+            if (index + 1 >= tokens.size()) {
+                return;
+            }
+            String[] tmp = tokens.get(index + 1).getText().split(":", 2);
+            if (tmp.length < 2) {
+                return;
+            }
+            String namespace = moduleMap.get(tmp[0]);
+            if (namespace == null) {
+                namespace = (String) uriMap.get(tmp[0]);
+            }
+            // References a namespace we don't know about
+            if (namespace == null) {
+                return;
+            }
+            variables.append("<xqdoc:variable>").append("\n");
+            variables.append("<xqdoc:uri>").append(namespace).append("</xqdoc:uri>").append("\n");
+            variables.append("<xqdoc:name>").append(tmp[1]).append("</xqdoc:name>").append("\n");
+            variables.append(xqDoc);
+            variables.append(annotations(tokens));
+            int end = index + 2;
+            if (end < tokens.size() && tokens.get(end).getType() == XQueryLexer.KW_AS) {
+                while (end < tokens.size() && !isDeclarationEnd(tokens.get(end).getType())) {
+                    end++;
+                }
+                variables.append(type(tokens, index + 3, end));
+            }
+            variables.append("</xqdoc:variable>").append("\n");
+        }
+
+        /**
+         *
+         * @param tokens The tokens of a function declaration
+         * @param index The index of the function name
+         * @param xqDoc The xqDoc XML comment block of the function
+         */
+        private void functionDecl(List<Token> tokens, int index, String xqDoc) {
+            if (index + 1 >= tokens.size() || tokens.get(index + 1).getType() != XQueryLexer.LPAREN) {
+                return;
+            }
+            String[] nameParts = tokens.get(index).getText().split(":");
+            String localName = nameParts[nameParts.length - 1];
+            int open = index + 1;
+            int close = open;
+            for (int depth = 0; close < tokens.size(); close++) {
+                int type = tokens.get(close).getType();
+                if (type == XQueryLexer.LPAREN) {
+                    depth++;
+                } else if (type == XQueryLexer.RPAREN && --depth == 0) {
+                    break;
+                }
+            }
+            int end = close + 1;
+            while (end < tokens.size() && !isDeclarationEnd(tokens.get(end).getType())) {
+                end++;
+            }
+
+            functions.append("<xqdoc:function>").append("\n");
+            functions.append(xqDoc);
+            functions.append("<xqdoc:name>").append(localName).append("</xqdoc:name>").append("\n");
+            functions.append(annotations(tokens));
+            functions.append("<xqdoc:signature>declare function ").append(localName).append("(");
+            if (close > open + 1) {
+                functions.append(text(tokens.get(open + 1), tokens.get(close - 1)));
+            }
+            functions.append(")");
+            if (end > close + 1) {
+                functions.append(" ").append(text(tokens.get(close + 1), tokens.get(end - 1)));
+            }
+            functions.append("</xqdoc:signature>").append("\n");
+            if (close > open + 1) {
+                functions.append("<xqdoc:parameters>").append("\n");
+                int param = open + 1;
+                while (param < close) {
+                    int next = param;
+                    for (int depth = 0; next < close; next++) {
+                        int type = tokens.get(next).getType();
+                        if (type == XQueryLexer.LPAREN) {
+                            depth++;
+                        } else if (type == XQueryLexer.RPAREN) {
+                            depth--;
+                        } else if (type == XQueryLexer.COMMA && depth == 0) {
+                            break;
+                        }
+                    }
+                    functions.append("<xqdoc:parameter>").append("\n");
+                    if (param + 1 < next) {
+                        functions.append("<xqdoc:name>").append(tokens.get(param + 1).getText()).append("</xqdoc:name>").append("\n");
+                    }
+                    if (param + 2 < next && tokens.get(param + 2).getType() == XQueryLexer.KW_AS) {
+                        functions.append(type(tokens, param + 3, next));
+                    }
+                    functions.append("</xqdoc:parameter>").append("\n");
+                    param = next + 1;
+                }
+                functions.append("</xqdoc:parameters>").append("\n");
+            }
+            if (end > close + 2 && tokens.get(close + 1).getType() == XQueryLexer.KW_AS) {
+                functions.append("<xqdoc:return>").append("\n");
+                functions.append(type(tokens, close + 2, end));
+                functions.append("</xqdoc:return>").append("\n");
+            }
+            functions.append("</xqdoc:function>").append("\n");
+        }
+
+        /**
+         *
+         * @param tokens The tokens of a declaration
+         * @return The xqDoc XML fragment for the annotations of the declaration
+         */
+        private StringBuilder annotations(List<Token> tokens) {
+            StringBuilder buffer = new StringBuilder();
+            int index = 1;
+            while (index < tokens.size() && tokens.get(index).getType() == XQueryLexer.MOD) {
+                if (buffer.length() == 0) {
+                    buffer.append("<xqdoc:annotations>").append("\n");
+                }
+                buffer.append("<xqdoc:annotation name=\"").append(tokens.get(index + 1).getText()).append("\">").append("\n");
+                index += 2;
+                if (index < tokens.size() && tokens.get(index).getType() == XQueryLexer.LPAREN) {
+                    index++;
+                    while (index < tokens.size() && tokens.get(index).getType() != XQueryLexer.RPAREN) {
+                        if (tokens.get(index).getType() == XQueryLexer.COMMA) {
+                            index++;
+                            continue;
+                        }
+                        buffer.append("<xqdoc:literal type=\"").append(XQueryVisitor.literalType(tokens.get(index).getType())).append("\">");
+                        literal(new XQDocWriter(buffer), tokens, index);
+                        buffer.append("</xqdoc:literal>").append("\n");
+                        index = skipLiteral(tokens, index);
+                    }
+                    index++;
+                }
+                buffer.append("</xqdoc:annotation>").append("\n");
+            }
+            if (buffer.length() > 0) {
+                buffer.append("</xqdoc:annotations>").append("\n");
+            }
+            return buffer;
+        }
+
+        /**
+         *
+         * @param tokens The tokens of a declaration
+         * @param start The index of the first token of the sequence type
+         * @param end The index after the last token of the sequence type
+         * @return The xqDoc XML fragment for the sequence type
+         */
+        private StringBuilder type(List<Token> tokens, int start, int end) {
+            StringBuilder buffer = new StringBuilder();
+            if (start >= end) {
+                return buffer;
+            }
+            String occurrence = null;
+            int last = tokens.get(end - 1).getType();
+            if (end - 1 > start && (last == XQueryLexer.QUESTION || last == XQueryLexer.STAR || last == XQueryLexer.PLUS)) {
+                occurrence = tokens.get(end - 1).getText();
+                end--;
+            }
+            buffer.append("<xqdoc:type");
+            if (occurrence != null) {
+                buffer.append(" occurrence=\"").append(occurrence).append("\"");
+            }
+            buffer.append(">");
+            for (int i = start; i < end; i++) {
+                buffer.append(tokens.get(i).getText());
+            }
+            buffer.append("</xqdoc:type>").append("\n");
+            return buffer;
+        }
+
+        private boolean isDeclarationEnd(int type) {
+            return type == XQueryLexer.LBRACE || type == XQueryLexer.COLON_EQ || type == XQueryLexer.KW_EXTERNAL;
+        }
+
+        /**
+         *
+         * @param tokens The tokens of a declaration
+         * @param index The index of the first token after the annotations and the declare keyword
+         * @return The index of the first token after the annotations
+         */
+        private int skipAnnotations(List<Token> tokens, int index) {
+            while (index < tokens.size() && tokens.get(index).getType() == XQueryLexer.MOD) {
+                index += 2;
+                if (index < tokens.size() && tokens.get(index).getType() == XQueryLexer.LPAREN) {
+                    while (index < tokens.size() && tokens.get(index).getType() != XQueryLexer.RPAREN) {
+                        index = skipLiteral(tokens, index);
+                    }
+                    index++;
+                }
+            }
+            return index;
+        }
+
+        /**
+         *
+         * @param tokens The tokens of a statement
+         * @param index The index of the first token of a literal
+         * @return The index of the first token after the literal
+         */
+        private int skipLiteral(List<Token> tokens, int index) {
+            int type = tokens.get(index).getType();
+            if (type == XQueryLexer.Quot || type == XQueryLexer.Apos) {
+                index++;
+                while (index < tokens.size() && tokens.get(index).getType() != type) {
+                    index++;
+                }
+            }
+            return index + 1;
+        }
+
+        /**
+         *
+         * @param tokens The tokens of a statement
+         * @param index The index of the first token of a literal
+         * @return The text of the literal without its quotes
+         */
+        private String literal(List<Token> tokens, int index) {
+            if (index >= tokens.size()) {
+                return "";
+            }
+            int end = Math.min(skipLiteral(tokens, index), tokens.size()) - 1;
+            String text = text(tokens.get(index), tokens.get(end));
+            int type = tokens.get(index).getType();
+            if ((type == XQueryLexer.Quot || type == XQueryLexer.Apos) && text.length() >= 2) {
+                return text.substring(1, text.length() - 1);
+            }
+            return text;
+        }
+
+        /**
+         *
+         * @param buffer Receives the text of the literal without its quotes as a CDATA section
+         * @param tokens The tokens of a statement
+         * @param index The index of the first token of a literal
+         */
+        private void literal(XQDocWriter buffer, List<Token> tokens, int index) {
+            if (index >= tokens.size()) {
+                buffer.appendCData(input, 0, -1);
+                return;
+            }
+            int start = tokens.get(index).getStartIndex();
+            int stop = tokens.get(Math.min(skipLiteral(tokens, index), tokens.size()) - 1).getStopIndex();
+            int type = tokens.get(index).getType();
+            if ((type == XQueryLexer.Quot || type == XQueryLexer.Apos) && stop > start) {
+                start++;
+                stop--;
+            }
+            buffer.appendCData(input, start, stop);
+        }
+
+        private String text(Token start, Token stop) {
+            return input.getText(new Interval(start.getStartIndex(), stop.getStopIndex()));
+        }
+
+        /**
+         *
+         * @param comment The xqDoc comment token
+         * @return The xqDoc XML comment block as a String
+         */
+        private String printXQDocumentation(Token comment) {
+            xqDocComment.clear();
+            xqDocComment.setComment(comment.getText(), comment.getStartIndex(), comment.getStopIndex());
+            return xqDocComment.getXML().toString() + "\n";
+        }
+
+        private StringBuilder build() {
+            StringBuilder stream = new StringBuilder();
+            stream.append("<xqdoc:xqdoc xmlns:xqdoc=\"http://www.xqdoc.org/1.0\">").append("\n");
+            stream.append("<xqdoc:control>").append("\n");
+            stream.append("<xqdoc:date>").append(new DateTime().toString(isoFormat)).append("</xqdoc:date>").append("\n");
+            stream.append("<xqdoc:version>1.1</xqdoc:version>").append("\n");
+            stream.append("</xqdoc:control>").append("\n");
+            if (moduleUri != null) {
+                stream.append("<xqdoc:module type=\"library\">").append("\n");
+                stream.append("<xqdoc:uri>").append(moduleUri).append("</xqdoc:uri>").append("\n");
+                stream.append("<xqdoc:name>").append(modulePrefix).append("</xqdoc:name>").append("\n");
+            } else {
+                stream.append("<xqdoc:module type=\"main\">").append("\n");
+            }
+            stream.append(moduleXQDoc);
+            stream.append("</xqdoc:module>").append("\n");
+            if (imports.length() > 0) {
+                stream.append("<xqdoc:imports>").append("\n").append(imports).append("</xqdoc:imports>").append("\n");
+            }
+            if (!namespaces.isEmpty()) {
+                stream.append("<xqdoc:namespaces>").append("\n");
+                for (Map.Entry<String, String> namespaceEntry : namespaces.entrySet()) {
+                    stream.append("<xqdoc:namespace prefix=\"").append(namespaceEntry.getKey());
+                    stream.append("\" uri=\"").append(namespaceEntry.getValue()).append("\"/>").append("\n");
+                }
+                stream.append("</xqdoc:namespaces>").append("\n");
+            }
+            if (variables.length() > 0) {
+                stream.append("<xqdoc:variables>").append("\n").append(variables).append("</xqdoc:variables>").append("\n");
+            }
+            if (functions.length() > 0) {
+                stream.append("<xqdoc:functions>").append("\n").append(functions).append("</xqdoc:functions>").append("\n");
+            }
+            stream.append("</xqdoc:xqdoc>").append("\n");
+            return stream;
+        }
+    }
+}
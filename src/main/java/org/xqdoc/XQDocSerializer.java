@@ -0,0 +1,24 @@
+package org.xqdoc;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * <p>XQDocSerializer interface.</p>
+ *
+ * Renders an {@link XQDocModel} in an output format.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public interface XQDocSerializer {
+
+    /**
+     * Write the documentation of a module.
+     *
+     * @param model The documentation of the module
+     * @param output Receives the rendered documentation
+     * @throws java.io.IOException a
+     */
+    void serialize(XQDocModel model, Writer output) throws IOException;
+}
@@ -0,0 +1,170 @@
+package org.xqdoc;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.IntStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>XQDocServer class.</p>
+ *
+ * A long running HTTP server bound to the loopback interface that generates
+ * xqDoc for XQuery sources posted to <code>/xqdoc</code>.  Keeping the JVM
+ * resident means the ANTLR lexer and parser DFA caches, which are shared by
+ * all lexer and parser instances, stay warm between requests, so a request
+ * only pays for lexing, parsing and visiting its own module.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public class XQDocServer {
+
+    /** The path that accepts the XQuery sources. */
+    public static final String CONTEXT_PATH = "/xqdoc";
+
+    // A module that exercises the common parts of the grammar to warm up the DFA caches
+    private static final String WARM_UP_MODULE =
+            "xquery version \"3.1\";\n"
+            + "(:~ warm up\n : @author xqDoc\n : @param $a the value\n : @return the result\n :)\n"
+            + "module namespace w = \"http://xqdoc.org/warm-up\";\n"
+            + "import module namespace x = \"http://xqdoc.org/x\" at \"x.xqy\";\n"
+            + "declare namespace h = \"http://www.w3.org/1999/xhtml\";\n"
+            + "declare variable $w:items as xs:string* := (\"a\", 'b', \"c\");\n"
+            + "declare %private function w:f($a as xs:string, $b as item()*) as element()? {\n"
+            + "  for $i at $p in $w:items[. ne $a]\n"
+            + "  let $m := map { \"k\" : $i, \"p\" : $p }\n"
+            + "  where fn:string-length($i) gt 0 and $b/h:div[@class = \"x\"]//h:span\n"
+            + "  order by $i descending\n"
+            + "  return <h:p class=\"{$i}\">{ if ($p eq 1) then x:g($m?k) else try { $i || \"!\" } catch * { () } }</h:p>\n"
+            + "};\n"
+            + "declare function w:g() { typeswitch (.) case element() return w:f(\"a\", ()) default return () };\n";
+
+    private static final int WARM_UP_ITERATIONS = 20;
+
+    private final XQDocEngine engine;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * <p>Constructor for XQDocServer.</p>
+     *
+     * @param engine The engine that generates the xqDoc XML
+     * @param port The loopback port to listen on, or 0 for an ephemeral port
+     * @param threads The number of threads that serve requests
+     * @throws java.io.IOException a
+     */
+    public XQDocServer(XQDocEngine engine, int port, int threads) throws IOException {
+        this.engine = engine;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        server.setExecutor(executor);
+        server.createContext(CONTEXT_PATH, new GenerateHandler());
+    }
+
+    /**
+     * Warm up the lexer and parser and start serving requests.
+     */
+    public void start() {
+        warmUp();
+        server.start();
+    }
+
+    /**
+     * Stop serving requests.
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * <p>getPort.</p>
+     *
+     * @return The port the server is listening on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Run a representative module through the engine so that the first
+     * requests do not pay for populating the ANTLR DFA caches.
+     */
+    private void warmUp() {
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            engine.generate(CharStreams.fromString(WARM_UP_MODULE), new BaseErrorListener());
+        }
+    }
+
+    /**
+     * Generates the xqDoc of the posted XQuery source.
+     */
+    private class GenerateHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().set("Allow", "POST");
+                    send(exchange, 405, "text/plain", "Only POST is supported\n");
+                    return;
+                }
+                CharStream input = ByteBufferCharStream.fromStream(exchange.getRequestBody(),
+                        getCharset(exchange.getRequestHeaders().getFirst("Content-Type")), IntStream.UNKNOWN_SOURCE_NAME);
+                SyntaxErrorCollector errors = new SyntaxErrorCollector();
+                StringBuilder buffer = engine.generate(input, errors);
+                if (errors.hasErrors()) {
+                    StringBuilder messages = new StringBuilder();
+                    for (String message : errors.getMessages()) {
+                        messages.append(message).append("\n");
+                    }
+                    send(exchange, 422, "text/plain", messages.toString());
+                    return;
+                }
+                String xml = PrettyPrintWriter.format(buffer);
+                send(exchange, 200, "application/xml", xml);
+            } catch (Exception ex) {
+                send(exchange, 500, "text/plain", ex + "\n");
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private Charset getCharset(String contentType) {
+            if (contentType != null) {
+                for (String parameter : contentType.split(";")) {
+                    String[] pair = parameter.trim().split("=", 2);
+                    if (pair.length == 2 && "charset".equalsIgnoreCase(pair[0].trim())) {
+                        try {
+                            return Charset.forName(pair[1].trim().replace("\"", ""));
+                        } catch (IllegalArgumentException ex) {
+                            // fall back to UTF-8 below
+                        }
+                    }
+                }
+            }
+            return StandardCharsets.UTF_8;
+        }
+
+        private void send(HttpExchange exchange, int status, String contentType, String text) throws IOException {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=UTF-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.ANTLRErrorListener;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonTokenFactory;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenFactory;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.UnbufferedCharStream;
+import org.antlr.v4.runtime.UnbufferedTokenStream;
+import org.antlr.v4.runtime.misc.Interval;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * <p>XQDocStreamer class.</p>
+ *
+ * Generates the xqDoc of very large modules in constant memory.  The source
+ * is read through unbuffered character and token streams, and a parse
+ * listener visits each prolog declaration as soon as it has been parsed,
+ * writes its xqDoc fragment and removes it from the parse tree.  Only the
+ * declaration being parsed and the lookahead of the parser are held in memory,
+ * so the heap no longer grows with the size of the module.
+ *
+ * The output is the same as that of {@link XQDocEngine#generate} except that
+ * the module section has no body, and the module section of a main module has
+ * no invoked functions or referenced variables, because the module section
+ * comes first and these are only known once the whole module has been read.
+ * The functions section follows the variables section, so the function
+ * fragments are spilled to a temporary file until the end of the module.
+ * It is not pretty printed.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public class XQDocStreamer {
+
+    private final Map uriMap;
+
+    /**
+     * <p>Constructor for XQDocStreamer.</p>
+     *
+     * @param uriMap The predefined function namespaces
+     */
+    public XQDocStreamer(Map uriMap) {
+        this.uriMap = uriMap;
+    }
+
+    /**
+     * Generate the xqDoc of an XQuery source while it is being read.
+     *
+     * @param input The XQuery source
+     * @param sourceName The name of the source in error messages
+     * @param output Receives the xqDoc XML
+     * @param errorListener The listener that receives the syntax errors of the
+     *                      source, or null to keep the ANTLR console listeners
+     * @throws java.io.IOException a
+     */
+    public void stream(Reader input, String sourceName, Writer output, ANTLRErrorListener errorListener) throws IOException {
+        UnbufferedCharStream charStream = new UnbufferedCharStream(input);
+        charStream.name = sourceName;
+        WindowCharStream window = new WindowCharStream(charStream);
+        XQueryLexer markupLexer = new XQueryLexer(window);
+        // The tokens outlive the characters of the unbuffered stream, so they keep a copy of their text
+        markupLexer.setTokenFactory(new CommonTokenFactory(true));
+        XQueryParser markupParser = new XQueryParser(new UnbufferedTokenStream<>(new DefaultChannelTokenSource(markupLexer)));
+        if (errorListener != null) {
+            markupLexer.removeErrorListeners();
+            markupLexer.addErrorListener(errorListener);
+            markupParser.removeErrorListeners();
+            markupParser.addErrorListener(errorListener);
+        }
+        try (Emitter emitter = new Emitter(window, output)) {
+            markupParser.addParseListener(emitter);
+            emitter.finish(markupParser.module());
+        }
+    }
+
+    /**
+     * Writes the xqDoc of each part of the module as soon as it has been
+     * parsed and prunes the parse tree behind it.
+     */
+    private class Emitter extends XQueryParserBaseListener implements AutoCloseable {
+        private final WindowCharStream window;
+        private final Writer output;
+        private final StringBuilder buffer = new StringBuilder();
+        private final XQueryVisitor visitor = new XQueryVisitor(buffer, uriMap);
+        private final StringBuilder queryBodies = new StringBuilder();
+        private boolean started = false;
+        private boolean importsWritten = false;
+        private boolean variablesOpen = false;
+        private File spillFile = null;
+        private Writer functions = null;
+
+        Emitter(WindowCharStream window, Writer output) {
+            this.window = window;
+            this.output = output;
+        }
+
+        @Override
+        public void exitModuleDecl(XQueryParser.ModuleDeclContext ctx) {
+            start((XQueryParser.ModuleContext) ctx.getParent().getParent());
+        }
+
+        @Override
+        public void enterMainModule(XQueryParser.MainModuleContext ctx) {
+            start((XQueryParser.ModuleContext) ctx.getParent());
+        }
+
+        @Override
+        public void exitXqDocComment(XQueryParser.XqDocCommentContext ctx) {
+            if (ctx.getParent() instanceof XQueryParser.PrologContext) {
+                visitor.visit(ctx);
+            }
+        }
+
+        @Override
+        public void exitSchemaImport(XQueryParser.SchemaImportContext ctx) {
+            visitDeclaration(ctx);
+        }
+
+        @Override
+        public void exitModuleImport(XQueryParser.ModuleImportContext ctx) {
+            visitDeclaration(ctx);
+        }
+
+        @Override
+        public void exitNamespaceDecl(XQueryParser.NamespaceDeclContext ctx) {
+            visitDeclaration(ctx);
+        }
+
+        @Override
+        public void exitVarDecl(XQueryParser.VarDeclContext ctx) {
+            writeImports();
+            // A variable in a namespace that is not known is not documented, and needs no section
+            if (visitDeclaration(ctx) && visitor.hasVariables()) {
+                if (!variablesOpen) {
+                    variablesOpen = true;
+                    buffer.append("<xqdoc:variables>").append("\n");
+                    flush();
+                }
+                take(ctx);
+            }
+        }
+
+        @Override
+        public void exitFunctionDecl(XQueryParser.FunctionDeclContext ctx) {
+            writeImports();
+            if (visitDeclaration(ctx)) {
+                take(ctx);
+            }
+        }
+
+        @Override
+        public void exitContextItemDecl(XQueryParser.ContextItemDeclContext ctx) {
+            prune(ctx);
+        }
+
+        @Override
+        public void exitOptionDecl(XQueryParser.OptionDeclContext ctx) {
+            prune(ctx);
+        }
+
+        @Override
+        public void exitProlog(XQueryParser.PrologContext ctx) {
+            writeImports();
+        }
+
+        @Override
+        public void exitQueryBody(XQueryParser.QueryBodyContext ctx) {
+            if (ctx.exception == null) {
+                visitor.visit(ctx);
+                take(ctx);
+            }
+        }
+
+        /**
+         * Write the end of the document once the whole module has been parsed.
+         *
+         * @param module The Antlr4 parser context of the module
+         * @throws java.io.IOException a
+         */
+        void finish(XQueryParser.ModuleContext module) throws IOException {
+            start(module);
+            writeImports();
+            if (variablesOpen) {
+                output.append("</xqdoc:variables>").append("\n");
+            }
+            if (functions != null) {
+                functions.close();
+                output.append("<xqdoc:functions>").append("\n");
+                try (BufferedReader reader = Files.newBufferedReader(spillFile.toPath(), StandardCharsets.UTF_8)) {
+                    char[] chars = new char[8192];
+                    int length;
+                    while ((length = reader.read(chars)) != -1) {
+                        output.write(chars, 0, length);
+                    }
+                }
+                output.append("</xqdoc:functions>").append("\n");
+            }
+            output.append(queryBodies);
+            output.append("</xqdoc:xqdoc>").append("\n");
+            output.flush();
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void close() throws IOException {
+            if (functions != null) {
+                functions.close();
+            }
+            if (spillFile != null) {
+                Files.deleteIfExists(spillFile.toPath());
+            }
+        }
+
+        private void start(XQueryParser.ModuleContext module) {
+            if (!started) {
+                started = true;
+                visitor.startStreamedModule(module);
+                flush();
+            }
+        }
+
+        private void writeImports() {
+            if (!importsWritten) {
+                importsWritten = true;
+                visitor.buildStreamedImports();
+                flush();
+            }
+        }
+
+        /**
+         *
+         * @param ctx The Antlr4 parser context of a prolog declaration
+         * @return true if the declaration parsed without errors and has been visited
+         */
+        private boolean visitDeclaration(ParserRuleContext ctx) {
+            boolean parsed = ctx.exception == null;
+            if (parsed) {
+                visitor.visit(ctx);
+            }
+            prune(ctx);
+            return parsed;
+        }
+
+        /**
+         *
+         * @param ctx The Antlr4 parser context whose fragments are written
+         */
+        private void take(ParserRuleContext ctx) {
+            try {
+                if (ctx instanceof XQueryParser.VarDeclContext) {
+                    visitor.takeVariables(output);
+                } else if (ctx instanceof XQueryParser.FunctionDeclContext) {
+                    if (functions == null) {
+                        spillFile = File.createTempFile("xqdoc", ".functions");
+                        functions = Files.newBufferedWriter(spillFile.toPath(), StandardCharsets.UTF_8);
+                    }
+                    visitor.takeFunctions(functions);
+                } else {
+                    visitor.takeQueryBody(queryBodies);
+                }
+            } catch (IOException e) {
+                throw new XQDocRuntimeException(e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Drop a declaration that has been written from the parse tree,
+         * together with the comments and semicolons in front of it, and let go
+         * of its characters.
+         *
+         * @param ctx The Antlr4 parser context of a prolog declaration
+         */
+        private void prune(ParserRuleContext ctx) {
+            ctx.getParent().children.clear();
+            if (ctx.stop != null) {
+                window.discard(ctx.stop.getStopIndex() + 1);
+            }
+        }
+
+        private void flush() {
+            try {
+                output.append(buffer);
+            } catch (IOException e) {
+                throw new XQDocRuntimeException(e.getMessage(), e);
+            }
+            buffer.setLength(0);
+        }
+    }
+
+    /**
+     * A character stream that keeps the characters the lexer has consumed
+     * until they are discarded, so the text of a declaration is still
+     * available once it has been parsed.  Every character goes through the
+     * window as it is consumed, and only the characters of declarations that
+     * have been written are discarded, so the window holds the text of any
+     * token or declaration that is still being parsed or visited.
+     */
+    private static class WindowCharStream implements CharStream {
+        private final CharStream input;
+        private int[] window = new int[4096];
+        // The index of the first character in the window
+        private int start = 0;
+        private int count = 0;
+
+        WindowCharStream(CharStream input) {
+            this.input = input;
+        }
+
+        /**
+         *
+         * @param index The index of the first character that is still needed
+         */
+        void discard(int index) {
+            int drop = Math.min(index - start, count);
+            if (drop > 0) {
+                System.arraycopy(window, drop, window, 0, count - drop);
+                start += drop;
+                count -= drop;
+            }
+        }
+
+        @Override
+        public String getText(Interval interval) {
+            if (interval.b < interval.a) {
+                return "";
+            }
+            if (interval.a < start || interval.b >= start + count) {
+                // The unbuffered stream behind the window has let go of these characters too
+                throw new XQDocRuntimeException("The characters " + interval + " of " + getSourceName()
+                        + " are not held by the streaming window, which holds " + Interval.of(start, start + count - 1));
+            }
+            return new String(window, interval.a - start, interval.b - interval.a + 1);
+        }
+
+        @Override
+        public void consume() {
+            if (input.index() == start + count) {
+                int c = input.LA(1);
+                if (c != IntStream.EOF) {
+                    if (count == window.length) {
+                        window = Arrays.copyOf(window, count * 2);
+                    }
+                    window[count++] = c;
+                }
+            }
+            input.consume();
+        }
+
+        @Override
+        public int LA(int i) {
+            return input.LA(i);
+        }
+
+        @Override
+        public int mark() {
+            return input.mark();
+        }
+
+        @Override
+        public void release(int marker) {
+            input.release(marker);
+        }
+
+        @Override
+        public int index() {
+            return input.index();
+        }
+
+        @Override
+        public void seek(int index) {
+            // Seeking forward consumes, so go through the window
+            while (input.index() < index && input.LA(1) != IntStream.EOF) {
+                consume();
+            }
+            input.seek(index);
+        }
+
+        @Override
+        public int size() {
+            return input.size();
+        }
+
+        @Override
+        public String getSourceName() {
+            return input.getSourceName();
+        }
+    }
+
+    /**
+     * Hands the parser the tokens of the default channel only, since an
+     * unbuffered token stream does not filter the hidden channel.
+     */
+    private static class DefaultChannelTokenSource implements TokenSource {
+        private final TokenSource source;
+
+        DefaultChannelTokenSource(TokenSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public Token nextToken() {
+            Token token = source.nextToken();
+            while (token.getChannel() != Token.DEFAULT_CHANNEL && token.getType() != Token.EOF) {
+                token = source.nextToken();
+            }
+            return token;
+        }
+
+        @Override
+        public int getLine() {
+            return source.getLine();
+        }
+
+        @Override
+        public int getCharPositionInLine() {
+            return source.getCharPositionInLine();
+        }
+
+        @Override
+        public CharStream getInputStream() {
+            return source.getInputStream();
+        }
+
+        @Override
+        public String getSourceName() {
+            return source.getSourceName();
+        }
+
+        @Override
+        public void setTokenFactory(TokenFactory<?> factory) {
+            source.setTokenFactory(factory);
+        }
+
+        @Override
+        public TokenFactory<?> getTokenFactory() {
+            return source.getTokenFactory();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.xqdoc;
+
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>XQDocValidator class.</p>
+ *
+ * Validates generated xqDoc XML against the xqDoc schema that ships with the
+ * jar.  The schema is compiled once, the first time a validator is made, and
+ * is shared by every validator and thread; each thread keeps its own
+ * {@link Validator}.  The XML is validated as a stream of SAX events while it
+ * is read, so no DOM is built and a batch can keep validation on.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public class XQDocValidator {
+
+    /** The class path resource of the xqDoc schema. */
+    public static final String SCHEMA_RESOURCE = "/xqdoc-1.1.20261018.xsd";
+
+    private final Schema schema;
+
+    private final ThreadLocal<Validator> validators = new ThreadLocal<Validator>() {
+        @Override
+        protected Validator initialValue() {
+            Validator validator = schema.newValidator();
+            try {
+                validator.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+                validator.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+            } catch (SAXException ex) {
+                // The validator does not support the JAXP 1.5 properties, and the xqDoc has no DTD
+            }
+            return validator;
+        }
+    };
+
+    /**
+     * <p>Constructor for XQDocValidator that uses the bundled xqDoc schema.</p>
+     */
+    public XQDocValidator() {
+        this(SchemaHolder.SCHEMA);
+    }
+
+    /**
+     * <p>Constructor for XQDocValidator.</p>
+     *
+     * @param schema The compiled schema the xqDoc XML must conform to
+     */
+    public XQDocValidator(Schema schema) {
+        this.schema = schema;
+    }
+
+    /**
+     * <p>getSchema.</p>
+     *
+     * @return The compiled schema
+     */
+    public Schema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Validate xqDoc XML.
+     *
+     * @param xml The xqDoc XML
+     * @return The problems, each as line:column: message, or an empty list if the XML is valid
+     * @throws java.io.IOException a
+     */
+    public List<String> validate(String xml) throws IOException {
+        return validate(new StringReader(xml));
+    }
+
+    /**
+     * Validate xqDoc XML while it is read.  A problem that stops the XML from
+     * being read, such as XML that is not well-formed, is the last problem.
+     *
+     * @param xml The xqDoc XML
+     * @return The problems, each as line:column: message, or an empty list if the XML is valid
+     * @throws java.io.IOException a
+     */
+    public List<String> validate(Reader xml) throws IOException {
+        final List<String> problems = new ArrayList<>();
+        Validator validator = validators.get();
+        validator.setErrorHandler(new ErrorHandler() {
+            @Override
+            public void warning(SAXParseException exception) {
+            }
+
+            @Override
+            public void error(SAXParseException exception) {
+                problems.add(problem(exception));
+            }
+
+            @Override
+            public void fatalError(SAXParseException exception) throws SAXException {
+                throw exception;
+            }
+        });
+        try {
+            validator.validate(new StreamSource(xml));
+        } catch (SAXParseException ex) {
+            problems.add(problem(ex));
+        } catch (SAXException ex) {
+            problems.add(ex.getMessage());
+        }
+        return problems;
+    }
+
+    private static String problem(SAXParseException exception) {
+        return exception.getLineNumber() + ":" + exception.getColumnNumber() + ": " + exception.getMessage();
+    }
+
+    /**
+     * Compiles the bundled schema the first time it is needed.
+     */
+    private static class SchemaHolder {
+        private static final Schema SCHEMA = compile();
+
+        private static Schema compile() {
+            URL resource = XQDocValidator.class.getResource(SCHEMA_RESOURCE);
+            if (resource == null) {
+                throw new XQDocRuntimeException("The xqDoc schema " + SCHEMA_RESOURCE + " is not on the class path");
+            }
+            try {
+                SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+                factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+                return factory.newSchema(resource);
+            } catch (SAXException ex) {
+                throw new XQDocRuntimeException("The xqDoc schema " + SCHEMA_RESOURCE + " cannot be compiled", ex);
+            }
+        }
+    }
+}
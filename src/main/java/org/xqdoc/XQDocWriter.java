@@ -0,0 +1,273 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CodePointCharStream;
+import org.antlr.v4.runtime.misc.Interval;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * <p>XQDocWriter class.</p>
+ *
+ * The destination of the xqDoc XML built by the {@link XQueryVisitor}: either
+ * a caller-supplied {@link Writer}, which the fragments are written straight
+ * to, or an unsynchronized {@link StringBuilder} for the sections that have
+ * to wait for their place in the document.  An {@link IOException} of the
+ * writer is rethrown as an {@link XQDocRuntimeException}, since the visitor
+ * methods cannot throw checked exceptions.
+ *
+ * The source of a section is copied from the {@link CharStream} into a CDATA
+ * section one character at a time, without taking it out as a string first.
+ * A writer from {@link #discarding()} drops everything, for a visitor that
+ * only fills an {@link XQDocModel}.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+class XQDocWriter implements Appendable {
+
+    private static final String SPLIT_CDATA = "]]><![CDATA[";
+
+    private final Writer writer;
+    private final StringBuilder builder;
+    private char[] chunk;
+    private int chunkLength;
+
+    /**
+     * <p>Constructor for XQDocWriter.</p>
+     *
+     * @param writer The writer that receives the XML
+     */
+    XQDocWriter(Writer writer) {
+        this.writer = writer;
+        this.builder = null;
+    }
+
+    /**
+     * <p>Constructor for XQDocWriter.</p>
+     *
+     * @param builder The buffer that receives the XML
+     */
+    XQDocWriter(StringBuilder builder) {
+        this.writer = null;
+        this.builder = builder;
+    }
+
+    /**
+     * <p>Constructor for XQDocWriter.</p>
+     *
+     * Creates a writer into a new buffer.
+     */
+    XQDocWriter() {
+        this(new StringBuilder());
+    }
+
+    private XQDocWriter(Writer writer, StringBuilder builder) {
+        this.writer = writer;
+        this.builder = builder;
+    }
+
+    /**
+     * <p>discarding.</p>
+     *
+     * @return A writer that drops the XML
+     */
+    static XQDocWriter discarding() {
+        return new XQDocWriter(null, null);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public XQDocWriter append(CharSequence csq) {
+        if (builder != null) {
+            builder.append(csq);
+            return this;
+        }
+        if (writer == null) {
+            return this;
+        }
+        try {
+            writer.append(csq);
+        } catch (IOException e) {
+            throw new XQDocRuntimeException(e.getMessage(), e);
+        }
+        return this;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public XQDocWriter append(CharSequence csq, int start, int end) {
+        if (builder != null) {
+            builder.append(csq, start, end);
+            return this;
+        }
+        if (writer == null) {
+            return this;
+        }
+        try {
+            writer.append(csq, start, end);
+        } catch (IOException e) {
+            throw new XQDocRuntimeException(e.getMessage(), e);
+        }
+        return this;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public XQDocWriter append(char c) {
+        if (builder != null) {
+            builder.append(c);
+            return this;
+        }
+        if (writer == null) {
+            return this;
+        }
+        try {
+            writer.write(c);
+        } catch (IOException e) {
+            throw new XQDocRuntimeException(e.getMessage(), e);
+        }
+        return this;
+    }
+
+    /**
+     * <p>append.</p>
+     *
+     * @param i The number to write in decimal
+     * @return This writer
+     */
+    public XQDocWriter append(int i) {
+        return append(Integer.toString(i));
+    }
+
+    /**
+     * Write a span of the source as a CDATA section.  Each <code>]]&gt;</code>
+     * in the source ends the section after its <code>]]</code> and starts a
+     * new one before its <code>&gt;</code>, so the text reads back unchanged.
+     * The characters of a stream that holds the whole source are read in
+     * place; any other stream, such as the window of the
+     * {@link XQDocStreamer}, gives the span as text.
+     *
+     * @param input The source of the XQuery module
+     * @param start The index of the first character of the span
+     * @param stop The index of the last character of the span
+     * @return This writer
+     */
+    XQDocWriter appendCData(CharStream input, int start, int stop) {
+        if (writer == null && builder == null) {
+            return this;
+        }
+        if (!(input instanceof CodePointCharStream || input instanceof ByteBufferCharStream)) {
+            return appendCData(input.getText(Interval.of(start, stop)));
+        }
+        append("<![CDATA[");
+        int mark = input.index();
+        input.seek(start);
+        try {
+            int brackets = 0;
+            for (int i = 1; i <= stop - start + 1; i++) {
+                int c = input.LA(i);
+                if (c == '>' && brackets >= 2) {
+                    put(SPLIT_CDATA);
+                }
+                brackets = c == ']' ? brackets + 1 : 0;
+                put(c);
+            }
+            flushChunk();
+        } finally {
+            input.seek(mark);
+        }
+        return append("]]>");
+    }
+
+    /**
+     * Write a text as a CDATA section, split at each <code>]]&gt;</code> as
+     * {@link #appendCData(CharStream, int, int)} does.
+     *
+     * @param text The text
+     * @return This writer
+     */
+    XQDocWriter appendCData(CharSequence text) {
+        append("<![CDATA[");
+        int written = 0;
+        int brackets = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '>' && brackets >= 2) {
+                append(text, written, i).append(SPLIT_CDATA);
+                written = i;
+            }
+            brackets = c == ']' ? brackets + 1 : 0;
+        }
+        return append(text, written, text.length()).append("]]>");
+    }
+
+    private void put(int c) {
+        if (builder != null) {
+            builder.appendCodePoint(c);
+            return;
+        }
+        if (chunk == null) {
+            chunk = new char[1024];
+        } else if (chunkLength > chunk.length - 2) {
+            flushChunk();
+        }
+        chunkLength += Character.toChars(c, chunk, chunkLength);
+    }
+
+    private void put(String text) {
+        if (builder != null) {
+            builder.append(text);
+            return;
+        }
+        flushChunk();
+        append(text);
+    }
+
+    private void flushChunk() {
+        if (chunkLength > 0) {
+            try {
+                writer.write(chunk, 0, chunkLength);
+            } catch (IOException e) {
+                throw new XQDocRuntimeException(e.getMessage(), e);
+            }
+            chunkLength = 0;
+        }
+    }
+
+    /**
+     * <p>length.</p>
+     *
+     * @return The number of characters in the buffer, or 0 for a writer
+     */
+    int length() {
+        return builder != null ? builder.length() : 0;
+    }
+
+    /**
+     * Copy the buffer to another destination and empty it.
+     *
+     * @param out Receives the XML in the buffer
+     * @throws java.io.IOException a
+     */
+    void moveTo(Appendable out) throws IOException {
+        if (builder != null) {
+            out.append(builder);
+            builder.setLength(0);
+        }
+    }
+
+    /**
+     * Flush the writer.
+     */
+    void flush() {
+        if (writer != null) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                throw new XQDocRuntimeException(e.getMessage(), e);
+            }
+        }
+    }
+}
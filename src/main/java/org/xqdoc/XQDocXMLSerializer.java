@@ -0,0 +1,346 @@
+package org.xqdoc;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>XQDocXMLSerializer class.</p>
+ *
+ * Renders an {@link XQDocModel} as an xqDoc XML document.  The
+ * {@link XQueryVisitor} writes its sections with the same methods while it
+ * visits the module, so the document is the same either way.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public class XQDocXMLSerializer implements XQDocSerializer {
+
+    private boolean prettyPrint = true;
+
+    /**
+     * Pretty print the document, as {@link XQDocEngine#process} does.  The
+     * default is true.
+     *
+     * @param bool flag to indicate whether the document is pretty printed
+     */
+    public void setPrettyPrint(boolean bool) {
+        prettyPrint = bool;
+    }
+
+    /**
+     * <p>getPrettyPrint.</p>
+     *
+     * @return the pretty print flag
+     */
+    public boolean getPrettyPrint() {
+        return prettyPrint;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void serialize(XQDocModel model, Writer output) throws IOException {
+        XQDocWriter out = new XQDocWriter(prettyPrint ? new PrettyPrintWriter(output) : output);
+        try {
+            writeControl(out, model.getDate(), model.getVersion());
+            if (model.getModule() != null) {
+                writeModule(out, model.getModule());
+            }
+            writeImports(out, model.getImports());
+            writeNamespaces(out, model.getNamespaces());
+            if (!model.getVariables().isEmpty()) {
+                out.append("<xqdoc:variables>").append("\n");
+                for (XQDocModel.Variable variable : model.getVariables()) {
+                    writeVariable(out, variable);
+                }
+                out.append("</xqdoc:variables>").append("\n");
+            }
+            if (!model.getFunctions().isEmpty()) {
+                out.append("<xqdoc:functions>").append("\n");
+                for (XQDocModel.Function function : model.getFunctions()) {
+                    writeFunction(out, function);
+                }
+                out.append("</xqdoc:functions>").append("\n");
+            }
+            for (XQDocModel.SourceText queryBody : model.getQueryBodies()) {
+                writeQueryBody(out, queryBody);
+            }
+            out.append("</xqdoc:xqdoc>").append("\n");
+            out.flush();
+        } catch (XQDocRuntimeException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     *
+     * @param out Receives the start of the document and the control section
+     * @param date The time the xqDoc was generated
+     * @param version The version of the xqDoc vocabulary
+     */
+    static void writeControl(XQDocWriter out, String date, String version) {
+        out.append("<xqdoc:xqdoc xmlns:xqdoc=\"http://www.xqdoc.org/1.0\">").append("\n");
+        out.append("<xqdoc:control>").append("\n");
+        out.append("<xqdoc:date>").append(date).append("</xqdoc:date>").append("\n");
+        out.append("<xqdoc:version>").append(version).append("</xqdoc:version>").append("\n");
+        out.append("</xqdoc:control>").append("\n");
+    }
+
+    /**
+     *
+     * @param out Receives the module section
+     * @param module The module
+     */
+    static void writeModule(XQDocWriter out, XQDocModel.Module module) {
+        boolean main = "main".equals(module.getType());
+        out.append("<xqdoc:module type=\"").append(module.getType()).append("\">").append("\n");
+        if (!main) {
+            out.append("<xqdoc:uri>").append(module.getUri()).append("</xqdoc:uri>").append("\n");
+            out.append("<xqdoc:name>").append(module.getName()).append("</xqdoc:name>").append("\n");
+        }
+        for (XQDocModel.Comment comment : module.getComments()) {
+            writeComment(out, comment);
+        }
+        for (XQDocModel.Reference invoked : module.getInvoked()) {
+            out.append("<xqdoc:invoked>").append("\n");
+            out.append("<xqdoc:uri>").append(invoked.getUri()).append("</xqdoc:uri>").append("\n");
+            out.append("<xqdoc:name>").append(invoked.getLexicalName()).append("</xqdoc:name>").append("\n");
+            out.append("</xqdoc:invoked>").append("\n");
+        }
+        writeReferencedVariables(out, module.getReferencedVariables());
+        if (module.getBody() != null) {
+            writeBody(out, module.getBody());
+        }
+        out.append("</xqdoc:module>").append("\n");
+    }
+
+    /**
+     *
+     * @param out Receives the imports section, if there are imports
+     * @param imports The imports
+     */
+    static void writeImports(XQDocWriter out, Iterable<XQDocModel.Import> imports) {
+        boolean open = false;
+        for (XQDocModel.Import importDeclaration : imports) {
+            if (!open) {
+                out.append("<xqdoc:imports>").append("\n");
+                open = true;
+            }
+            out.append("<xqdoc:import type=\"").append(importDeclaration.getType()).append("\"");
+            if (importDeclaration.getPrefix() != null) {
+                out.append(" prefix=\"").append(importDeclaration.getPrefix()).append("\"");
+            }
+            if (importDeclaration.getLocation() != null) {
+                out.append(" location=\"").append(importDeclaration.getLocation()).append("\"");
+            }
+            out.append(">").append("\n");
+            out.append("<xqdoc:uri>").append(importDeclaration.getUri()).append("</xqdoc:uri>\n");
+            writeComment(out, importDeclaration.getComment());
+            writeBody(out, importDeclaration.getBody());
+            out.append("</xqdoc:import>\n");
+        }
+        if (open) {
+            out.append("</xqdoc:imports>").append("\n");
+        }
+    }
+
+    /**
+     *
+     * @param out Receives the namespaces section, if there are namespaces
+     * @param namespaces The namespaces by their prefixes
+     */
+    static void writeNamespaces(XQDocWriter out, Map<String, String> namespaces) {
+        if (!namespaces.isEmpty()) {
+            out.append("<xqdoc:namespaces>").append("\n");
+            for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+                out.append("<xqdoc:namespace prefix=\"").append(namespace.getKey());
+                out.append("\" uri=\"").append(namespace.getValue()).append("\"/>").append("\n");
+            }
+            out.append("</xqdoc:namespaces>").append("\n");
+        }
+    }
+
+    /**
+     *
+     * @param out Receives the variable element
+     * @param variable The variable
+     */
+    static void writeVariable(XQDocWriter out, XQDocModel.Variable variable) {
+        out.append("<xqdoc:variable>").append("\n");
+        out.append("<xqdoc:uri>").append(variable.getUri()).append("</xqdoc:uri>").append("\n");
+        out.append("<xqdoc:name>").append(variable.getName()).append("</xqdoc:name>").append("\n");
+        writeComment(out, variable.getComment());
+        writeAnnotations(out, variable.getAnnotations());
+        if (variable.getType() != null) {
+            writeType(out, variable.getType());
+        }
+        writeBody(out, variable.getBody());
+        out.append("</xqdoc:variable>").append("\n");
+    }
+
+    /**
+     *
+     * @param out Receives the function element
+     * @param function The function
+     */
+    static void writeFunction(XQDocWriter out, XQDocModel.Function function) {
+        out.append("<xqdoc:function>").append("\n");
+        writeComment(out, function.getComment());
+        out.append("<xqdoc:name>").append(function.getName()).append("</xqdoc:name>").append("\n");
+        writeAnnotations(out, function.getAnnotations());
+        out.append("<xqdoc:signature>").append(function.getSignature()).append("</xqdoc:signature>").append("\n");
+        if (!function.getParameters().isEmpty()) {
+            out.append("<xqdoc:parameters>").append("\n");
+            for (XQDocModel.Parameter parameter : function.getParameters()) {
+                out.append("<xqdoc:parameter>").append("\n");
+                out.append("<xqdoc:name>").append(parameter.getName()).append("</xqdoc:name>").append("\n");
+                if (parameter.getType() != null) {
+                    writeType(out, parameter.getType());
+                }
+                out.append("</xqdoc:parameter>").append("\n");
+            }
+            out.append("</xqdoc:parameters>").append("\n");
+        }
+        if (function.getReturnType() != null) {
+            out.append("<xqdoc:return>").append("\n");
+            writeType(out, function.getReturnType());
+            out.append("</xqdoc:return>").append("\n");
+        }
+        for (XQDocModel.Reference invoked : function.getInvoked()) {
+            out.append("<xqdoc:invoked>").append("\n");
+            out.append("<xqdoc:uri>").append(invoked.getUri()).append("</xqdoc:uri>").append("\n");
+            if (invoked.getPrefix() != null) {
+                out.append("<xqdoc:prefix>").append(invoked.getPrefix()).append("</xqdoc:prefix>").append("\n");
+            }
+            out.append("<xqdoc:name>").append(invoked.getName()).append("</xqdoc:name>").append("\n");
+            out.append("</xqdoc:invoked>").append("\n");
+        }
+        writeReferencedVariables(out, function.getReferencedVariables());
+        writeBody(out, function.getBody());
+        out.append("</xqdoc:function>").append("\n");
+    }
+
+    /**
+     *
+     * @param out Receives the queryBody element
+     * @param body The query body
+     */
+    static void writeQueryBody(XQDocWriter out, XQDocModel.SourceText body) {
+        out.append("<xqdoc:queryBody>").append("\n");
+        writeBody(out, body);
+        out.append("</xqdoc:queryBody>").append("\n");
+    }
+
+    /**
+     *
+     * @param out Receives the comment element, if there is a comment
+     * @param comment The xqDoc comment, or null
+     */
+    static void writeComment(XQDocWriter out, XQDocModel.Comment comment) {
+        if (comment == null) {
+            return;
+        }
+        out.append("<xqdoc:comment start='").append(comment.getStart());
+        out.append("' end='").append(comment.getEnd()).append("'>");
+        if (comment.getEntriesXML() != null) {
+            out.append(comment.getEntriesXML());
+        } else {
+            writeCommentEntries(out, comment.getEntries());
+        }
+        out.append("</xqdoc:comment>").append("\n");
+    }
+
+    /**
+     *
+     * @param out Receives the elements of the entries
+     * @param entries The description and the tagged parts of a comment
+     */
+    static void writeCommentEntries(XQDocWriter out, List<XQDocModel.CommentEntry> entries) {
+        for (XQDocModel.CommentEntry entry : entries) {
+            out.append("<xqdoc:").append(entry.getName());
+            if (entry.getTag() != null) {
+                out.append(" tag='").append(entry.getTag()).append("'");
+            }
+            out.append(">").appendCData(entry.getText());
+            out.append("</xqdoc:").append(entry.getName()).append(">");
+        }
+    }
+
+    /**
+     *
+     * @param out Receives the annotations element, if there are annotations
+     * @param annotations The annotations
+     */
+    private static void writeAnnotations(XQDocWriter out, List<XQDocModel.Annotation> annotations) {
+        if (annotations.isEmpty()) {
+            return;
+        }
+        out.append("<xqdoc:annotations>").append("\n");
+        for (XQDocModel.Annotation annotation : annotations) {
+            out.append("<xqdoc:annotation name=\"").append(annotation.getName()).append("\">").append("\n");
+            for (int i = 0; i < annotation.getLiterals().size(); i++) {
+                out.append("<xqdoc:literal type=\"").append(annotation.getLiteralTypes().get(i)).append("\">");
+                writeCData(out, annotation.getLiterals().get(i));
+                out.append("</xqdoc:literal>").append("\n");
+            }
+            out.append("</xqdoc:annotation>").append("\n");
+        }
+        out.append("</xqdoc:annotations>").append("\n");
+    }
+
+    /**
+     *
+     * @param out Receives the type element
+     * @param type The sequence type
+     */
+    private static void writeType(XQDocWriter out, XQDocModel.Type type) {
+        out.append("<xqdoc:type");
+        if (type.getOccurrence() != null) {
+            out.append(" occurrence=\"").append(type.getOccurrence()).append("\"");
+        }
+        out.append(">").append(type.getItemType()).append("</xqdoc:type>").append("\n");
+    }
+
+    /**
+     *
+     * @param out Receives the ref-variable elements
+     * @param variables The referenced variables
+     */
+    private static void writeReferencedVariables(XQDocWriter out, List<XQDocModel.Reference> variables) {
+        for (XQDocModel.Reference variable : variables) {
+            out.append("<xqdoc:ref-variable>").append("\n");
+            out.append("<xqdoc:uri>").append(variable.getUri()).append("</xqdoc:uri>").append("\n");
+            out.append("<xqdoc:name>").append(variable.getName()).append("</xqdoc:name>").append("\n");
+            out.append("</xqdoc:ref-variable>").append("\n");
+        }
+    }
+
+    /**
+     *
+     * @param out Receives the body element
+     * @param body The source of a section
+     */
+    private static void writeBody(XQDocWriter out, XQDocModel.SourceText body) {
+        out.append("<xqdoc:body start=\"").append(body.getStart());
+        out.append("\" end=\"").append(body.getEnd()).append("\" xml:space=\"preserve\">");
+        writeCData(out, body);
+        out.append("</xqdoc:body>").append("\n");
+    }
+
+    /**
+     *
+     * @param out Receives the span as a CDATA section
+     * @param text A span of the source
+     */
+    private static void writeCData(XQDocWriter out, XQDocModel.SourceText text) {
+        if (text.getInput() != null) {
+            out.appendCData(text.getInput(), text.getStartIndex(), text.getStopIndex());
+        } else {
+            out.appendCData(text.getText());
+        }
+    }
+}
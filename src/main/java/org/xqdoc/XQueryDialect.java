@@ -0,0 +1,199 @@
+package org.xqdoc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * <p>XQueryDialect class.</p>
+ *
+ * The predefined function namespaces of an XQuery implementation: the
+ * prefixes that a module can use without importing or declaring them.  A
+ * dialect is immutable and can be shared by any number of engines and
+ * threads.  The MarkLogic, eXist-db and W3C dialects are read once from the
+ * properties files in <code>org/xqdoc/dialects</code>, and the dialects of
+ * other implementations can be loaded from properties files of their own.
+ *
+ * Prefixes are added with {@link #with(Map)}, which layers them over the
+ * namespaces of the dialect without copying them.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public final class XQueryDialect {
+
+    /** The namespaces that XQuery 3.1 defines. */
+    public static final XQueryDialect W3C = builtIn("w3c");
+
+    /** The built-in modules of MarkLogic Server. */
+    public static final XQueryDialect MARKLOGIC = builtIn("marklogic");
+
+    /** The built-in modules of eXist-db. */
+    public static final XQueryDialect EXISTDB = builtIn("existdb");
+
+    private final String name;
+    private final Map<String, String> namespaces;
+
+    private XQueryDialect(String name, Map<String, String> namespaces) {
+        this.name = name;
+        this.namespaces = namespaces;
+    }
+
+    /**
+     * Find a dialect by name.
+     *
+     * @param name The name of the dialect, marklogic, existdb or w3c
+     * @return The dialect, or null if there is no dialect of that name
+     */
+    public static XQueryDialect forName(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "marklogic":
+                return MARKLOGIC;
+            case "existdb":
+            case "exist-db":
+                return EXISTDB;
+            case "w3c":
+                return W3C;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Load a dialect from a properties file that maps each prefix to its
+     * namespace URI.
+     *
+     * @param name The name of the dialect
+     * @param file The UTF-8 properties file
+     * @return The dialect
+     * @throws java.io.IOException a
+     */
+    public static XQueryDialect load(String name, Path file) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return load(name, reader);
+        }
+    }
+
+    /**
+     * Load a dialect from the properties that map each prefix to its
+     * namespace URI.
+     *
+     * @param name The name of the dialect
+     * @param reader The properties
+     * @return The dialect
+     * @throws java.io.IOException a
+     */
+    public static XQueryDialect load(String name, Reader reader) throws IOException {
+        Properties properties = new Properties();
+        properties.load(reader);
+        Map<String, String> namespaces = new HashMap<>();
+        for (String prefix : properties.stringPropertyNames()) {
+            namespaces.put(prefix, properties.getProperty(prefix));
+        }
+        return new XQueryDialect(name, Collections.unmodifiableMap(namespaces));
+    }
+
+    private static XQueryDialect builtIn(String name) {
+        try (InputStream in = XQueryDialect.class.getResourceAsStream("dialects/" + name + ".properties")) {
+            if (in == null) {
+                throw new XQDocRuntimeException("The " + name + " dialect is missing from the class path");
+            }
+            return load(name, new InputStreamReader(in, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new XQDocRuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Add prefixes to the dialect.
+     *
+     * @param prefixes The namespace URIs of the prefixes, which take the
+     *                 place of those of the dialect for the same prefix
+     * @return A dialect with the prefixes over the namespaces of this one
+     */
+    public XQueryDialect with(Map<String, String> prefixes) {
+        if (prefixes.isEmpty()) {
+            return this;
+        }
+        return new XQueryDialect(name, new LayeredMap(new HashMap<>(prefixes), namespaces));
+    }
+
+    /**
+     * Add a prefix to the dialect.
+     *
+     * @param prefix The prefix
+     * @param uri The namespace URI of the prefix
+     * @return A dialect with the prefix over the namespaces of this one
+     */
+    public XQueryDialect with(String prefix, String uri) {
+        return with(Collections.singletonMap(prefix, uri));
+    }
+
+    /**
+     * <p>getName.</p>
+     *
+     * @return The name of the dialect
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * <p>getNamespaces.</p>
+     *
+     * @return The read-only map of the prefixes to their namespace URIs, for the {@link XQDocEngine}
+     */
+    public Map<String, String> getNamespaces() {
+        return namespaces;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * A read-only map that looks a prefix up in the added prefixes first and
+     * then in the namespaces of the dialect underneath.
+     */
+    private static class LayeredMap extends AbstractMap<String, String> {
+        private final Map<String, String> top;
+        private final Map<String, String> base;
+
+        LayeredMap(Map<String, String> top, Map<String, String> base) {
+            this.top = top;
+            this.base = base;
+        }
+
+        @Override
+        public String get(Object key) {
+            String value = top.get(key);
+            return value != null ? value : base.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return top.containsKey(key) || base.containsKey(key);
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            Map<String, String> all = new LinkedHashMap<>(base);
+            all.putAll(top);
+            return Collections.unmodifiableMap(all).entrySet();
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.atn.DecisionInfo;
+import org.antlr.v4.runtime.atn.LookaheadEventInfo;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>XQueryProfiler class.</p>
+ *
+ * Runs XQuery modules through the parser with ANTLR's profiling simulator
+ * and adds up the statistics of every decision of the grammar over all of
+ * the modules.  The report lists the decisions with the most prediction time,
+ * the deepest lookahead, the most full-context (LL) fallbacks and the most
+ * ambiguities, each mapped to its rule in XQueryParser.g4, along with the
+ * prediction time per rule and the slowest modules.  The JSON form of the
+ * report holds every decision so it can be compared between releases.
+ *
+ * The parser predicts in the default LL mode, so the SLL attempt and the LL
+ * fallback of each decision are both visible.
+ *
+ * @author lcahlander
+ * @version $Id: $Id
+ */
+public class XQueryProfiler {
+
+    private final Map<Integer, DecisionStats> decisions = new TreeMap<>();
+    private final List<ModuleStats> modules = new ArrayList<>();
+
+    /**
+     * Parse a module with profiling enabled and add its statistics.
+     *
+     * @param input The XQuery source
+     */
+    public void profile(CharStream input) {
+        XQueryLexer markupLexer = new XQueryLexer(input);
+        markupLexer.removeErrorListeners();
+        CommonTokenStream commonTokenStream = new CommonTokenStream(markupLexer);
+        XQueryParser markupParser = new XQueryParser(commonTokenStream);
+        markupParser.removeErrorListeners();
+        markupParser.addErrorListener(new BaseErrorListener());
+        markupParser.setProfile(true);
+
+        long start = System.nanoTime();
+        markupParser.module();
+        ModuleStats module = new ModuleStats(input.getSourceName(), commonTokenStream.size(), System.nanoTime() - start);
+        modules.add(module);
+
+        String[] ruleNames = markupParser.getRuleNames();
+        for (DecisionInfo info : markupParser.getParseInfo().getDecisionInfo()) {
+            if (info.invocations == 0) {
+                continue;
+            }
+            DecisionStats stats = decisions.get(info.decision);
+            if (stats == null) {
+                int ruleIndex = markupParser.getATN().getDecisionState(info.decision).ruleIndex;
+                stats = new DecisionStats(info.decision, ruleNames[ruleIndex]);
+                decisions.put(info.decision, stats);
+            }
+            stats.add(info, input.getSourceName());
+            module.timeInPrediction += info.timeInPrediction;
+        }
+    }
+
+    /**
+     * Write the report as text.
+     *
+     * @param out The stream that receives the report
+     * @param limit The number of entries in each of the lists
+     */
+    public void writeReport(PrintStream out, int limit) {
+        List<DecisionStats> all = new ArrayList<>(decisions.values());
+        String format = "%-28s %5s %10s %10s %8s %8s %8s %8s %6s  %s%n";
+        String[] columns = {"rule", "dec", "calls", "time ms", "SLL avg", "SLL max", "LL fall", "LL max", "ambig", "deepest lookahead"};
+
+        out.println("Profiled " + modules.size() + " modules");
+        section(out, "Decisions by prediction time", all, new Comparator<DecisionStats>() {
+            @Override
+            public int compare(DecisionStats a, DecisionStats b) {
+                return Long.compare(b.timeInPrediction, a.timeInPrediction);
+            }
+        }, limit, format, columns);
+        section(out, "Decisions by maximum lookahead", all, new Comparator<DecisionStats>() {
+            @Override
+            public int compare(DecisionStats a, DecisionStats b) {
+                return Long.compare(b.getMaxLook(), a.getMaxLook());
+            }
+        }, limit, format, columns);
+        section(out, "Decisions by full-context (LL) fallbacks", all, new Comparator<DecisionStats>() {
+            @Override
+            public int compare(DecisionStats a, DecisionStats b) {
+                return Long.compare(b.llFallback, a.llFallback);
+            }
+        }, limit, format, columns);
+        section(out, "Decisions by ambiguities", all, new Comparator<DecisionStats>() {
+            @Override
+            public int compare(DecisionStats a, DecisionStats b) {
+                return Long.compare(b.ambiguities, a.ambiguities);
+            }
+        }, limit, format, columns);
+
+        Map<String, Long> rules = new TreeMap<>();
+        for (DecisionStats stats : all) {
+            Long time = rules.get(stats.rule);
+            rules.put(stats.rule, (time == null ? 0 : time) + stats.timeInPrediction);
+        }
+        List<Map.Entry<String, Long>> ruleTimes = new ArrayList<>(rules.entrySet());
+        Collections.sort(ruleTimes, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                return Long.compare(b.getValue(), a.getValue());
+            }
+        });
+        out.println();
+        out.println("Rules by prediction time");
+        for (Map.Entry<String, Long> entry : ruleTimes.subList(0, Math.min(limit, ruleTimes.size()))) {
+            out.printf("%-28s %10.2f%n", entry.getKey(), entry.getValue() / 1e6);
+        }
+
+        List<ModuleStats> slowest = new ArrayList<>(modules);
+        Collections.sort(slowest, new Comparator<ModuleStats>() {
+            @Override
+            public int compare(ModuleStats a, ModuleStats b) {
+                return Long.compare(b.parseTime, a.parseTime);
+            }
+        });
+        out.println();
+        out.println("Slowest modules");
+        out.printf("%10s %10s %8s  %s%n", "parse ms", "predict ms", "tokens", "module");
+        for (ModuleStats module : slowest.subList(0, Math.min(limit, slowest.size()))) {
+            out.printf("%10.2f %10.2f %8d  %s%n", module.parseTime / 1e6, module.timeInPrediction / 1e6, module.tokens, module.name);
+        }
+    }
+
+    private void section(PrintStream out, String title, List<DecisionStats> all, Comparator<DecisionStats> order,
+                         int limit, String format, String[] columns) {
+        List<DecisionStats> sorted = new ArrayList<>(all);
+        Collections.sort(sorted, order);
+        out.println();
+        out.println(title);
+        out.printf(format, (Object[]) columns);
+        for (DecisionStats stats : sorted.subList(0, Math.min(limit, sorted.size()))) {
+            out.printf(format, stats.rule, stats.decision, stats.invocations,
+                    String.format("%.2f", stats.timeInPrediction / 1e6),
+                    String.format("%.2f", stats.invocations == 0 ? 0.0 : (double) stats.sllTotalLook / stats.invocations),
+                    stats.sllMaxLook, stats.llFallback, stats.llMaxLook, stats.ambiguities,
+                    stats.maxLookLocation == null ? "" : stats.maxLookLocation);
+        }
+    }
+
+    /**
+     * <p>toJson.</p>
+     *
+     * @return Every decision and module of the profile as a JSON object
+     */
+    public String toJson() {
+        List<Object> decisionList = new ArrayList<>();
+        for (DecisionStats stats : decisions.values()) {
+            Map<String, Object> decision = new LinkedHashMap<>();
+            decision.put("decision", stats.decision);
+            decision.put("rule", stats.rule);
+            decision.put("invocations", stats.invocations);
+            decision.put("timeInPrediction", stats.timeInPrediction);
+            decision.put("sllTotalLook", stats.sllTotalLook);
+            decision.put("sllMaxLook", stats.sllMaxLook);
+            decision.put("llFallback", stats.llFallback);
+            decision.put("llTotalLook", stats.llTotalLook);
+            decision.put("llMaxLook", stats.llMaxLook);
+            decision.put("ambiguities", stats.ambiguities);
+            decision.put("contextSensitivities", stats.contextSensitivities);
+            decision.put("errors", stats.errors);
+            decision.put("maxLookLocation", stats.maxLookLocation);
+            decisionList.add(decision);
+        }
+        List<Object> moduleList = new ArrayList<>();
+        for (ModuleStats module : modules) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("module", module.name);
+            entry.put("tokens", module.tokens);
+            entry.put("parseTime", module.parseTime);
+            entry.put("timeInPrediction", module.timeInPrediction);
+            moduleList.add(entry);
+        }
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("version", XQDocCache.TOOL_VERSION);
+        report.put("decisions", decisionList);
+        report.put("modules", moduleList);
+        StringBuilder buffer = new StringBuilder();
+        JsonUtility.append(buffer, report);
+        return buffer.toString();
+    }
+
+    /**
+     * The statistics of one decision over all of the profiled modules.
+     */
+    private static class DecisionStats {
+        private final int decision;
+        private final String rule;
+        private long invocations;
+        private long timeInPrediction;
+        private long sllTotalLook;
+        private long sllMaxLook;
+        private long llFallback;
+        private long llTotalLook;
+        private long llMaxLook;
+        private long ambiguities;
+        private long contextSensitivities;
+        private long errors;
+        private String maxLookLocation;
+
+        DecisionStats(int decision, String rule) {
+            this.decision = decision;
+            this.rule = rule;
+        }
+
+        void add(DecisionInfo info, String source) {
+            long maxLook = getMaxLook();
+            invocations += info.invocations;
+            timeInPrediction += info.timeInPrediction;
+            sllTotalLook += info.SLL_TotalLook;
+            llFallback += info.LL_Fallback;
+            llTotalLook += info.LL_TotalLook;
+            ambiguities += info.ambiguities.size();
+            contextSensitivities += info.contextSensitivities.size();
+            errors += info.errors.size();
+            if (info.SLL_MaxLook > sllMaxLook) {
+                sllMaxLook = info.SLL_MaxLook;
+                if (sllMaxLook > maxLook) {
+                    maxLookLocation = location(info.SLL_MaxLookEvent, source);
+                    maxLook = sllMaxLook;
+                }
+            }
+            if (info.LL_MaxLook > llMaxLook) {
+                llMaxLook = info.LL_MaxLook;
+                if (llMaxLook > maxLook) {
+                    maxLookLocation = location(info.LL_MaxLookEvent, source);
+                }
+            }
+        }
+
+        long getMaxLook() {
+            return Math.max(sllMaxLook, llMaxLook);
+        }
+
+        private static String location(LookaheadEventInfo event, String source) {
+            if (event == null || event.input == null) {
+                return source;
+            }
+            Token token = event.input.get(event.startIndex);
+            return source + ":" + token.getLine() + ":" + token.getCharPositionInLine();
+        }
+    }
+
+    /**
+     * The parse time of one module.
+     */
+    private static class ModuleStats {
+        private final String name;
+        private final int tokens;
+        private final long parseTime;
+        private long timeInPrediction;
+
+        ModuleStats(String name, int tokens, long parseTime) {
+            this.name = name;
+            this.tokens = tokens;
+            this.parseTime = parseTime;
+        }
+    }
+}
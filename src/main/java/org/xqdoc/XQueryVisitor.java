@@ -2,24 +2,36 @@ package org.xqdoc;
 
 import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.tree.ParseTree;
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 /**
  * <p>XQueryVisitor class.</p>
  *
+ * Each section of the module is built as an {@link XQDocModel} record and
+ * written as XML by the {@link XQDocXMLSerializer}.  A visitor created with a
+ * model also adds the records to it.
+ *
  * @author lcahlander
  * @version $Id: $Id
  */
 public class XQueryVisitor extends org.xqdoc.XQueryParserBaseVisitor<String> {
-    private StringBuilder stream;
+    private XQDocWriter stream;
     private org.xqdoc.XQueryParser.XqDocCommentContext xqDocCommentContext = null;
+    private final XQDocComment xqDocComment = new XQDocComment();
+    private XQDocCommentCache commentCache = null;
     DateTimeFormatter isoFormat = ISODateTimeFormat.dateTime();
 
     // HashMap of predefined function namespaces (set by XQDocController via
@@ -37,28 +49,44 @@ public class XQueryVisitor extends org.xqdoc.XQueryParserBaseVisitor<String> {
     private String defaultModuleFunctionNamespace;
 
     // Hash for holding the imported schemas and libraries
-    private HashMap<String, ImportDeclaration> imports = new HashMap<>();
+    private HashMap<String, XQDocModel.Import> imports = new HashMap<>();
 
     // Hash for holding the declared namespaces
     private HashMap<String,String> declaredNamespaces = new HashMap<>();
 
     private HashMap<String,String> importedModuleNamespaces = new HashMap<>();
 
-    private StringBuffer declaredVariables = new StringBuffer();
+    // The variables and functions go straight to the stream when their order allows it
+    private XQDocWriter declaredVariables = new XQDocWriter();
+
+    private XQDocWriter declaredFunctions = new XQDocWriter();
+
+    private boolean importsWritten = false;
 
-    private StringBuffer declaredFunctions = new StringBuffer();
+    private boolean variablesOpen = false;
+
+    private boolean functionsOpen = false;
 
     // Hash for holding the invoked functions for the current function
-    private HashSet<String> invokedFunctions = new HashSet<>();
+    private HashSet<ResolvedQName> invokedFunctions = new HashSet<>();
 
     // Hash for holding the referenced variables for the current function
-    private HashSet<String> referencedVariables = new HashSet<>();
+    private HashSet<ResolvedQName> referencedVariables = new HashSet<>();
+
+    // The namespace URIs the prefixes of the document resolve to, null for a prefix that does not resolve
+    private HashMap<String, String> resolvedPrefixes = new HashMap<>();
 
-    private StringBuffer queryBody = new StringBuffer();
+    // One instance of each namespace URI of the document
+    private HashMap<String, String> namespaceURIs = new HashMap<>();
+
+    private XQDocWriter queryBody = new XQDocWriter();
 
     // Flag to indicate whether document URIs should be encoded
     private boolean encodeURIs = false;
 
+    // Receives the records of the sections, or null
+    private XQDocModel model;
+
     /**
      * <p>Constructor for XQueryVisitor.</p>
      *
@@ -68,11 +96,67 @@ public class XQueryVisitor extends org.xqdoc.XQueryParserBaseVisitor<String> {
      *              The predefined function namespaces
      */
     public XQueryVisitor(StringBuilder stream, Map uriMap)
+    {
+        this(new XQDocWriter(stream), uriMap);
+    }
+
+    /**
+     * <p>Constructor for XQueryVisitor.</p>
+     *
+     * @param stream
+     *              The Writer that receives the full xqDoc XML document.  The
+     *              sections of a library module are written as they are visited.
+     * @param uriMap
+     *              The predefined function namespaces
+     */
+    public XQueryVisitor(Writer stream, Map uriMap)
+    {
+        this(new XQDocWriter(stream), uriMap);
+    }
+
+    /**
+     *
+     * @param stream The destination of the full xqDoc XML document
+     * @param uriMap The predefined function namespaces
+     */
+    XQueryVisitor(XQDocWriter stream, Map uriMap)
     {
         this.stream = stream;
         this.predefinedFunctionNamespaces = uriMap;
     }
 
+    /**
+     * <p>Constructor for XQueryVisitor.</p>
+     *
+     * @param model
+     *              Receives the documentation of the module, without writing it as XML
+     * @param uriMap
+     *              The predefined function namespaces
+     */
+    public XQueryVisitor(XQDocModel model, Map uriMap)
+    {
+        this(XQDocWriter.discarding(), uriMap);
+        this.model = model;
+    }
+
+    /**
+     * Add the sections to a model as well as writing them.
+     *
+     * @param model Receives the documentation of the module, or null
+     */
+    void setModel(XQDocModel model) {
+        this.model = model;
+    }
+
+    /**
+     * Share the comments that were already split and rendered for another module.
+     *
+     * @param commentCache The comment cache, or null to split every comment
+     */
+    void setCommentCache(XQDocCommentCache commentCache) {
+        this.commentCache = commentCache;
+    }
+
     /**
      * Encoded document URIs. Currently, only a '/' is encoded. Some XML
      * databases have problems if a document URI contains a '/'.
@@ -82,6 +166,7 @@ public class XQueryVisitor extends org.xqdoc.XQueryParserBaseVisitor<String> {
      */
     public void setEncodeURIs(boolean bool) {
         encodeURIs = bool;
+        resolvedPrefixes.clear();
     }
 
     /**
@@ -96,26 +181,25 @@ public class XQueryVisitor extends org.xqdoc.XQueryParserBaseVisitor<String> {
     /**
      *
      * @return
-     *          The xqDoc XML comment block as a String
+     *          The xqDoc comment block in front of the current declaration, or null
      */
-    private String printXQDocumentation()
+    private XQDocModel.Comment takeComment()
     {
         if (xqDocCommentContext != null)
         {
-            StringBuilder buffer = new StringBuilder();
             int a = xqDocCommentContext.start.getStartIndex();
             int b = xqDocCommentContext.stop.getStopIndex();
             Interval interval = new Interval(a,b);
             String xqDocBody = xqDocCommentContext.start.getInputStream().getText(interval);
-            XQDocComment xqDocComment = new XQDocComment();
+            xqDocCommentContext = null;
+            if (commentCache != null) {
+                return commentCache.getComment(xqDocBody, a, b, xqDocComment);
+            }
             xqDocComment.clear();
             xqDocComment.setComment(xqDocBody, a, b);
-            String comment = xqDocComment.getXML().toString();
-            buffer.append(comment).append("\n");
-            xqDocCommentContext = null;
-            return buffer.toString();
+            return xqDocComment.getComment();
         }
-        return "";
+        return null;
     }
 
     /**
@@ -136,33 +220,12 @@ public class XQueryVisitor extends org.xqdoc.XQueryParserBaseVisitor<String> {
     @Override
     public String visitModule(org.xqdoc.XQueryParser.ModuleContext context)
     {
-        StringBuffer moduleXQDoc = new StringBuffer();
-        for (org.xqdoc.XQueryParser.XqDocCommentContext comment : context.xqDocComment() )
-        {
-            xqDocCommentContext = comment;
-            moduleXQDoc.append(printXQDocumentation());
-        }
-        stream.append("<xqdoc:xqdoc xmlns:xqdoc=\"http://www.xqdoc.org/1.0\">").append("\n");
-        stream.append("<xqdoc:control>").append("\n");
-        stream.append("<xqdoc:date>");
-        stream.append(new DateTime().toString(isoFormat));
-        stream.append("</xqdoc:date>").append("\n");
-        stream.append("<xqdoc:version>1.1</xqdoc:version>").append("\n");
-        stream.append("</xqdoc:control>").append("\n");
+        List<XQDocModel.Comment> moduleXQDoc = takeModuleComments(context);
+        buildControl();
         if (context.libraryModule() != null && context.libraryModule().moduleDecl() != null)
         {
-            org.xqdoc.XQueryParser.ModuleDeclContext moduleDeclContext = context.libraryModule().moduleDecl();
-            String prefixText = moduleDeclContext.ncName().getText();
-            String uriText = moduleDeclContext.uri.getText();
-            String uriTrimText = trimQuotes(uriText);
-            uriModuleMap.put(prefixText, uriTrimText);
-            stream.append("<xqdoc:module type=\"library\">").append("\n");
-            stream.append("<xqdoc:uri>").append(uriTrimText).append("</xqdoc:uri>").append("\n");
-            stream.append("<xqdoc:name>").append(prefixText).append("</xqdoc:name>").append("\n");
-            stream.append(moduleXQDoc);
-            stream.append(printBody(context));
-
-            stream.append("</xqdoc:module>").append("\n");
+            buildLibraryModule(context.libraryModule().moduleDecl(), moduleXQDoc, body(context));
+            streamProlog(context.libraryModule().prolog());
             visitChildren(context.libraryModule().prolog());
         }
         else if (context.mainModule() != null)
@@ -170,51 +233,225 @@ public class XQueryVisitor extends org.xqdoc.XQueryParserBaseVisitor<String> {
             for (org.xqdoc.XQueryParser.MainModuleContext mctx : context.mainModule()) {
                 visitChildren(mctx);
             }
-            stream.append("<xqdoc:module type=\"main\">").append("\n");
-            stream.append(moduleXQDoc);
-            for (String entry : invokedFunctions)
-            {
-                String namespace = null;
-                String refLocalName = null;
-                String[] tmp = entry.split(" ", 2);
-                namespace = tmp[0];
-                refLocalName = tmp[1];
-
-                stream.append("<xqdoc:invoked>").append("\n");
-                stream.append("<xqdoc:uri>").append(trimQuotes(namespace)).append("</xqdoc:uri>").append("\n");
-                stream.append("<xqdoc:name>").append(refLocalName).append("</xqdoc:name>").append("\n");
-                stream.append("</xqdoc:invoked>").append("\n");
-            }
-
-            for (String entry : referencedVariables)
-            {
-                String namespace = null;
-                String refLocalName = null;
-                String[] tmp = entry.split(" ", 2);
-                namespace = tmp[0];
-                refLocalName = tmp[1];
-                stream.append("<xqdoc:ref-variable>").append("\n");
-                stream.append("<xqdoc:uri>").append(trimQuotes(namespace)).append("</xqdoc:uri>").append("\n");
-                stream.append("<xqdoc:name>").append(refLocalName).append("</xqdoc:name>").append("\n");
-                stream.append("</xqdoc:ref-variable>").append("\n");
-            }
-            stream.append(printBody(context));
-            stream.append("</xqdoc:module>").append("\n");
+            buildModule(new XQDocModel.Module("main", null, null, moduleXQDoc,
+                    references(invokedFunctions), references(referencedVariables), body(context)));
         }
-        buildImports();
-        buildNamespaces();
+        buildImportsAndNamespaces();
         buildVariables();
         buildFunctions();
         buildQueryBody();
         stream.append("</xqdoc:xqdoc>").append("\n");
+        stream.flush();
         return null;
     }
 
+    /**
+     * Write the start of the xqDoc document and the module section of a
+     * module that is being parsed as a stream.  The module section has no body
+     * and, for a main module, no invoked functions or referenced variables,
+     * since those are only known once the whole module has been read.
+     *
+     * @param context The Antlr4 parser context of the module, holding its
+     *                comments and the module declaration of a library module
+     */
+    void startStreamedModule(org.xqdoc.XQueryParser.ModuleContext context)
+    {
+        List<XQDocModel.Comment> moduleXQDoc = takeModuleComments(context);
+        buildControl();
+        if (context.libraryModule() != null && context.libraryModule().moduleDecl() != null)
+        {
+            buildLibraryModule(context.libraryModule().moduleDecl(), moduleXQDoc, null);
+        }
+        else
+        {
+            buildModule(new XQDocModel.Module("main", null, null, moduleXQDoc, null, null, null));
+        }
+    }
+
+    /**
+     * Write the imports and namespaces sections of a module that is being
+     * parsed as a stream, once the first part of its prolog has been visited.
+     */
+    void buildStreamedImports()
+    {
+        buildImportsAndNamespaces();
+        imports.clear();
+        declaredNamespaces.clear();
+    }
+
+    /**
+     * <p>takeVariables.</p>
+     *
+     * @param out Receives the variable fragments visited since they were last taken
+     * @throws java.io.IOException a
+     */
+    void takeVariables(Appendable out) throws java.io.IOException
+    {
+        declaredVariables.moveTo(out);
+    }
+
+    /**
+     * <p>hasVariables.</p>
+     *
+     * @return true if variable fragments have been visited since they were last taken
+     */
+    boolean hasVariables()
+    {
+        return declaredVariables.length() > 0;
+    }
+
+    /**
+     * <p>takeFunctions.</p>
+     *
+     * @param out Receives the function fragments visited since they were last taken
+     * @throws java.io.IOException a
+     */
+    void takeFunctions(Appendable out) throws java.io.IOException
+    {
+        declaredFunctions.moveTo(out);
+    }
+
+    /**
+     * <p>takeQueryBody.</p>
+     *
+     * @param out Receives the query body fragments visited since they were last taken
+     * @throws java.io.IOException a
+     */
+    void takeQueryBody(Appendable out) throws java.io.IOException
+    {
+        queryBody.moveTo(out);
+    }
+
+    /**
+     *
+     * @param context The Antlr4 parser context of the module
+     * @return The comments in front of the module
+     */
+    private List<XQDocModel.Comment> takeModuleComments(org.xqdoc.XQueryParser.ModuleContext context)
+    {
+        List<XQDocModel.Comment> moduleXQDoc = new ArrayList<>();
+        for (org.xqdoc.XQueryParser.XqDocCommentContext comment : context.xqDocComment() )
+        {
+            xqDocCommentContext = comment;
+            moduleXQDoc.add(takeComment());
+        }
+        return moduleXQDoc;
+    }
+
+    /**
+     *
+     */
+    private void buildControl()
+    {
+        String date = new DateTime().toString(isoFormat);
+        XQDocXMLSerializer.writeControl(stream, date, "1.1");
+        if (model != null) {
+            model.setControl(date, "1.1");
+        }
+    }
+
+    /**
+     *
+     * @param moduleDeclContext The Antlr4 parser context of the module declaration
+     * @param moduleXQDoc The comments in front of the module
+     * @param body The source of the module, or null
+     */
+    private void buildLibraryModule(org.xqdoc.XQueryParser.ModuleDeclContext moduleDeclContext, List<XQDocModel.Comment> moduleXQDoc, XQDocModel.SourceText body)
+    {
+        String prefixText = moduleDeclContext.ncName().getText();
+        String uriText = moduleDeclContext.uri.getText();
+        String uriTrimText = trimQuotes(uriText);
+        uriModuleMap.put(prefixText, uriTrimText);
+        resolvedPrefixes.clear();
+        buildModule(new XQDocModel.Module("library", uriTrimText, prefixText, moduleXQDoc, null, null, body));
+    }
+
+    /**
+     *
+     * @param module The module section
+     */
+    private void buildModule(XQDocModel.Module module)
+    {
+        XQDocXMLSerializer.writeModule(stream, module);
+        if (model != null) {
+            model.setModule(module);
+        }
+    }
+
+    /**
+     * Let the variables and functions of a library module go straight to the
+     * stream.  The variables section comes before the functions section, so
+     * the functions only wait in a buffer when a variable is declared after a
+     * function.
+     *
+     * @param context The Antlr4 parser context of the prolog of the module
+     */
+    private void streamProlog(org.xqdoc.XQueryParser.PrologContext context)
+    {
+        declaredVariables = stream;
+        boolean function = false;
+        if (context.children != null) {
+            for (ParseTree child : context.children) {
+                if (child instanceof org.xqdoc.XQueryParser.FunctionDeclContext) {
+                    function = true;
+                } else if (function && child instanceof org.xqdoc.XQueryParser.VarDeclContext) {
+                    return;
+                }
+            }
+        }
+        declaredFunctions = stream;
+    }
+
+    /**
+     *
+     * @return The destination of the next variable fragment
+     */
+    private XQDocWriter variablesWriter()
+    {
+        if (declaredVariables == stream)
+        {
+            buildImportsAndNamespaces();
+            if (!variablesOpen)
+            {
+                stream.append("<xqdoc:variables>").append("\n");
+                variablesOpen = true;
+            }
+        }
+        return declaredVariables;
+    }
+
+    /**
+     *
+     * @return The destination of the next function fragment
+     */
+    private XQDocWriter functionsWriter()
+    {
+        if (declaredFunctions == stream)
+        {
+            buildImportsAndNamespaces();
+            if (variablesOpen)
+            {
+                stream.append("</xqdoc:variables>").append("\n");
+                variablesOpen = false;
+            }
+            if (!functionsOpen)
+            {
+                stream.append("<xqdoc:functions>").append("\n");
+                functionsOpen = true;
+            }
+        }
+        return declaredFunctions;
+    }
+
     /**
      *
      */
     private void buildQueryBody() {
-        stream.append(queryBody);
+        try {
+            queryBody.moveTo(stream);
+        } catch (IOException e) {
+            throw new XQDocRuntimeException(e.getMessage(), e);
+        }
     }
 
     /** {@inheritDoc} */
@@ -226,19 +463,30 @@ public class XQueryVisitor extends org.xqdoc.XQueryParserBaseVisitor<String> {
         return null;
     }
 
+    /**
+     * Write the imports and namespaces sections, once the part of the prolog
+     * that declares them has been visited.
+     */
+    private void buildImportsAndNamespaces()
+    {
+        if (!importsWritten)
+        {
+            importsWritten = true;
+            buildImports();
+            buildNamespaces();
+        }
+    }
+
     /**
      *
      */
     private void buildImports()
     {
-        if (!imports.isEmpty())
-        {
-            stream.append("<xqdoc:imports>").append("\n");
-            for (ImportDeclaration importBody : imports.values())
-            {
-                stream.append(importBody.toString());
+        XQDocXMLSerializer.writeImports(stream, imports.values());
+        if (model != null) {
+            for (XQDocModel.Import importDeclaration : imports.values()) {
+                model.addImport(importDeclaration);
             }
-            stream.append("</xqdoc:imports>").append("\n");
         }
     }
 
@@ -247,19 +495,11 @@ public class XQueryVisitor extends org.xqdoc.XQueryParserBaseVisitor<String> {
      */
     private void buildNamespaces()
     {
-        if (!declaredNamespaces.isEmpty())
-        {
-            stream.append("<xqdoc:namespaces>").append("\n");
-            for (Map.Entry<String,String> namespaceEntry : declaredNamespaces.entrySet())
-            {
-                stream.append("<xqdoc:namespace prefix=\"");
-                stream.append(namespaceEntry.getKey());
-                stream.append("\" uri=\"");
-                stream.append(namespaceEntry.getValue());
-                stream.append("\">\n");
-                stream.append("</xqdoc:namespace>").append("\n");
+        XQDocXMLSerializer.writeNamespaces(stream, declaredNamespaces);
+        if (model != null) {
+            for (Map.Entry<String,String> namespaceEntry : declaredNamespaces.entrySet()) {
+                model.addNamespace(namespaceEntry.getKey(), namespaceEntry.getValue());
             }
-            stream.append("</xqdoc:namespaces>").append("\n");
         }
     }
 
@@ -268,10 +508,15 @@ public class XQueryVisitor extends org.xqdoc.XQueryParserBaseVisitor<String> {
      */
     private void buildVariables()
     {
-        if (declaredVariables.length() > 0)
+        if (variablesOpen)
+        {
+            stream.append("</xqdoc:variables>").append("\n");
+            variablesOpen = false;
+        }
+        else if (declaredVariables != stream && declaredVariables.length() > 0)
         {
             stream.append("<xqdoc:variables>").append("\n");
-            stream.append(declaredVariables);
+            buildSection(declaredVariables);
             stream.append("</xqdoc:variables>").append("\n");
         }
     }
@@ -281,14 +526,32 @@ public class XQueryVisitor extends org.xqdoc.XQueryParserBaseVisitor<String> {
      */
     private void buildFunctions()
     {
-        if (declaredFunctions.length() > 0)
+        if (functionsOpen)
+        {
+            stream.append("</xqdoc:functions>").append("\n");
+            functionsOpen = false;
+        }
+        else if (declaredFunctions != stream && declaredFunctions.length() > 0)
         {
             stream.append("<xqdoc:functions>").append("\n");
-            stream.append(declaredFunctions);
+            buildSection(declaredFunctions);
             stream.append("</xqdoc:functions>").append("\n");
         }
     }
 
+    /**
+     *
+     * @param section The buffer of a section that had to wait for its place in the document
+     */
+    private void buildSection(XQDocWriter section)
+    {
+        try {
+            section.moveTo(stream);
+        } catch (IOException e) {
+            throw new XQDocRuntimeException(e.getMessage(), e);
+        }
+    }
+
     /** {@inheritDoc} */
     @Override
     public String visitSchemaImport(org.xqdoc.XQueryParser.SchemaImportContext context)
@@ -321,11 +584,11 @@ public class XQueryVisitor extends org.xqdoc.XQueryParserBaseVisitor<String> {
             }
         }
 
-        String xqDoc = printXQDocumentation();
+        XQDocModel.Comment xqDoc = takeComment();
 
         if (!imports.containsKey(prefix))
         {
-            imports.put(prefix, new ImportDeclaration(prefix, uriTrimText, "schema", location, xqDoc, printBody(context).toString()));
+            imports.put(prefix, new XQDocModel.Import("schema", prefix, uriTrimText, location, xqDoc, body(context)));
         }
         return null;
     }
@@ -362,15 +625,16 @@ public class XQueryVisitor extends org.xqdoc.XQueryParserBaseVisitor<String> {
             }
         }
 
-        String xqDoc = printXQDocumentation();
+        XQDocModel.Comment xqDoc = takeComment();
 
         if (!imports.containsKey(prefix))
         {
-            imports.put(prefix, new ImportDeclaration(prefix, uriTrimText, "library", location, xqDoc, printBody(context).toString()));
+            imports.put(prefix, new XQDocModel.Import("library", prefix, uriTrimText, location, xqDoc, body(context)));
         }
         if (!importedModuleNamespaces.containsKey(prefix))
         {
             importedModuleNamespaces.put(prefix, uri);
+            resolvedPrefixes.clear();
         }
         return null;
     }
@@ -398,35 +662,67 @@ public class XQueryVisitor extends org.xqdoc.XQueryParserBaseVisitor<String> {
      * @param annotations
      *                  The Antlr4 parser context for the annotation of an XQuery function
      * @return
-     *                  The xqDoc XML fragment for the annotation as a String
+     *                  The annotations, with the quotes of the string literals left out
      */
-    private StringBuffer processAnnotations(org.xqdoc.XQueryParser.AnnotationsContext annotations)
+    private List<XQDocModel.Annotation> annotations(org.xqdoc.XQueryParser.AnnotationsContext annotations)
     {
-        StringBuffer buffer = new StringBuffer();
-        if (annotations != null && annotations.children != null) {
-            buffer.append("<xqdoc:annotations>").append("\n");
-            for (org.xqdoc.XQueryParser.AnnotationContext annotation: annotations.annotation())
-            {
-                buffer.append("<xqdoc:annotation name=\"");
-                buffer.append(annotation.qName().getText());
-                buffer.append("\">").append("\n");
-                if (annotation.annotList() != null) {
-                    for (org.xqdoc.XQueryParser.AnnotationParamContext annotationParam: annotation.annotList().annotationParam())
-                    {
-                        buffer.append("<xqdoc:literal><![CDATA[");
-                        int a = annotationParam.start.getStartIndex();
-                        int b = annotationParam.stop.getStopIndex();
-                        Interval interval = new Interval(a,b);
-                        String literalText = annotationParam.start.getInputStream().getText(interval).replaceAll("]]>", "] ] >");
-                        buffer.append(trimQuotes(literalText));
-                        buffer.append("]]></xqdoc:literal>").append("\n");
+        if (annotations == null || annotations.children == null) {
+            return null;
+        }
+        List<XQDocModel.Annotation> result = new ArrayList<>();
+        for (org.xqdoc.XQueryParser.AnnotationContext annotation: annotations.annotation())
+        {
+            List<XQDocModel.SourceText> literals = new ArrayList<>();
+            List<String> literalTypes = new ArrayList<>();
+            if (annotation.annotList() != null) {
+                for (org.xqdoc.XQueryParser.AnnotationParamContext annotationParam: annotation.annotList().annotationParam())
+                {
+                    int a = annotationParam.start.getStartIndex();
+                    int b = annotationParam.stop.getStopIndex();
+                    if (annotationParam.start.getType() == XQueryLexer.Quot && b > a) {
+                        a++;
+                        b--;
                     }
+                    literals.add(XQDocModel.SourceText.of(annotationParam.start.getInputStream(), a, b));
+                    literalTypes.add(literalType(annotationParam.literal()));
                 }
-                buffer.append("</xqdoc:annotation>").append("\n");
             }
-            buffer.append("</xqdoc:annotations>").append("\n");
+            result.add(new XQDocModel.Annotation(annotation.qName().getText(), literals, literalTypes));
+        }
+        return result;
+    }
+
+    /**
+     *
+     * @param literal
+     *                  The Antlr4 parser context for a literal
+     * @return
+     *                  The atomic type of the literal
+     */
+    private static String literalType(org.xqdoc.XQueryParser.LiteralContext literal)
+    {
+        return literalType(literal.start.getType());
+    }
+
+    /**
+     *
+     * @param tokenType
+     *                  The type of the first token of a literal
+     * @return
+     *                  The atomic type of the literal
+     */
+    static String literalType(int tokenType)
+    {
+        switch (tokenType) {
+            case XQueryLexer.IntegerLiteral:
+                return "xs:integer";
+            case XQueryLexer.DecimalLiteral:
+                return "xs:decimal";
+            case XQueryLexer.DoubleLiteral:
+                return "xs:double";
+            default:
+                return "xs:string";
         }
-        return buffer;
     }
 
     /**
@@ -434,24 +730,16 @@ public class XQueryVisitor extends org.xqdoc.XQueryParserBaseVisitor<String> {
      * @param context
      *                  The Antlr4 parser context for the type declaration of an XQuery module
      * @return
-     *                  The xqDoc XML fragment for the type declaration as a String
+     *                  The type, or null if there is no type declaration
      */
-    private StringBuffer processTypeDeclaration(org.xqdoc.XQueryParser.TypeDeclarationContext context)
+    private XQDocModel.Type type(org.xqdoc.XQueryParser.TypeDeclarationContext context)
     {
-        StringBuffer buffer = new StringBuffer();
-        if (context != null) {
-            buffer.append("<xqdoc:type");
-            if (context.sequenceType() != null && context.sequenceType().occurrence != null)
-            {
-                buffer.append(" occurrence=\"");
-                buffer.append(context.sequenceType().occurrence.getText());
-                buffer.append("\"");
-            }
-            buffer.append(">");
-            buffer.append(context.sequenceType().itemType().getText());
-            buffer.append("</xqdoc:type>").append("\n");
+        if (context == null) {
+            return null;
         }
-        return buffer;
+        String occurrence = context.sequenceType() != null && context.sequenceType().occurrence != null
+                ? context.sequenceType().occurrence.getText() : null;
+        return new XQDocModel.Type(context.sequenceType().itemType().getText(), occurrence);
     }
 
     /** {@inheritDoc} */
@@ -459,31 +747,22 @@ public class XQueryVisitor extends org.xqdoc.XQueryParserBaseVisitor<String> {
     public String visitVarDecl(org.xqdoc.XQueryParser.VarDeclContext context)
     {
         // Separate the variable name into namspace prefix and localname
-        String namespacePrefix = null;
+        String name = context.varName().getText();
         String namespace = null;
         String localName = null;
-        String[] tmp = context.varName().getText().split(":", 2);
-        if (tmp.length > 1) {
-            namespacePrefix = tmp[0];
-            localName = tmp[1];
-        } else {
-            return null;
-        }
-
-        // Get the actual namespace
-        if (namespacePrefix == null) {
-            if (defaultModuleFunctionNamespace != null) {
-                namespace = defaultModuleFunctionNamespace;
-            } else if (defaultFunctionNamespace != null) {
-                namespace = defaultFunctionNamespace;
-            }
-        } else {
+        int separator = localNameStart(name);
+        if (name.startsWith("Q{")) {
+            namespace = name.substring(2, separator - 1);
+        } else if (separator > 0) {
+            // A variable is declared in the namespace of the module or of a predefined prefix
+            String namespacePrefix = name.substring(0, separator - 1);
             namespace = (String) (uriModuleMap.get(namespacePrefix));
             if (namespace == null) {
                 namespace = (String) (predefinedFunctionNamespaces
                         .get(namespacePrefix));
             }
         }
+        localName = name.substring(separator);
 
         // References a namespace we don't know about
         if (namespace == null)
@@ -492,14 +771,12 @@ public class XQueryVisitor extends org.xqdoc.XQueryParserBaseVisitor<String> {
         if (encodeURIs) {
             namespace = encodeURI(namespace);
         }
-        declaredVariables.append("<xqdoc:variable>").append("\n");
-        declaredVariables.append("<xqdoc:uri>").append(trimQuotes(namespace)).append("</xqdoc:uri>").append("\n");
-        declaredVariables.append("<xqdoc:name>").append(localName).append("</xqdoc:name>").append("\n");
-        declaredVariables.append(printXQDocumentation());
-        declaredVariables.append(processAnnotations(context.annotations()));
-        declaredVariables.append(processTypeDeclaration(context.typeDeclaration()));
-        declaredVariables.append(printBody(context));
-        declaredVariables.append("</xqdoc:variable>").append("\n");
+        XQDocModel.Variable variable = new XQDocModel.Variable(trimQuotes(namespace), localName, takeComment(),
+                annotations(context.annotations()), type(context.typeDeclaration()), body(context));
+        XQDocXMLSerializer.writeVariable(variablesWriter(), variable);
+        if (model != null) {
+            model.addVariable(variable);
+        }
         return null;
     }
 
@@ -510,110 +787,44 @@ public class XQueryVisitor extends org.xqdoc.XQueryParserBaseVisitor<String> {
         org.xqdoc.XQueryParser.FunctionParamsContext functionParamsContext = context.functionParams();
         org.xqdoc.XQueryParser.FunctionReturnContext functionReturnContext = context.functionReturn();
         String functionName = context.name.getText();
-        String[] nameParts = functionName.split(":");
-        String localName = nameParts[nameParts.length - 1];
+        String localName = functionName.substring(localNameStart(functionName));
         invokedFunctions = new HashSet<>();
         referencedVariables = new HashSet<>();
 
-        declaredFunctions.append("<xqdoc:function>").append("\n");
-        declaredFunctions.append(printXQDocumentation());
-        declaredFunctions.append("<xqdoc:name>");
-        declaredFunctions.append(localName);
-        declaredFunctions.append("</xqdoc:name>").append("\n");
-        declaredFunctions.append(processAnnotations(context.annotations()));
-        declaredFunctions.append("<xqdoc:signature>declare function ");
-        declaredFunctions.append(localName);
-        declaredFunctions.append("(");
+        XQDocModel.Comment comment = takeComment();
+        StringBuilder signature = new StringBuilder("declare function ");
+        signature.append(localName).append("(");
+        List<XQDocModel.Parameter> parameters = new ArrayList<>();
         if (functionParamsContext != null)
         {
             int a = functionParamsContext.start.getStartIndex();
             int b = functionParamsContext.stop.getStopIndex();
-            Interval interval = new Interval(a, b);
-            declaredFunctions.append(context.start.getInputStream().getText(interval));
-        }
-        declaredFunctions.append(")");
-        if (functionReturnContext != null)
-        {
-            declaredFunctions.append(" ");
-            int a = functionReturnContext.start.getStartIndex();
-            int b = functionReturnContext.stop.getStopIndex();
-            Interval interval = new Interval(a, b);
-            declaredFunctions.append(context.start.getInputStream().getText(interval));
-        }
-        declaredFunctions.append("</xqdoc:signature>").append("\n");
-        if (functionParamsContext != null)
-        {
-            declaredFunctions.append("<xqdoc:parameters>").append("\n");
+            signature.append(context.start.getInputStream().getText(new Interval(a, b)));
             for (org.xqdoc.XQueryParser.FunctionParamContext functionParam: functionParamsContext.functionParam())
             {
-                declaredFunctions.append("<xqdoc:parameter>").append("\n");
-                declaredFunctions.append("<xqdoc:name>");
-                declaredFunctions.append(functionParam.name.getText());
-                declaredFunctions.append("</xqdoc:name>").append("\n");
-                declaredFunctions.append(processTypeDeclaration(functionParam.type));
-                declaredFunctions.append("</xqdoc:parameter>").append("\n");
+                parameters.add(new XQDocModel.Parameter(functionParam.name.getText(), type(functionParam.type)));
             }
-            declaredFunctions.append("</xqdoc:parameters>").append("\n");
         }
+        signature.append(")");
+        XQDocModel.Type returnType = null;
         if (functionReturnContext != null)
         {
-            declaredFunctions.append("<xqdoc:return>").append("\n");
-            declaredFunctions.append("<xqdoc:type");
-            if (functionReturnContext.sequenceType().occurrence != null)
-            {
-                declaredFunctions.append(" occurrence=\"");
-                declaredFunctions.append(functionReturnContext.sequenceType().occurrence.getText());
-                declaredFunctions.append("\"");
-            }
-            declaredFunctions.append(">");
-            if (functionReturnContext.sequenceType().itemType() != null)
-            {
-                declaredFunctions.append(functionReturnContext.sequenceType().itemType().getText());
-            }
-            declaredFunctions.append("</xqdoc:type>").append("\n");
-            declaredFunctions.append("</xqdoc:return>").append("\n");
+            int a = functionReturnContext.start.getStartIndex();
+            int b = functionReturnContext.stop.getStopIndex();
+            signature.append(" ").append(context.start.getInputStream().getText(new Interval(a, b)));
+            org.xqdoc.XQueryParser.SequenceTypeContext sequenceType = functionReturnContext.sequenceType();
+            returnType = new XQDocModel.Type(sequenceType.itemType() != null ? sequenceType.itemType().getText() : "",
+                    sequenceType.occurrence != null ? sequenceType.occurrence.getText() : null);
         }
+        List<XQDocModel.Annotation> annotations = annotations(context.annotations());
         visitChildren(context);
 
-        for (String entry : invokedFunctions)
-        {
-            String namespace = null;
-            String refPrefixName = null;
-            String refLocalName = null;
-            String[] tmp = entry.split(" ", 2);
-            namespace = tmp[0];
-            refLocalName = tmp[1];
-
-            if (refLocalName.contains(":")) {
-                String[] tmp2 = refLocalName.split(":");
-                refPrefixName = tmp2[0];
-                refLocalName = tmp2[1];
-            }
-            declaredFunctions.append("<xqdoc:invoked>").append("\n");
-            declaredFunctions.append("<xqdoc:uri>").append(trimQuotes(namespace)).append("</xqdoc:uri>").append("\n");
-            if (refPrefixName != null) {
-                declaredFunctions.append("<xqdoc:prefix>").append(refPrefixName).append("</xqdoc:prefix>").append("\n");
-            }
-            declaredFunctions.append("<xqdoc:name>").append(refLocalName).append("</xqdoc:name>").append("\n");
-            declaredFunctions.append("</xqdoc:invoked>").append("\n");
-        }
-
-        for (String entry : referencedVariables)
-        {
-            String namespace = null;
-            String refLocalName = null;
-            String[] tmp = entry.split(" ", 2);
-            namespace = tmp[0];
-            refLocalName = tmp[1];
-            declaredFunctions.append("<xqdoc:ref-variable>").append("\n");
-            declaredFunctions.append("<xqdoc:uri>").append(trimQuotes(namespace)).append("</xqdoc:uri>").append("\n");
-            declaredFunctions.append("<xqdoc:name>").append(refLocalName).append("</xqdoc:name>").append("\n");
-            declaredFunctions.append("</xqdoc:ref-variable>").append("\n");
+        XQDocModel.Function function = new XQDocModel.Function(localName, comment, annotations, signature.toString(),
+                parameters, returnType, references(invokedFunctions), references(referencedVariables), body(context));
+        XQDocXMLSerializer.writeFunction(functionsWriter(), function);
+        if (model != null) {
+            model.addFunction(function);
         }
-
-        declaredFunctions.append(printBody(context));
-
-        declaredFunctions.append("</xqdoc:function>").append("\n");
         return null;
     }
 
@@ -630,9 +841,11 @@ public class XQueryVisitor extends org.xqdoc.XQueryParserBaseVisitor<String> {
         invokedFunctions = new HashSet<>();
         referencedVariables = new HashSet<>();
         visitChildren(context);
-        queryBody.append("<xqdoc:queryBody>").append("\n");
-        queryBody.append(printBody(context));
-        queryBody.append("</xqdoc:queryBody>").append("\n");
+        XQDocModel.SourceText body = body(context);
+        XQDocXMLSerializer.writeQueryBody(queryBody, body);
+        if (model != null) {
+            model.addQueryBody(body);
+        }
         return null;
     }
 
@@ -641,22 +854,26 @@ public class XQueryVisitor extends org.xqdoc.XQueryParserBaseVisitor<String> {
      * @param context
      *                  The Antlr4 parser context for the body of a section of an XQuery module
      * @return
-     *                  The xqDoc XML fragment for the body of a section as a String
+     *                  The span of the source of the section
      */
-    private StringBuffer printBody(ParserRuleContext context) {
-        StringBuffer bodyBuffer = new StringBuffer();
-        int a = context.start.getStartIndex();
-        int b = context.stop.getStopIndex();
-        Interval interval = new Interval(a,b);
+    private XQDocModel.SourceText body(ParserRuleContext context) {
+        return XQDocModel.SourceText.of(context.start.getInputStream(), context.start.getStartIndex(), context.stop.getStopIndex());
+    }
 
-        bodyBuffer.append("<xqdoc:body start=\"");
-        bodyBuffer.append(a + 1);
-        bodyBuffer.append("\" end=\"");
-        bodyBuffer.append(b + 1);
-        bodyBuffer.append("\" xml:space=\"preserve\"><![CDATA[");
-        bodyBuffer.append(context.start.getInputStream().getText(interval).replaceAll("]]>", "] ] >"));
-        bodyBuffer.append("]]></xqdoc:body>").append("\n");
-        return bodyBuffer;
+    /**
+     *
+     * @param names The invoked functions or referenced variables of a section
+     * @return The references in the order of the set
+     */
+    private static List<XQDocModel.Reference> references(HashSet<ResolvedQName> names) {
+        if (names.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<XQDocModel.Reference> references = new ArrayList<>(names.size());
+        for (ResolvedQName name : names) {
+            references.add(new XQDocModel.Reference(name.getUri(), name.getPrefix(), name.getLocalName()));
+        }
+        return references;
     }
 
     /** {@inheritDoc} */
@@ -671,50 +888,16 @@ public class XQueryVisitor extends org.xqdoc.XQueryParserBaseVisitor<String> {
     @Override
     public String visitFunctionCall(org.xqdoc.XQueryParser.FunctionCallContext context)
     {
-        // Separate the function name into namspace prefix and localname
-        String namespacePrefix = null;
-        String namespace = null;
-        String localName = null;
-        String[] tmp = context.eqName().getText().split(":", 2);
-        if (tmp.length > 1) {
-            namespacePrefix = tmp[0];
-            localName = tmp[1];
-        } else {
-            localName = tmp[0];
-        }
-
-        // Get the actual namespace
-        if (namespacePrefix == null) {
-            if (defaultModuleFunctionNamespace != null) {
-                namespace = defaultModuleFunctionNamespace;
-            } else if (defaultFunctionNamespace != null) {
-                namespace = defaultFunctionNamespace;
-            }
-        } else {
-            namespace = (String) (uriModuleMap.get(namespacePrefix));
-            if (namespace == null) {
-                namespace = importedModuleNamespaces.get(namespacePrefix);
-            }
-            if (namespace == null) {
-                namespace = (String) (predefinedFunctionNamespaces
-                        .get(namespacePrefix));
-            }
-        }
+        String name = context.eqName().getText();
+        int separator = localNameStart(name);
+        String namespace = resolveNamespace(name, separator);
 
         // References a namespace we don't know about
         if (namespace == null)
             return null;
 
-        if (encodeURIs) {
-            namespace = encodeURI(namespace);
-        }
-
-        String invokedString = namespace + " " + ((namespacePrefix != null) ? (namespacePrefix + ":") : "") + localName;
-
-        // Check the invokedFunctions (to see if it is already there)
-        if (!invokedFunctions.contains(invokedString)) {
-            invokedFunctions.add(invokedString);
-        }
+        String namespacePrefix = separator > 0 && !name.startsWith("Q{") ? name.substring(0, separator - 1) : null;
+        invokedFunctions.add(new ResolvedQName(namespace, namespacePrefix, name.substring(separator)));
         visitChildren(context);
         return null;
     }
@@ -723,48 +906,85 @@ public class XQueryVisitor extends org.xqdoc.XQueryParserBaseVisitor<String> {
     @Override
     public String visitVarRef(org.xqdoc.XQueryParser.VarRefContext context)
     {
-        // Separate the variable name into namspace prefix and localname
-        String namespacePrefix = null;
-        String namespace = null;
-        String localName = null;
-        String[] tmp = context.getText().split(":", 2);
-        if (tmp.length > 1) {
-            namespacePrefix = tmp[0].substring(1);
-            localName = tmp[1];
-        } else {
+        String name = context.eqName().getText();
+        int separator = localNameStart(name);
+
+        // Variables without a prefix are local to the module
+        if (separator == 0)
             return null;
-        }
 
-        // Get the actual namespace
-        if (namespacePrefix == null) {
-            if (defaultModuleFunctionNamespace != null) {
-                namespace = defaultModuleFunctionNamespace;
-            } else if (defaultFunctionNamespace != null) {
-                namespace = defaultFunctionNamespace;
-            }
-        } else {
-            namespace = (String) (uriModuleMap.get(namespacePrefix));
-            if (namespace == null) {
-                namespace = importedModuleNamespaces.get(namespacePrefix);
-            }
-            if (namespace == null) {
-                namespace = (String) (predefinedFunctionNamespaces
-                        .get(namespacePrefix));
-            }
-        }
+        String namespace = resolveNamespace(name, separator);
 
         // References a namespace we don't know about
         if (namespace == null)
             return null;
 
-        if (encodeURIs) {
-            namespace = encodeURI(namespace);
+        referencedVariables.add(new ResolvedQName(namespace, null, name.substring(separator)));
+        return null;
+    }
+
+    /**
+     *
+     * @param name A name as prefix:localName, localName or Q{uri}localName
+     * @return The index of the local name in the name
+     */
+    private static int localNameStart(String name) {
+        if (name.startsWith("Q{")) {
+            return name.lastIndexOf('}') + 1;
         }
+        return name.indexOf(':') + 1;
+    }
 
-        if (!referencedVariables.contains(namespace + " " + localName)) {
-            referencedVariables.add(namespace + " " + localName);
+    /**
+     * Resolve the namespace of a referenced function or variable name.  The
+     * namespace of a prefix is looked up once per document and the URI is
+     * shared by every name in that namespace.
+     *
+     * @param name A name as prefix:localName, localName or Q{uri}localName
+     * @param separator The index of the local name in the name
+     * @return The namespace URI, trimmed and encoded, or null if the prefix is not known
+     */
+    private String resolveNamespace(String name, int separator) {
+        if (name.startsWith("Q{")) {
+            return namespaceURI(name.substring(2, separator - 1));
+        }
+        // A name without a prefix is in the default function namespace, cached under the empty prefix
+        String namespacePrefix = separator > 0 ? name.substring(0, separator - 1) : "";
+        String namespace = resolvedPrefixes.get(namespacePrefix);
+        if (namespace == null && !resolvedPrefixes.containsKey(namespacePrefix)) {
+            if (separator == 0) {
+                namespace = defaultModuleFunctionNamespace != null ? defaultModuleFunctionNamespace : defaultFunctionNamespace;
+            } else {
+                namespace = (String) (uriModuleMap.get(namespacePrefix));
+                if (namespace == null) {
+                    namespace = importedModuleNamespaces.get(namespacePrefix);
+                }
+                if (namespace == null) {
+                    namespace = (String) (predefinedFunctionNamespaces
+                            .get(namespacePrefix));
+                }
+            }
+            if (namespace != null) {
+                namespace = namespaceURI(trimQuotes(namespace));
+            }
+            resolvedPrefixes.put(namespacePrefix, namespace);
         }
-        return null;
+        return namespace;
+    }
+
+    /**
+     *
+     * @param uri A namespace URI
+     * @return The shared instance of the URI, encoded if URIs are encoded
+     */
+    private String namespaceURI(String uri) {
+        String encoded = encodeURIs ? encodeURI(uri) : uri;
+        String shared = namespaceURIs.get(encoded);
+        if (shared == null) {
+            shared = encoded;
+            namespaceURIs.put(shared, shared);
+        }
+        return shared;
     }
 
     /**
@@ -776,7 +996,7 @@ public class XQueryVisitor extends org.xqdoc.XQueryParserBaseVisitor<String> {
      * @return The encoded string.
      */
     private String encodeURI(String uri) {
-        return uri.replaceAll("/", "~2F");
+        return uri.replace("/", "~2F");
     }
 
 }
@@ -1,6 +1,7 @@
 package org.xqdoc;
 
 import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -27,8 +28,9 @@ import javax.xml.transform.Source;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -55,32 +57,11 @@ public class AppTest
 
     @Parameters(name = "{index}: xqDoc({0})={1}")
     public static Iterable<String[]> data() {
-
-        AppTest obj = new AppTest("", "");
-        ClassLoader classLoader = obj.getClass().getClassLoader();
-        String url = classLoader.getResource("XQuery").getFile();
-        File directory = new File(url);
-
-        File[] files = directory.listFiles();
-        //If this pathname does not denote a directory, then listFiles() returns null.
-
-        String[][] arrayOfArrays = new String[(files != null) ? files.length : 0][];
-
-        if (files != null) {
-            for(int i=0; i<files.length; i++)
-            {
-                if (files[i].isFile()) {
-                    String filename = files[i].getName();
-                    String[] parts = filename.split("\\.");
-                    String file1 = "XQuery/" + filename;
-                    String file2 = "xqDoc/" + parts[0] + ".xml";
-                    String[] pair = new String[] { file1, file2 };
-                    arrayOfArrays[i] = pair;
-                }
-            }
+        List<String[]> pairs = new ArrayList<>();
+        for (String source : TestResources.xquerySources()) {
+            pairs.add(new String[] { source, TestResources.expectedXQDoc(source) });
         }
-
-        return Arrays.asList(arrayOfArrays);
+        return pairs;
     }
 
     private String input;
@@ -93,32 +74,9 @@ public class AppTest
 
     @Test
     public void test() throws IOException, XQDocException, ParserConfigurationException, SAXException {
-        HashMap uriMap = new HashMap();
-        uriMap.put("fn", "http://www.w3.org/2003/05/xpath-functions");
-        uriMap.put("cts", "http://marklogic.com/cts"); // MarkLogic Server search functions (Core Text Services)
-        uriMap.put("dav", "DAV:"); // Used with WebDAV
-        uriMap.put("dbg", "http://marklogic.com/xdmp/debug"); // Debug Built-In functions
-        uriMap.put("dir", "http://marklogic.com/xdmp/directory"); // MarkLogic Server directory XML
-        uriMap.put("err", "http://www.w3.org/2005/xqt-errors"); // namespace for XQuery and XPath errors
-        uriMap.put("error", "http://marklogic.com/xdmp/error"); // MarkLogic Server error namespace
-        uriMap.put("local", "http://www.w3.org/2005/xquery-local-functions"); // local namespace for functions defined in main modules
-        uriMap.put("lock", "http://marklogic.com/xdmp/lock"); // MarkLogic Server locks
-        uriMap.put("map", "http://marklogic.com/xdmp/map"); // MarkLogic Server maps
-        uriMap.put("math", "http://marklogic.com/xdmp/math"); // math Built-In functions
-        uriMap.put("prof", "http://marklogic.com/xdmp/profile"); // profile Built-In functions
-        uriMap.put("prop", "http://marklogic.com/xdmp/property"); // MarkLogic Server properties
-        uriMap.put("sec", "http://marklogic.com/xdmp/security"); // security Built-In functions
-        uriMap.put("sem", "http://marklogic.com/semantics"); // semantic Built-In functions
-        uriMap.put("spell", "http://marklogic.com/xdmp/spell"); // spelling correction functions
-        uriMap.put("xdmp", "http://marklogic.com/xdmp"); // MarkLogic Server Built-In functions
-        uriMap.put("xml", "http://www.w3.org/XML/1998/namespace"); // XML namespace
-        uriMap.put("xmlns", "http://www.w3.org/2000/xmlns/"); // xmlns namespace
-        uriMap.put("xqe", "http://marklogic.com/xqe"); // deprecated MarkLogic Server xqe namespace
-        uriMap.put("xqterr", "http://www.w3.org/2005/xqt-errors"); // XQuery test suite errors (same as err)
-        uriMap.put("xs", "http://www.w3.org/2001/XMLSchema"); // XML Schema namespace
+        HashMap uriMap = uriMap();
         ClassLoader classLoader = getClass().getClassLoader();
         String source = classLoader.getResource(input).getFile();
-        String target = classLoader.getResource(expected).getFile();
         InputStream is = Files.newInputStream(Paths.get(source));
         ANTLRInputStream inputStream = new ANTLRInputStream(is);
         XQueryLexer markupLexer = new XQueryLexer(inputStream);
@@ -145,6 +103,49 @@ public class AppTest
                 assertTrue("found a difference: " + comparison, false);
             }
         });
+        assertSimilar(xqDocXML);
+    }
+
+    /**
+     * The engine parses the main modules of a chain separately and grafts
+     * them together, so it must give the same xqDoc as the single parse above.
+     */
+    @Test
+    public void engine() throws IOException {
+        String source = getClass().getClassLoader().getResource(input).getFile();
+        XQDocEngine engine = new XQDocEngine(uriMap());
+        assertSimilar(engine.process(CharStreams.fromPath(Paths.get(source))));
+    }
+
+    private static HashMap uriMap() {
+        HashMap uriMap = new HashMap();
+        uriMap.put("fn", "http://www.w3.org/2003/05/xpath-functions");
+        uriMap.put("cts", "http://marklogic.com/cts"); // MarkLogic Server search functions (Core Text Services)
+        uriMap.put("dav", "DAV:"); // Used with WebDAV
+        uriMap.put("dbg", "http://marklogic.com/xdmp/debug"); // Debug Built-In functions
+        uriMap.put("dir", "http://marklogic.com/xdmp/directory"); // MarkLogic Server directory XML
+        uriMap.put("err", "http://www.w3.org/2005/xqt-errors"); // namespace for XQuery and XPath errors
+        uriMap.put("error", "http://marklogic.com/xdmp/error"); // MarkLogic Server error namespace
+        uriMap.put("local", "http://www.w3.org/2005/xquery-local-functions"); // local namespace for functions defined in main modules
+        uriMap.put("lock", "http://marklogic.com/xdmp/lock"); // MarkLogic Server locks
+        uriMap.put("map", "http://marklogic.com/xdmp/map"); // MarkLogic Server maps
+        uriMap.put("math", "http://marklogic.com/xdmp/math"); // math Built-In functions
+        uriMap.put("prof", "http://marklogic.com/xdmp/profile"); // profile Built-In functions
+        uriMap.put("prop", "http://marklogic.com/xdmp/property"); // MarkLogic Server properties
+        uriMap.put("sec", "http://marklogic.com/xdmp/security"); // security Built-In functions
+        uriMap.put("sem", "http://marklogic.com/semantics"); // semantic Built-In functions
+        uriMap.put("spell", "http://marklogic.com/xdmp/spell"); // spelling correction functions
+        uriMap.put("xdmp", "http://marklogic.com/xdmp"); // MarkLogic Server Built-In functions
+        uriMap.put("xml", "http://www.w3.org/XML/1998/namespace"); // XML namespace
+        uriMap.put("xmlns", "http://www.w3.org/2000/xmlns/"); // xmlns namespace
+        uriMap.put("xqe", "http://marklogic.com/xqe"); // deprecated MarkLogic Server xqe namespace
+        uriMap.put("xqterr", "http://www.w3.org/2005/xqt-errors"); // XQuery test suite errors (same as err)
+        uriMap.put("xs", "http://www.w3.org/2001/XMLSchema"); // XML Schema namespace
+        return uriMap;
+    }
+
+    private void assertSimilar(String xqDocXML) {
+        String target = getClass().getClassLoader().getResource(expected).getFile();
         Source test = Input.fromString(xqDocXML).build();
         Source control = Input.fromFile(target).build();
         Diff myDiff = DiffBuilder.compare(control).withTest(test)
@@ -0,0 +1,172 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that batch mode writes the xqDoc of each module where its source is
+ * relative to the base directory, counts the modules that fail without
+ * stopping the others, reads the sources of a list file, and that the
+ * command line exits with 1 when a module fails.
+ */
+public class BatchProcessorTest
+{
+    private static final String BROKEN = "module namespace x = \"urn:x\";\n"
+            + "declare function x:f( { 1 };\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path sources;
+    private Path outputs;
+    private ByteArrayOutputStream reports;
+
+    @Before
+    public void setUp() throws IOException {
+        sources = folder.newFolder("src").toPath();
+        outputs = folder.newFolder("out").toPath();
+        reports = new ByteArrayOutputStream();
+    }
+
+    private BatchProcessor batchProcessor(int threads) throws IOException {
+        BatchProcessor batchProcessor = new BatchProcessor(new XQDocEngine(new HashMap()), outputs, threads);
+        batchProcessor.setErrorStream(new PrintStream(reports, true, "UTF-8"));
+        return batchProcessor;
+    }
+
+    private static void write(Path source, String prefix) throws IOException {
+        String module = "module namespace " + prefix + " = \"urn:" + prefix + "\";\n"
+                + "declare function " + prefix + ":f() { 1 };\n";
+        Files.createDirectories(source.getParent());
+        Files.write(source, module.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String withoutDate(String xml) {
+        return xml.replaceFirst("<xqdoc:date>[^<]*</xqdoc:date>", "");
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void layout() throws Exception {
+        // Spread the fixtures over nested directories that the workers create at the same time
+        List<String> fixtures = TestResources.xquerySources();
+        List<Path> expected = new ArrayList<>();
+        for (int i = 0; i < fixtures.size(); i++) {
+            String name = Paths.get(TestResources.path(fixtures.get(i))).getFileName().toString();
+            Path directory = i % 3 == 0 ? sources : sources.resolve("lib" + i % 2).resolve("nested");
+            Files.createDirectories(directory);
+            Files.copy(Paths.get(TestResources.path(fixtures.get(i))), directory.resolve(name));
+            expected.add(outputs.resolve(sources.relativize(directory)).resolve(name.substring(0, name.lastIndexOf('.')) + ".xml"));
+        }
+        Files.write(sources.resolve("notes.txt"), "not a module".getBytes(StandardCharsets.UTF_8));
+
+        List<Path> found = BatchProcessor.findSources(sources, BatchProcessor.DEFAULT_GLOB);
+        assertEquals(fixtures.size(), found.size());
+        assertEquals(0, batchProcessor(4).process(found, sources));
+        assertTrue(reports.toString("UTF-8"), reports.toString("UTF-8").startsWith("Processed " + fixtures.size() + " modules, 0 failed"));
+
+        XQDocEngine engine = new XQDocEngine(new HashMap());
+        for (int i = 0; i < fixtures.size(); i++) {
+            String control = engine.process(CharStreams.fromPath(Paths.get(TestResources.path(fixtures.get(i)))));
+            assertEquals(fixtures.get(i), withoutDate(control), withoutDate(read(expected.get(i))));
+        }
+        assertFalse(Files.exists(outputs.resolve("notes.xml")));
+    }
+
+    @Test
+    public void outputPath() throws Exception {
+        BatchProcessor batchProcessor = batchProcessor(1);
+        assertEquals(outputs.resolve("lib").resolve("a.xml"), batchProcessor.getOutputPath(sources.resolve("lib").resolve("a.xqm"), sources));
+        assertEquals(outputs.resolve("a.b.xml"), batchProcessor.getOutputPath(sources.resolve("a.b.xq"), sources));
+        // A source outside of the base directory, or without one, keeps only its name
+        assertEquals(outputs.resolve("c.xml"), batchProcessor.getOutputPath(folder.getRoot().toPath().resolve("c.xqy"), sources));
+        assertEquals(outputs.resolve("d.xml"), batchProcessor.getOutputPath(sources.resolve("lib").resolve("d.xql"), null));
+    }
+
+    @Test
+    public void failures() throws Exception {
+        write(sources.resolve("a.xqm"), "a");
+        Files.write(sources.resolve("broken.xqm"), BROKEN.getBytes(StandardCharsets.UTF_8));
+        write(sources.resolve("lib").resolve("c.xqm"), "c");
+        List<Path> found = BatchProcessor.findSources(sources, BatchProcessor.DEFAULT_GLOB);
+        found.add(sources.resolve("missing.xqm"));
+
+        assertEquals(2, batchProcessor(3).process(found, sources));
+        String report = reports.toString("UTF-8");
+        assertTrue(report, report.contains("broken.xqm:2:"));
+        assertTrue(report, report.contains("broken.xqm: 1 syntax error(s), no xqDoc written"));
+        assertTrue(report, report.contains("missing.xqm: java.nio.file.NoSuchFileException"));
+        assertTrue(report, report.contains("Processed 4 modules, 2 failed"));
+        assertFalse(Files.exists(outputs.resolve("broken.xml")));
+        assertTrue(read(outputs.resolve("a.xml")).contains("<xqdoc:uri>urn:a</xqdoc:uri>"));
+        assertTrue(read(outputs.resolve("lib").resolve("c.xml")).contains("<xqdoc:uri>urn:c</xqdoc:uri>"));
+    }
+
+    @Test
+    public void sourceList() throws Exception {
+        Path absolute = folder.newFolder("elsewhere").toPath().resolve("d.xqm");
+        Path list = sources.resolve("modules.txt");
+        Files.write(list, Arrays.asList("# The modules to document", "", "a.xqm", "  lib/c.xqm  ", absolute.toString()), StandardCharsets.UTF_8);
+
+        assertEquals(Arrays.asList(sources.resolve("a.xqm"), sources.resolve("lib/c.xqm"), absolute), BatchProcessor.readSourceList(list));
+    }
+
+    @Test
+    public void exitStatus() throws Exception {
+        write(sources.resolve("a.xqm"), "a");
+        write(sources.resolve("lib").resolve("c.xqm"), "c");
+        Path list = sources.resolve("modules.txt");
+        Files.write(list, Arrays.asList("a.xqm", "lib/c.xqm"), StandardCharsets.UTF_8);
+        assertEquals(0, app("-l", list.toString(), "-o", outputs.toString(), "-t", "2"));
+        // Without a base directory the output keeps only the name of each source
+        assertTrue(Files.exists(outputs.resolve("a.xml")));
+        assertTrue(Files.exists(outputs.resolve("c.xml")));
+
+        Files.write(sources.resolve("broken.xqm"), BROKEN.getBytes(StandardCharsets.UTF_8));
+        Files.write(list, Arrays.asList("a.xqm", "broken.xqm"), StandardCharsets.UTF_8);
+        assertEquals(1, app("-l", list.toString(), "-o", outputs.toString()));
+        assertEquals(1, app("-d", sources.toString(), "-o", outputs.resolve("tree").toString()));
+        assertTrue(Files.exists(outputs.resolve("tree").resolve("lib").resolve("c.xml")));
+    }
+
+    /**
+     * Run the command line in a separate JVM, since it exits with the status.
+     *
+     * @param args The arguments of the command line
+     * @return The exit status
+     */
+    private int app(String... args) throws Exception {
+        List<String> command = new ArrayList<>(Arrays.asList(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), App.class.getName()));
+        command.addAll(Arrays.asList(args));
+        File log = folder.newFile();
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+        int status = process.waitFor();
+        reports.write(Files.readAllBytes(log.toPath()));
+        return status;
+    }
+}
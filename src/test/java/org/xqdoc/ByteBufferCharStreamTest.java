@@ -0,0 +1,174 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.misc.Interval;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the in-place stream over ASCII and ISO-8859-1 sources, and the
+ * decoded stream over other sources, read the same characters, text, sizes
+ * and positions as the ANTLR stream of the same source as a String.
+ */
+public class ByteBufferCharStreamTest
+{
+    private static final String ASCII = "module namespace a = \"urn:a\";\n"
+            + "(:~ The answer :)\r\ndeclare function a:f() { 42 };\n";
+
+    private static final String LATIN_1 = "(:~ Grüße aus Köln, ½ ¿ ÿ :)\n"
+            + "declare function a:f() { \"Straße\" };\n";
+
+    // Characters of two, three and four bytes in UTF-8, the last outside of the Basic Multilingual Plane
+    private static final String NON_BMP = "(: é 日本 😀 𝄞 :)\n"
+            + "declare variable $a:x := \"😀x\";\n";
+
+    /**
+     * @param bytes The content of the buffer
+     * @return A buffer whose content starts past other bytes and ends before others
+     */
+    private static ByteBuffer positioned(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 7);
+        buffer.put(new byte[] { 'x', (byte) 0xC3, 'y' });
+        buffer.put(bytes);
+        buffer.put(new byte[] { (byte) 0xE6, 'z', 'z', 'z' });
+        buffer.position(3);
+        buffer.limit(3 + bytes.length);
+        return buffer;
+    }
+
+    private static CharStream stream(String text, Charset charset) throws Exception {
+        return ByteBufferCharStream.fromByteBuffer(positioned(text.getBytes(charset)), charset, "test.xqm");
+    }
+
+    @Test
+    public void ascii() throws Exception {
+        CharStream stream = stream(ASCII, StandardCharsets.UTF_8);
+        assertTrue("Read in place", stream instanceof ByteBufferCharStream);
+        assertSameStream(CharStreams.fromString(ASCII), stream);
+        assertTrue(stream(ASCII, StandardCharsets.US_ASCII) instanceof ByteBufferCharStream);
+        assertSameStream(CharStreams.fromString(ASCII), stream(ASCII, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void latin1() throws Exception {
+        CharStream stream = stream(LATIN_1, StandardCharsets.ISO_8859_1);
+        assertTrue("Read in place", stream instanceof ByteBufferCharStream);
+        assertSameStream(CharStreams.fromString(LATIN_1), stream);
+    }
+
+    @Test
+    public void decoded() throws Exception {
+        for (String text : new String[] { LATIN_1, NON_BMP }) {
+            CharStream stream = stream(text, StandardCharsets.UTF_8);
+            assertFalse("Decoded", stream instanceof ByteBufferCharStream);
+            assertSameStream(CharStreams.fromString(text), stream);
+            assertSameStream(CharStreams.fromString(text), stream(text, StandardCharsets.UTF_16BE));
+        }
+        CharStream stream = stream(NON_BMP, StandardCharsets.UTF_8);
+        assertEquals(NON_BMP.codePointCount(0, NON_BMP.length()), stream.size());
+        assertEquals(0x1F600, stream.LA(NON_BMP.codePointCount(0, NON_BMP.indexOf("😀")) + 1));
+    }
+
+    @Test
+    public void malformed() throws Exception {
+        // Bytes that are not UTF-8 are replaced, as when the source is decoded into a String
+        byte[] bytes = "aÿþÃb".getBytes(StandardCharsets.ISO_8859_1);
+        CharStream stream = ByteBufferCharStream.fromByteBuffer(ByteBuffer.wrap(bytes), StandardCharsets.UTF_8, null);
+        assertSameStream(CharStreams.fromString(new String(bytes, StandardCharsets.UTF_8)), stream);
+        assertEquals(IntStream.UNKNOWN_SOURCE_NAME, stream.getSourceName());
+
+        // Only ISO-8859-1 reads the bytes above ASCII in place
+        stream = ByteBufferCharStream.fromByteBuffer(ByteBuffer.wrap(bytes), StandardCharsets.US_ASCII, "");
+        assertFalse(stream instanceof ByteBufferCharStream);
+        assertEquals("a\ufffd\ufffd\ufffdb", stream.toString());
+    }
+
+    @Test
+    public void fromStream() throws Exception {
+        // Longer than the first read buffer, so that it has to grow
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 20000) {
+            text.append(text.length() % 3 == 0 ? ASCII : LATIN_1);
+        }
+        String source = text.toString();
+        CharStream stream = ByteBufferCharStream.fromStream(new ByteArrayInputStream(source.getBytes(StandardCharsets.ISO_8859_1)),
+                StandardCharsets.ISO_8859_1, "big.xqm");
+        assertEquals(source.length(), stream.size());
+        assertEquals(source, stream.toString());
+        assertEquals("big.xqm", stream.getSourceName());
+
+        stream = ByteBufferCharStream.fromStream(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)),
+                StandardCharsets.UTF_8, "big.xqm");
+        assertEquals(source, stream.toString());
+        assertEquals(source.substring(8190, 8200), stream.getText(Interval.of(8190, 8199)));
+    }
+
+    @Test
+    public void fixtures() throws Exception {
+        for (String source : TestResources.xquerySources()) {
+            CharStream expected = CharStreams.fromPath(Paths.get(TestResources.path(source)), StandardCharsets.UTF_8);
+            CharStream stream = ByteBufferCharStream.fromPath(Paths.get(TestResources.path(source)), StandardCharsets.UTF_8);
+            assertEquals(source, expected.getSourceName(), stream.getSourceName());
+            assertEquals(source, expected.toString(), stream.toString());
+            assertEquals(source, expected.size(), stream.size());
+        }
+    }
+
+    /**
+     * Check that a stream reads like the ANTLR stream of the same source.
+     *
+     * @param expected The ANTLR stream of the source
+     * @param stream The stream under test
+     */
+    private static void assertSameStream(CharStream expected, CharStream stream) {
+        int size = expected.size();
+        assertEquals(size, stream.size());
+        assertEquals(expected.toString(), stream.toString());
+
+        // Every character ahead and behind from every position
+        for (int index = 0; index <= size; index++) {
+            expected.seek(index);
+            stream.seek(index);
+            assertEquals(index, stream.index());
+            for (int i = -2; i <= 2; i++) {
+                assertEquals("LA(" + i + ") at " + index, expected.LA(i), stream.LA(i));
+            }
+        }
+        assertEquals(0, stream.LA(0));
+
+        // Consume from the start to the end of the source, where EOF cannot be consumed
+        stream.seek(0);
+        int marker = stream.mark();
+        for (int index = 0; index < size; index++) {
+            assertEquals(expected.getText(Interval.of(index, index)).codePointAt(0), stream.LA(1));
+            stream.consume();
+        }
+        stream.release(marker);
+        assertEquals(IntStream.EOF, stream.LA(1));
+        try {
+            stream.consume();
+            fail("consumed EOF");
+        } catch (IllegalStateException ex) {
+            assertEquals(size, stream.index());
+        }
+
+        // Every interval, including those that run past the end of the source
+        for (int a = 0; a <= size; a++) {
+            for (int b = a - 1; b <= size + 1; b++) {
+                assertEquals("getText(" + a + ".." + b + ")", expected.getText(Interval.of(a, b)), stream.getText(Interval.of(a, b)));
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the DFA cache is cleared when it grows past its ceiling or
+ * its clear interval, that parsing still succeeds across the clears, and
+ * that it counts the transitions it finds and computes.
+ */
+public class DFACacheTest
+{
+    private static final int MAX_STATES = 50;
+
+    private static String withoutDate(String xml) {
+        return xml.replaceFirst("<xqdoc:date>[^<]*</xqdoc:date>", "");
+    }
+
+    private static String process(XQDocEngine engine, String source) throws Exception {
+        return withoutDate(engine.process(CharStreams.fromPath(Paths.get(TestResources.path(source)))));
+    }
+
+    @Test
+    public void ceiling() throws Exception {
+        DFACache cache = new DFACache(MAX_STATES, Integer.MAX_VALUE, 0);
+        XQDocEngine bounded = new XQDocEngine(new HashMap(), cache);
+        XQDocEngine unbounded = new XQDocEngine(new HashMap());
+        for (int i = 0; i < 3; i++) {
+            for (String source : TestResources.xquerySources()) {
+                assertEquals(process(unbounded, source), process(bounded, source));
+                assertTrue(cache.toString(), cache.getStateCount() <= MAX_STATES);
+            }
+        }
+        assertTrue(cache.toString(), cache.getClearCount() > 0);
+    }
+
+    @Test
+    public void clearInterval() throws Exception {
+        DFACache cache = new DFACache(Integer.MAX_VALUE, Integer.MAX_VALUE, 2);
+        XQDocEngine engine = new XQDocEngine(new HashMap(), cache);
+        String source = TestResources.xquerySources().get(0);
+        for (int i = 0; i < 4; i++) {
+            process(engine, source);
+        }
+        assertEquals(2, cache.getClearCount());
+        assertEquals(0, cache.getStateCount());
+    }
+
+    @Test
+    public void hitsAndMisses() throws Exception {
+        DFACache cache = new DFACache();
+        XQDocEngine engine = new XQDocEngine(new HashMap(), cache);
+        String source = TestResources.xquerySources().get(0);
+
+        process(engine, source);
+        long coldMisses = cache.getMissCount();
+        long coldHits = cache.getHitCount();
+        assertTrue(cache.toString(), coldMisses > 0);
+        assertTrue(cache.toString(), cache.getStateCount() > 0);
+
+        // The second parse of the same module finds what the first one computed
+        process(engine, source);
+        assertTrue(cache.toString(), cache.getHitCount() - coldHits > cache.getMissCount() - coldMisses);
+        assertTrue(cache.toString(), cache.getHitRate() > 0.0);
+        assertEquals(0, cache.getClearCount());
+
+        cache.clear();
+        assertEquals(1, cache.getClearCount());
+        assertEquals(0, cache.getStateCount());
+        assertEquals(0, cache.getContextCount());
+    }
+}
@@ -0,0 +1,101 @@
+package org.xqdoc;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that strings are escaped so that a JSON text stays on one line,
+ * that what is written is read back, including characters outside of the
+ * Basic Multilingual Plane, and that malformed JSON is reported with its
+ * offset.
+ */
+public class JsonUtilityTest
+{
+    private static String json(Object value) {
+        StringBuilder buffer = new StringBuilder();
+        JsonUtility.append(buffer, value);
+        return buffer.toString();
+    }
+
+    @Test
+    public void escapes() throws Exception {
+        assertEquals("\"a\\\"b\\\\c\\nd\\re\\tf\"", json("a\"b\\c\nd\re\tf"));
+        assertEquals("\"\\u0000\\u0008\\u000c\\u001f\"", json("\u0000\b\f\u001f"));
+        // Line and paragraph separators end a line in JavaScript
+        assertEquals("\"\\u2028\\u2029\"", json("\u2028\u2029"));
+        // Everything else, including '/' and DEL, is written as it is
+        assertEquals("\"/\u007f\u00e9\"", json("/\u007f\u00e9"));
+
+        String all = "\"\\/\b\f\n\r\t\u0001\u2028\u2029\u00e9";
+        assertEquals(all, JsonUtility.parse(json(all)));
+        assertEquals("\"\\/\b\f\n\r\t\u00e9", JsonUtility.parse("\"\\\"\\\\\\/\\b\\f\\n\\r\\t\\u00E9\""));
+    }
+
+    @Test
+    public void surrogatePairs() throws Exception {
+        String emoji = "smile \ud83d\ude00 \ud834\udd1e";
+        assertEquals("\"" + emoji + "\"", json(emoji));
+        assertEquals(emoji, JsonUtility.parse(json(emoji)));
+        // Escaped as two UTF-16 code units
+        String escaped = (String) JsonUtility.parse("\"\\ud83d\\ude00\"");
+        assertEquals(2, escaped.length());
+        assertEquals(0x1F600, escaped.codePointAt(0));
+    }
+
+    @Test
+    public void values() throws Exception {
+        Map<String, Object> object = new LinkedHashMap<>();
+        object.put("id", 42L);
+        object.put("ratio", 0.5);
+        object.put("done", Boolean.TRUE);
+        object.put("none", null);
+        object.put("errors", Arrays.asList("1:2: a", "3:4: b"));
+        object.put("nested", Collections.singletonMap("empty", Collections.emptyList()));
+        String text = json(object);
+        assertEquals("{\"id\":42,\"ratio\":0.5,\"done\":true,\"none\":null,\"errors\":[\"1:2: a\",\"3:4: b\"],\"nested\":{\"empty\":[]}}", text);
+        assertEquals(object, JsonUtility.parse(text));
+
+        Map parsed = (Map) JsonUtility.parse(" { \"a\" : -1 , \"b\" : [ 1e3 , 2.5E-1 , false ] , \"c\" : { } } ");
+        assertEquals(-1L, parsed.get("a"));
+        assertEquals(Arrays.asList(1000.0, 0.25, Boolean.FALSE), parsed.get("b"));
+        assertEquals(Collections.emptyMap(), parsed.get("c"));
+        assertNull(JsonUtility.parse("null"));
+        assertEquals(Collections.emptyList(), JsonUtility.parse("[]"));
+    }
+
+    @Test
+    public void malformed() {
+        List<String> texts = Arrays.asList(
+                "", "   ", "{", "{\"id\" 1}", "{\"id\": 1,}", "{id: 1}", "[1 2]", "[1,",
+                "\"unterminated", "\"a\\", "\"\\u12\"", "\"\\u12g4\"", "\"\\u-123\"", "\"\\u+123\"",
+                "tru", "nul", "x", "1.2.3", "-", "{} {}", "\"a\" b");
+        for (String text : texts) {
+            try {
+                Object value = JsonUtility.parse(text);
+                fail(text + " was read as " + value);
+            } catch (XQDocException ex) {
+                assertTrue(text + ": " + ex.getMessage(), ex.getMessage().matches("Invalid JSON at offset \\d+: .+"));
+            }
+        }
+    }
+
+    @Test
+    public void offset() {
+        try {
+            JsonUtility.parse("{\"id\": 1, \"source\" 2}");
+            fail();
+        } catch (XQDocException ex) {
+            assertEquals("Invalid JSON at offset 19: expected ':'", ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the newline delimited JSON protocol of pipe mode: one response per
+ * request with its id, the xqDoc of a valid source, the syntax errors of a
+ * broken one, and an error envelope for a line that is not a request.
+ */
+public class PipeProcessorTest
+{
+    private static final String BROKEN = "module namespace x = \"urn:x\";\n"
+            + "declare function x:f( { 1 };\n";
+
+    private static String withoutDate(String xml) {
+        return xml.replaceFirst("<xqdoc:date>[^<]*</xqdoc:date>", "");
+    }
+
+    private static String request(Object id, String source) {
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("id", id);
+        request.put("source", source);
+        StringBuilder json = new StringBuilder();
+        JsonUtility.append(json, request);
+        return json.toString();
+    }
+
+    /**
+     * Run pipe mode over the lines of a request stream.
+     *
+     * @param threads The number of worker threads
+     * @param lines The lines of the request stream
+     * @return The response envelopes, in completion order
+     */
+    private static List<Map> run(int threads, List<String> lines) throws Exception {
+        StringBuilder in = new StringBuilder();
+        for (String line : lines) {
+            in.append(line).append('\n');
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new PipeProcessor(new XQDocEngine(new HashMap()), threads)
+                .run(new ByteArrayInputStream(in.toString().getBytes(StandardCharsets.UTF_8)), out);
+        String text = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(text, text.isEmpty() || text.endsWith("\n"));
+        List<Map> responses = new ArrayList<>();
+        for (String line : text.split("\n")) {
+            if (!line.isEmpty()) {
+                responses.add((Map) JsonUtility.parse(line));
+            }
+        }
+        return responses;
+    }
+
+    private static Map byId(List<Map> responses, Object id) {
+        Map found = null;
+        for (Map response : responses) {
+            if (id.equals(response.get("id"))) {
+                assertNull("Only one response for " + id, found);
+                found = response;
+            }
+        }
+        assertTrue("No response for " + id + " in " + responses, found != null);
+        return found;
+    }
+
+    @Test
+    public void fixtures() throws Exception {
+        List<String> sources = TestResources.xquerySources();
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < sources.size(); i++) {
+            String source = new String(Files.readAllBytes(Paths.get(TestResources.path(sources.get(i)))), StandardCharsets.UTF_8);
+            lines.add(request((long) i, source));
+        }
+        List<Map> responses = run(4, lines);
+        assertEquals(sources.size(), responses.size());
+
+        XQDocEngine engine = new XQDocEngine(new HashMap());
+        for (int i = 0; i < sources.size(); i++) {
+            Map response = byId(responses, (long) i);
+            assertEquals(sources.get(i), null, response.get("errors"));
+            String control = engine.process(CharStreams.fromPath(Paths.get(TestResources.path(sources.get(i)))));
+            assertEquals(sources.get(i), withoutDate(control), withoutDate((String) response.get("xqdoc")));
+        }
+    }
+
+    @Test
+    public void requests() throws Exception {
+        List<String> lines = new ArrayList<>();
+        lines.add(request("text id", "module namespace a = \"urn:a\";\n(:~ Grüße \\ \"quoted\" :)\ndeclare function a:f() { \"\ud83d\ude00\" };\n"));
+        lines.add("");
+        lines.add("   ");
+        lines.add(request(2L, BROKEN));
+        // The source written with escapes for every character outside of ASCII
+        lines.add("{\"source\":\"module namespace b = \\\"urn:b\\\";\\ndeclare function b:f() { \\\"\\ud83d\\ude00\\u00e9\\\" };\",\"id\":3}");
+        lines.add("{\"id\": {\"nested\": [1, 2]}, \"source\": \"module namespace c = \\\"urn:c\\\";\"}");
+        List<Map> responses = run(2, lines);
+        assertEquals(4, responses.size());
+
+        Map response = byId(responses, "text id");
+        assertEquals(2, response.size());
+        String xqdoc = (String) response.get("xqdoc");
+        assertTrue(xqdoc, xqdoc.contains("Grüße \\ \"quoted\""));
+        assertTrue(xqdoc, xqdoc.contains("\"\ud83d\ude00\""));
+
+        response = byId(responses, 2L);
+        List errors = (List) response.get("errors");
+        assertFalse(response.containsKey("xqdoc"));
+        assertFalse(errors.isEmpty());
+        for (Object error : errors) {
+            assertTrue(error.toString(), error.toString().matches("2:\\d+: .+"));
+        }
+
+        xqdoc = (String) byId(responses, 3L).get("xqdoc");
+        assertTrue(xqdoc, xqdoc.contains("\"\ud83d\ude00\u00e9\""));
+
+        Map nested = new LinkedHashMap();
+        nested.put("nested", Arrays.asList(1L, 2L));
+        assertTrue(byId(responses, nested).containsKey("xqdoc"));
+    }
+
+    @Test
+    public void malformed() throws Exception {
+        List<String> lines = new ArrayList<>();
+        lines.add("{\"id\": 1, \"source\": ");
+        lines.add("[\"not\", \"an\", \"object\"]");
+        lines.add("{\"id\": 3}");
+        lines.add("{\"id\": 4, \"source\": 5}");
+        lines.add("{\"id\": 5, \"source\": \"\\u12\"}");
+        lines.add(request(6L, "module namespace f = \"urn:f\";"));
+        // With one worker the responses are in request order
+        List<Map> responses = run(1, lines);
+        assertEquals(lines.size(), responses.size());
+
+        // A line that cannot be read, or is not an object, has no id to echo
+        List<String> withoutId = new ArrayList<>();
+        for (Map response : responses) {
+            if (!response.containsKey("id")) {
+                assertEquals(1, response.size());
+                List errors = (List) response.get("errors");
+                assertEquals(1, errors.size());
+                withoutId.add((String) errors.get(0));
+            }
+        }
+        assertEquals(withoutId.toString(), 3, withoutId.size());
+        assertTrue(withoutId.get(0), withoutId.get(0).startsWith("org.xqdoc.XQDocException: Invalid JSON at offset 20: "));
+        assertEquals("org.xqdoc.XQDocException: A request must be a JSON object", withoutId.get(1));
+        assertTrue(withoutId.get(2), withoutId.get(2).startsWith("org.xqdoc.XQDocException: Invalid JSON at offset "));
+        assertEquals(Arrays.asList("org.xqdoc.XQDocException: A request must have a string 'source'"),
+                byId(responses, 3L).get("errors"));
+        assertEquals(Arrays.asList("org.xqdoc.XQDocException: A request must have a string 'source'"),
+                byId(responses, 4L).get("errors"));
+        // The error envelopes do not stop the requests that follow
+        assertTrue(byId(responses, 6L).containsKey("xqdoc"));
+    }
+
+    @Test
+    public void empty() throws Exception {
+        List<String> lines = new ArrayList<>();
+        assertTrue(run(2, lines).isEmpty());
+    }
+}
@@ -0,0 +1,23 @@
+package org.xqdoc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that pretty printing keeps the escaping, character references,
+ * CDATA sections, mixed content and preserved space of a document, as the
+ * LSSerializer does.
+ */
+public class PrettyPrintEscapingTest
+{
+    @Test
+    public void test() throws Exception {
+        StringBuilder xml = new StringBuilder("<r b='x\"y' a=\"&lt;&#9;&#x1F600;\">\r\n"
+                + "<e>  </e><t>a &amp; b &gt; c</t><c><![CDATA[x]]]]><![CDATA[>é]]></c>"
+                + "<m>text<e/>tail\n</m><p xml:space=\"preserve\"> <e/> </p></r>");
+
+        String control = DocumentUtility.getStringFromDoc(DocumentUtility.getDocumentFromBuffer(xml));
+        assertEquals(control, PrettyPrintWriter.format(xml));
+    }
+}
@@ -0,0 +1,40 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.nio.file.Paths;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that pretty printing the xqDoc while it is written gives the same
+ * text as parsing it into a DOM and serializing it with the LSSerializer.
+ */
+@RunWith(Parameterized.class)
+public class PrettyPrintTest
+{
+    @Parameters(name = "{index}: prettyPrint({0})")
+    public static Iterable<String> data() {
+        return TestResources.xquerySources();
+    }
+
+    private String input;
+
+    public PrettyPrintTest(String input) {
+        this.input = input;
+    }
+
+    @Test
+    public void test() throws Exception {
+        String source = getClass().getClassLoader().getResource(input).getFile();
+        StringBuilder xml = new XQDocEngine(new HashMap()).generate(CharStreams.fromPath(Paths.get(source)), null);
+
+        String control = DocumentUtility.getStringFromDoc(DocumentUtility.getDocumentFromBuffer(xml));
+        assertEquals(control, PrettyPrintWriter.format(xml));
+    }
+}
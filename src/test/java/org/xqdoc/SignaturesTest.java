@@ -0,0 +1,67 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xmlunit.builder.DiffBuilder;
+import org.xmlunit.builder.Input;
+import org.xmlunit.diff.Diff;
+import org.xmlunit.util.Nodes;
+import org.xmlunit.util.Predicate;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks that the signatures-only mode produces the same xqDoc as a full
+ * parse, apart from the invoked functions and referenced variables.
+ */
+@RunWith(Parameterized.class)
+public class SignaturesTest
+{
+    @Parameters(name = "{index}: signatures({0})")
+    public static Iterable<String> data() {
+        return TestResources.xquerySources();
+    }
+
+    private String input;
+
+    public SignaturesTest(String input) {
+        this.input = input;
+    }
+
+    @Test
+    public void test() throws IOException {
+        HashMap uriMap = new HashMap();
+        uriMap.put("fn", "http://www.w3.org/2003/05/xpath-functions");
+        uriMap.put("xs", "http://www.w3.org/2001/XMLSchema");
+        String source = getClass().getClassLoader().getResource(input).getFile();
+
+        XQDocEngine full = new XQDocEngine(uriMap);
+        XQDocEngine signatures = new XQDocEngine(uriMap);
+        signatures.setSignaturesOnly(true);
+        String control = full.generate(CharStreams.fromPath(Paths.get(source)), null).toString();
+        String test = signatures.generate(CharStreams.fromPath(Paths.get(source)), null).toString();
+
+        Diff myDiff = DiffBuilder.compare(Input.fromString(control)).withTest(Input.fromString(test))
+                .withNodeFilter(new Predicate<Node>() {
+                    @Override
+                    public boolean test(Node n) {
+                        return !(n instanceof Element &&
+                                Arrays.asList("date", "invoked", "ref-variable").contains(Nodes.getQName(n).getLocalPart()));
+                    }
+                })
+                .checkForSimilar()
+                .ignoreWhitespace()
+                .build();
+        assertFalse("XML similar " + myDiff.toString(), myDiff.hasDifferences());
+    }
+}
@@ -0,0 +1,51 @@
+package org.xqdoc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The XQuery fixtures under src/test/resources/XQuery, shared by the
+ * parameterized tests.
+ */
+final class TestResources
+{
+    private TestResources() {
+    }
+
+    /**
+     * @return The class path resource of every XQuery fixture, such as XQuery/simple-module.xq, in name order
+     */
+    static List<String> xquerySources() {
+        File directory = new File(TestResources.class.getClassLoader().getResource("XQuery").getFile());
+        File[] files = directory.listFiles();
+        List<String> sources = new ArrayList<>();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.isFile()) {
+                    sources.add("XQuery/" + file.getName());
+                }
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * @param source The class path resource of an XQuery fixture
+     * @return The class path resource of its expected xqDoc, such as xqDoc/simple-module.xml
+     */
+    static String expectedXQDoc(String source) {
+        String name = source.substring(source.lastIndexOf('/') + 1);
+        return "xqDoc/" + name.split("\\.")[0] + ".xml";
+    }
+
+    /**
+     * @param resource A class path resource
+     * @return The file of the resource
+     */
+    static String path(String resource) {
+        return TestResources.class.getClassLoader().getResource(resource).getFile();
+    }
+}
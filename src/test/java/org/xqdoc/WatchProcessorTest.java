@@ -0,0 +1,152 @@
+package org.xqdoc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that watch mode regenerates a burst of changes once, picks up the
+ * sources of a new directory and removes the xqDoc of deleted modules and
+ * directories.
+ */
+public class WatchProcessorTest
+{
+    private static final long DEBOUNCE = 500;
+    private static final long TIMEOUT = 20000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path sources;
+    private Path outputs;
+    private ByteArrayOutputStream reports;
+    private WatchProcessor watchProcessor;
+    private Thread watching;
+
+    @Before
+    public void start() throws Exception {
+        sources = folder.newFolder("src").toPath();
+        outputs = folder.newFolder("out").toPath();
+        write(sources.resolve("a.xqm"), "a");
+
+        reports = new ByteArrayOutputStream();
+        BatchProcessor batchProcessor = new BatchProcessor(new XQDocEngine(new HashMap()), outputs, 2);
+        watchProcessor = new WatchProcessor(batchProcessor, sources, BatchProcessor.DEFAULT_GLOB, DEBOUNCE);
+        watchProcessor.setErrorStream(new PrintStream(reports, true, "UTF-8"));
+        watching = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    watchProcessor.run();
+                } catch (IOException | InterruptedException ex) {
+                    throw new XQDocRuntimeException("Watch mode failed", ex);
+                }
+            }
+        });
+        watching.start();
+        awaitReport("Watching ");
+    }
+
+    @After
+    public void stop() throws InterruptedException {
+        watchProcessor.stop();
+        watching.join(TIMEOUT);
+    }
+
+    @Test
+    public void debounce() throws Exception {
+        write(sources.resolve("b.xq"), "b");
+        write(sources.resolve("c.xqy"), "c");
+        write(sources.resolve("a.xqm"), "a2");
+
+        awaitFile(outputs.resolve("c.xml"), true);
+        Thread.sleep(DEBOUNCE * 3);
+        assertEquals(reports(), 2, count("Processed "));
+        assertTrue(reports(), reports().contains("Processed 3 modules, 0 failed"));
+        assertTrue(new String(Files.readAllBytes(outputs.resolve("a.xml")), StandardCharsets.UTF_8).contains("a2:f"));
+
+        Files.delete(sources.resolve("b.xq"));
+        awaitFile(outputs.resolve("b.xml"), false);
+        assertTrue(Files.exists(outputs.resolve("c.xml")));
+    }
+
+    @Test
+    public void directories() throws Exception {
+        // A directory moved into the tree already holds its sources when it is registered
+        Path staged = folder.newFolder("staged").toPath();
+        write(staged.resolve("d.xqm"), "d");
+        Files.createDirectory(staged.resolve("nested"));
+        write(staged.resolve("nested").resolve("e.xq"), "e");
+        Files.move(staged, sources.resolve("lib"));
+        awaitFile(outputs.resolve("lib").resolve("d.xml"), true);
+        awaitFile(outputs.resolve("lib").resolve("nested").resolve("e.xml"), true);
+
+        // Moving the directory out of the tree signals only the directory itself
+        Files.move(sources.resolve("lib"), folder.getRoot().toPath().resolve("moved"));
+        awaitFile(outputs.resolve("lib").resolve("nested").resolve("e.xml"), false);
+        awaitFile(outputs.resolve("lib").resolve("d.xml"), false);
+        awaitFile(outputs.resolve("lib"), false);
+        assertTrue(Files.exists(outputs.resolve("a.xml")));
+
+        // Directories that are gone before they can be watched do not stop watch mode
+        for (int i = 0; i < 20; i++) {
+            Path gone = sources.resolve("gone" + i);
+            Files.createDirectories(gone.resolve("deeper"));
+            Files.delete(gone.resolve("deeper"));
+            Files.delete(gone);
+        }
+        write(sources.resolve("f.xq"), "f");
+        awaitFile(outputs.resolve("f.xml"), true);
+        assertTrue(watching.isAlive());
+    }
+
+    private static void write(Path source, String prefix) throws IOException {
+        String module = "module namespace " + prefix + " = \"urn:" + prefix + "\";\n"
+                + "declare function " + prefix + ":f() { 1 };\n";
+        Files.write(source, module.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String reports() throws IOException {
+        return reports.toString("UTF-8");
+    }
+
+    private int count(String report) throws IOException {
+        int count = 0;
+        for (String line : reports().split("\n")) {
+            if (line.startsWith(report)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void awaitReport(String report) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!reports().contains(report)) {
+            assertTrue("Timed out waiting for '" + report + "' in " + reports(), System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    private void awaitFile(Path file, boolean exists) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (Files.exists(file) != exists) {
+            assertTrue("Timed out waiting for " + file + (exists ? " to be written" : " to be removed") + " in " + reports(),
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the asynchronous processor gives every source the xqDoc of
+ * the blocking engine, and the errors of a source that does not parse.
+ */
+public class XQDocAsyncProcessorTest
+{
+    private static String withoutDate(String xml) {
+        return xml.replaceFirst("<xqdoc:date>[^<]*</xqdoc:date>", "");
+    }
+
+    @Test
+    public void processAll() throws Exception {
+        File directory = new File(getClass().getClassLoader().getResource("XQuery").getFile());
+        XQDocEngine engine = new XQDocEngine(new HashMap());
+        List<XQDocAsyncProcessor.Source> sources = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            for (File file : directory.listFiles()) {
+                sources.add(XQDocAsyncProcessor.Source.fromPath(file.toPath()));
+            }
+        }
+
+        Set<XQDocAsyncProcessor.Source> seen = new HashSet<>();
+        try (XQDocAsyncProcessor processor = new XQDocAsyncProcessor(engine, 3, 2)) {
+            Iterator<XQDocAsyncProcessor.Result> results = processor.processAll(sources);
+            while (results.hasNext()) {
+                XQDocAsyncProcessor.Result result = results.next();
+                assertFalse(result.getErrors().toString(), result.hasErrors());
+                Path path = new File(result.getSource().getName()).toPath();
+                assertEquals(withoutDate(engine.process(CharStreams.fromPath(path))), withoutDate(result.getXQDoc()));
+                assertTrue(seen.add(result.getSource()));
+            }
+        }
+        assertEquals(sources.size(), seen.size());
+    }
+
+    @Test
+    public void processAsync() throws Exception {
+        try (XQDocAsyncProcessor processor = new XQDocAsyncProcessor(new XQDocEngine(new HashMap()), 1)) {
+            XQDocAsyncProcessor.Result result = processor.processAsync(
+                    XQDocAsyncProcessor.Source.fromString("broken.xq", "declare function local:f( { 1 };")).get();
+            assertTrue(result.hasErrors());
+            assertNull(result.getXQDoc());
+            assertFalse(result.getErrors().isEmpty());
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.xqdoc;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a cache entry is found again only for the same source,
+ * namespaces and mode, and that an entry that is not complete is not found
+ * and is generated again by batch mode.
+ */
+public class XQDocCacheTest
+{
+    private static final String MODULE = "module namespace a = \"urn:a\";\n"
+            + "declare function a:f() { 1 };\n";
+
+    private static final String XML = "<xqdoc:xqdoc xmlns:xqdoc=\"http://www.xqdoc.org/1.0\">\n"
+            + "<xqdoc:module type=\"library\"/>\n"
+            + "</xqdoc:xqdoc>\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> uriMap(String... entries) {
+        Map<String, String> uriMap = new LinkedHashMap<>();
+        for (int i = 0; i < entries.length; i += 2) {
+            uriMap.put(entries[i], entries[i + 1]);
+        }
+        return uriMap;
+    }
+
+    @Test
+    public void hit() throws Exception {
+        XQDocCache cache = new XQDocCache(folder.newFolder("cache").toPath());
+        String key = XQDocCache.key(bytes(MODULE), uriMap("fn", "urn:fn"));
+        assertNull(cache.lookup(key));
+
+        cache.store(key, XML);
+        Path entry = cache.lookup(XQDocCache.key(bytes(MODULE), uriMap("fn", "urn:fn")));
+        assertNotNull(entry);
+        assertTrue(entry.startsWith(cache.getDirectory()));
+        assertEquals(XML, new String(Files.readAllBytes(entry), StandardCharsets.UTF_8));
+
+        // Storing again replaces the entry without leaving temporary files
+        cache.store(key, XML.replace("library", "main"));
+        assertTrue(new String(Files.readAllBytes(cache.lookup(key)), StandardCharsets.UTF_8).contains("main"));
+        assertEquals(1, entry.getParent().toFile().list().length);
+    }
+
+    @Test
+    public void key() {
+        String key = XQDocCache.key(bytes(MODULE), uriMap("fn", "urn:fn", "xs", "urn:xs"));
+        assertTrue(key, key.matches("[0-9a-f]{64}"));
+
+        // The order of the namespaces and the position of the buffer do not matter
+        assertEquals(key, XQDocCache.key(bytes(MODULE), uriMap("xs", "urn:xs", "fn", "urn:fn")));
+        ByteBuffer buffer = ByteBuffer.wrap(bytes("xx" + MODULE));
+        buffer.position(2);
+        assertEquals(key, XQDocCache.key(buffer, uriMap("fn", "urn:fn", "xs", "urn:xs"), "full"));
+        assertEquals("The buffer is not modified", 2, buffer.position());
+    }
+
+    @Test
+    public void miss() throws Exception {
+        XQDocCache cache = new XQDocCache(folder.newFolder("cache").toPath());
+        Map<String, String> uriMap = uriMap("fn", "urn:fn");
+        cache.store(XQDocCache.key(bytes(MODULE), uriMap), XML);
+
+        assertNull("source", cache.lookup(XQDocCache.key(bytes(MODULE + " "), uriMap)));
+        assertNull("namespace uri", cache.lookup(XQDocCache.key(bytes(MODULE), uriMap("fn", "urn:other"))));
+        assertNull("namespace prefix", cache.lookup(XQDocCache.key(bytes(MODULE), uriMap("fx", "urn:fn"))));
+        assertNull("more namespaces", cache.lookup(XQDocCache.key(bytes(MODULE), uriMap("fn", "urn:fn", "xs", "urn:xs"))));
+        assertNull("no namespaces", cache.lookup(XQDocCache.key(bytes(MODULE), Collections.emptyMap())));
+    }
+
+    @Test
+    public void mode() throws Exception {
+        XQDocCache cache = new XQDocCache(folder.newFolder("cache").toPath());
+        XQDocEngine engine = new XQDocEngine(new HashMap());
+        ByteBuffer source = ByteBuffer.wrap(bytes(MODULE));
+        cache.store(XQDocCache.key(source, engine.getUriMap(), engine.getMode()), XML);
+        assertEquals(XQDocCache.key(bytes(MODULE), engine.getUriMap()), XQDocCache.key(source, engine.getUriMap(), engine.getMode()));
+
+        engine.setSignaturesOnly(true);
+        String signatures = XQDocCache.key(source, engine.getUriMap(), engine.getMode());
+        assertNull(cache.lookup(signatures));
+        engine.setQuickIndex(true);
+        String quick = XQDocCache.key(source, engine.getUriMap(), engine.getMode());
+        assertNull(cache.lookup(quick));
+        assertNotEquals(signatures, quick);
+    }
+
+    @Test
+    public void incomplete() throws Exception {
+        XQDocCache cache = new XQDocCache(folder.newFolder("cache").toPath());
+        String key = XQDocCache.key(bytes(MODULE), uriMap("fn", "urn:fn"));
+        cache.store(key, XML);
+        Path entry = cache.lookup(key);
+
+        Files.write(entry, bytes(XML.substring(0, XML.indexOf("</xqdoc:xqdoc>") + 5)));
+        assertNull("cut short", cache.lookup(key));
+        Files.write(entry, new byte[0]);
+        assertNull("empty", cache.lookup(key));
+        Files.write(entry, bytes("</xqdoc:xqdoc"));
+        assertNull("shorter than the end tag", cache.lookup(key));
+
+        // A temporary file left by a store that did not finish is never found
+        Files.delete(entry);
+        Files.write(entry.resolveSibling(key + "123.tmp"), bytes(XML));
+        assertNull("temporary file", cache.lookup(key));
+
+        cache.store(key, XML);
+        assertEquals(entry, cache.lookup(key));
+    }
+
+    @Test
+    public void batch() throws Exception {
+        Path sources = folder.newFolder("src").toPath();
+        Path outputs = folder.newFolder("out").toPath();
+        Files.write(sources.resolve("a.xqm"), bytes(MODULE));
+        ByteArrayOutputStream reports = new ByteArrayOutputStream();
+        BatchProcessor batchProcessor = new BatchProcessor(new XQDocEngine(new HashMap()), outputs, 2);
+        batchProcessor.setErrorStream(new PrintStream(reports, true, "UTF-8"));
+        XQDocCache cache = new XQDocCache(folder.newFolder("cache").toPath());
+        batchProcessor.setCache(cache);
+
+        assertEquals(0, batchProcessor.process(BatchProcessor.findSources(sources, BatchProcessor.DEFAULT_GLOB), sources));
+        byte[] generated = Files.readAllBytes(outputs.resolve("a.xml"));
+        assertEquals(0, batchProcessor.process(BatchProcessor.findSources(sources, BatchProcessor.DEFAULT_GLOB), sources));
+        assertTrue(reports.toString("UTF-8"), reports.toString("UTF-8").contains("1 unchanged"));
+
+        // A corrupt entry is generated again rather than copied out
+        Path entry = cache.lookup(XQDocCache.key(Files.readAllBytes(sources.resolve("a.xqm")), new HashMap()));
+        Files.write(entry, bytes("<xqdoc:xqdoc"));
+        reports.reset();
+        assertEquals(0, batchProcessor.process(BatchProcessor.findSources(sources, BatchProcessor.DEFAULT_GLOB), sources));
+        assertTrue(reports.toString("UTF-8"), reports.toString("UTF-8").contains("0 unchanged"));
+        assertEquals(withoutDate(generated), withoutDate(Files.readAllBytes(outputs.resolve("a.xml"))));
+        assertNotNull(cache.lookup(XQDocCache.key(Files.readAllBytes(sources.resolve("a.xqm")), new HashMap())));
+    }
+
+    private static String withoutDate(byte[] xml) {
+        return new String(xml, StandardCharsets.UTF_8).replaceFirst("<xqdoc:date>[^<]*</xqdoc:date>", "");
+    }
+}
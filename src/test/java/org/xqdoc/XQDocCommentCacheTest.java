@@ -0,0 +1,108 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the comment cache gives a repeated comment the position of
+ * each occurrence while sharing its parts, that it never holds more than
+ * its ceiling, and that the xqDoc written from it is the xqDoc written
+ * without it.
+ */
+public class XQDocCommentCacheTest
+{
+    private static final String COMMENT = "(:~\n : Greet the caller.\n :\n : @author Ada Byron\n : @custom:audience internal\n :)";
+
+    private static String withoutDate(String xml) {
+        return xml.replaceFirst("<xqdoc:date>[^<]*</xqdoc:date>", "");
+    }
+
+    private static XQDocModel.Comment scan(String text, int start, int end) {
+        XQDocComment scanner = new XQDocComment();
+        scanner.setComment(text, start, end);
+        return scanner.getComment();
+    }
+
+    @Test
+    public void positions() {
+        XQDocCommentCache cache = new XQDocCommentCache();
+        int length = COMMENT.length();
+        XQDocModel.Comment first = cache.getComment(COMMENT, 10, 10 + length - 1, new XQDocComment());
+        XQDocModel.Comment second = cache.getComment(COMMENT, 200, 200 + length - 1, new XQDocComment());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getSize());
+
+        assertEquals(11, first.getStart());
+        assertEquals(10 + length, first.getEnd());
+        assertEquals(201, second.getStart());
+        assertEquals(200 + length, second.getEnd());
+
+        // Only the position differs between the occurrences
+        assertSame(first.getEntries(), second.getEntries());
+        assertNotNull(first.getEntriesXML());
+        assertSame(first.getEntriesXML(), second.getEntriesXML());
+        XQDocModel.Comment scanned = scan(COMMENT, 200, 200 + length - 1);
+        assertEquals(scanned.get("description"), second.get("description"));
+        assertEquals(scanned.get("author"), second.get("author"));
+        assertEquals(scanned.get("custom"), second.get("custom"));
+    }
+
+    @Test
+    public void eviction() {
+        XQDocCommentCache cache = new XQDocCommentCache(2);
+        for (int i = 0; i < 7; i++) {
+            String text = "(:~\n : Comment " + i + "\n :)";
+            XQDocModel.Comment comment = cache.getComment(text, 0, text.length() - 1, new XQDocComment());
+            assertEquals("Comment " + i, comment.get("description").get(0).trim());
+            assertTrue(cache.toString(), cache.getSize() <= 2);
+        }
+        assertTrue(cache.toString(), cache.getClearCount() > 0);
+        assertEquals(7, cache.getMissCount());
+
+        // A comment that outlived the last clear is still found
+        String last = "(:~\n : Comment 6\n :)";
+        cache.getComment(last, 50, 50 + last.length() - 1, new XQDocComment());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void repeatedInModule() throws Exception {
+        String module = "module namespace g = \"urn:g\";\n\n"
+                + COMMENT + "\ndeclare function g:hello() { \"hello\" };\n\n"
+                + COMMENT + "\ndeclare function g:goodbye() { \"goodbye\" };\n";
+        XQDocEngine cached = new XQDocEngine(new HashMap());
+        cached.setCommentCache(new XQDocCommentCache());
+        String control = withoutDate(new XQDocEngine(new HashMap()).process(CharStreams.fromString(module)));
+
+        assertEquals(control, withoutDate(cached.process(CharStreams.fromString(module))));
+        assertEquals(1, cached.getCommentCache().getMissCount());
+        assertEquals(1, cached.getCommentCache().getHitCount());
+        int first = module.indexOf(COMMENT) + 1;
+        int second = module.lastIndexOf(COMMENT) + 1;
+        assertTrue(control, control.contains("start=\"" + first + "\""));
+        assertTrue(control, control.contains("start=\"" + second + "\""));
+    }
+
+    @Test
+    public void fixtures() throws Exception {
+        // The second run takes every comment from the cache
+        for (String source : TestResources.xquerySources()) {
+            String path = TestResources.path(source);
+            String control = withoutDate(new XQDocEngine(new HashMap()).process(CharStreams.fromPath(Paths.get(path))));
+            XQDocEngine cached = new XQDocEngine(new HashMap());
+            cached.setCommentCache(new XQDocCommentCache());
+            assertEquals(control, withoutDate(cached.process(CharStreams.fromPath(Paths.get(path)))));
+            assertEquals(control, withoutDate(cached.process(CharStreams.fromPath(Paths.get(path)))));
+            assertEquals(cached.getCommentCache().getMissCount(), cached.getCommentCache().getSize());
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.io.StringWriter;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the xqDoc XML rendered from the documentation model is the
+ * XML that the engine writes while it visits the module, and that the JSON
+ * rendering holds the same sections.
+ */
+@RunWith(Parameterized.class)
+public class XQDocModelTest
+{
+    @Parameters(name = "{index}: model({0})")
+    public static Iterable<String> data() {
+        return TestResources.xquerySources();
+    }
+
+    private String input;
+
+    public XQDocModelTest(String input) {
+        this.input = input;
+    }
+
+    @Test
+    public void test() throws Exception {
+        String source = getClass().getClassLoader().getResource(input).getFile();
+        XQDocEngine engine = new XQDocEngine(new HashMap());
+        XQDocModel model = engine.buildModel(CharStreams.fromPath(Paths.get(source)), null);
+
+        StringWriter xml = new StringWriter();
+        new XQDocXMLSerializer().serialize(model, xml);
+        String control = engine.process(CharStreams.fromPath(Paths.get(source))).replaceFirst("<xqdoc:date>[^<]*</xqdoc:date>", "<xqdoc:date>" + model.getDate() + "</xqdoc:date>");
+        assertEquals(control, xml.toString());
+
+        StringWriter json = new StringWriter();
+        new XQDocJsonSerializer().serialize(model, json);
+        Map parsed = (Map) JsonUtility.parse(json.toString());
+        assertEquals(model.getFunctions().size(), ((List) parsed.get("functions")).size());
+        assertEquals(model.getVariables().size(), ((List) parsed.get("variables")).size());
+        assertEquals(model.getModule().getType(), ((Map) parsed.get("module")).get("type"));
+    }
+}
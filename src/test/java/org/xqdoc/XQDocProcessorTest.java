@@ -0,0 +1,118 @@
+package org.xqdoc;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that every way of handing a source to an {@link XQDocProcessor}
+ * gives the xqDoc of {@link XQDocProcessor#process(String)}, for the
+ * fixtures and for a module with characters outside of ASCII.
+ */
+public class XQDocProcessorTest
+{
+    // Accents, CJK ideographs and, outside of the xqDoc comments whose
+    // characters the grammar limits to the Basic Multilingual Plane, an emoji
+    private static final String NON_ASCII = "xquery version \"3.1\";\n\n"
+            + "(:~\n : Grüße aus Köln und 日本.\n :\n : @author Jürgen\n :)\n"
+            + "module namespace grüß = \"http://example.com/grüß\";\n\n"
+            + "(: 😀 :)\n"
+            + "(:~ Die Begrüßung :)\n"
+            + "declare variable $grüß:text := \"Grüße 😀 日本\";\n\n"
+            + "(:~\n : Grüße jemanden.\n :\n : @param $name Der Name\n :)\n"
+            + "declare %grüß:ort(\"Köln\") function grüß:hallo($name as xs:string) as xs:string {\n"
+            + "    <p>{ $grüß:text || \", \" || $name }😀</p>\n"
+            + "};\n";
+
+    private static String withoutDate(String xml) {
+        return xml.replaceFirst("<xqdoc:date>[^<]*</xqdoc:date>", "");
+    }
+
+    /**
+     * @param bytes The content of the buffer
+     * @param offset The number of bytes in front of the content
+     * @return A buffer whose content starts at a position past other bytes
+     */
+    private static ByteBuffer positioned(byte[] bytes, int offset) {
+        ByteBuffer buffer = ByteBuffer.allocate(offset + bytes.length + 3);
+        for (int i = 0; i < offset; i++) {
+            buffer.put((byte) '(');
+        }
+        buffer.put(bytes);
+        buffer.put(new byte[] { ':', ')', ';' });
+        buffer.position(offset);
+        buffer.limit(offset + bytes.length);
+        return buffer;
+    }
+
+    @Test
+    public void fixtures() throws Exception {
+        for (String source : TestResources.xquerySources()) {
+            assertSameXQDoc(new String(Files.readAllBytes(Paths.get(TestResources.path(source))), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void nonAscii() throws Exception {
+        String control = assertSameXQDoc(NON_ASCII);
+        assertTrue(control, control.contains("<xqdoc:name>hallo</xqdoc:name>"));
+        assertTrue(control, control.contains("Grüße aus Köln und 日本."));
+        assertTrue(control, control.contains("😀</p>"));
+    }
+
+    /**
+     * Check that every overload gives the xqDoc of a source as a String.
+     *
+     * @param source The XQuery source
+     * @return The xqDoc of the source as a String, without its date
+     */
+    private static String assertSameXQDoc(String source) throws Exception {
+        XQDocProcessor processor = new MarkLogicProcessor();
+        String control = withoutDate(processor.process(source));
+        byte[] utf8 = source.getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(control, withoutDate(processor.process(new ByteArrayInputStream(utf8))));
+        assertEquals(control, withoutDate(processor.process(new StringReader(source))));
+        assertEquals(control, withoutDate(processor.process(ByteBuffer.wrap(utf8), StandardCharsets.UTF_8)));
+
+        ByteBuffer buffer = positioned(utf8, 17);
+        assertEquals(control, withoutDate(processor.process(buffer, StandardCharsets.UTF_8)));
+        assertEquals("The buffer is not modified", 17, buffer.position());
+        assertEquals(control, withoutDate(processor.process(buffer.slice(), StandardCharsets.UTF_8)));
+
+        Charset utf16 = StandardCharsets.UTF_16LE;
+        assertEquals(control, withoutDate(processor.process(positioned(source.getBytes(utf16), 6), utf16)));
+
+        StringWriter output = new StringWriter();
+        processor.process(source, output);
+        assertEquals(control, withoutDate(output.toString()));
+
+        output = new StringWriter();
+        processor.process(new ByteArrayInputStream(utf8), StandardCharsets.UTF_8, output);
+        assertEquals(control, withoutDate(output.toString()));
+
+        output = new StringWriter();
+        processor.process(new StringReader(source), output);
+        assertEquals(control, withoutDate(output.toString()));
+
+        output = new StringWriter();
+        processor.process(positioned(utf8, 5), StandardCharsets.UTF_8, output);
+        assertEquals(control, withoutDate(output.toString()));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        processor.process(new ByteArrayInputStream(utf8), out);
+        assertEquals(control, withoutDate(new String(out.toByteArray(), StandardCharsets.UTF_8)));
+        return control;
+    }
+}
@@ -0,0 +1,73 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the quick index of a module, built from the lexer tokens
+ * alone, has the module URI, the imports, the variable and function names
+ * and the comments that the full parse finds.
+ */
+@RunWith(Parameterized.class)
+public class XQDocScannerTest
+{
+    @Parameters(name = "{index}: quickIndex({0})")
+    public static Iterable<String> data() {
+        return TestResources.xquerySources();
+    }
+
+    private String input;
+
+    public XQDocScannerTest(String input) {
+        this.input = input;
+    }
+
+    @Test
+    public void test() throws Exception {
+        String source = TestResources.path(input);
+        XQDocEngine full = new XQDocEngine(new HashMap());
+        XQDocEngine quick = new XQDocEngine(new HashMap());
+        quick.setQuickIndex(true);
+        Document control = DocumentUtility.getDocumentFromBuffer(full.generate(CharStreams.fromPath(Paths.get(source)), null));
+        Document test = DocumentUtility.getDocumentFromBuffer(quick.generate(CharStreams.fromPath(Paths.get(source)), null));
+
+        assertEquals(children(control, "xqdoc:module", "xqdoc:uri"), children(test, "xqdoc:module", "xqdoc:uri"));
+        assertEquals(children(control, "xqdoc:import", "xqdoc:uri"), children(test, "xqdoc:import", "xqdoc:uri"));
+        assertEquals(children(control, "xqdoc:variable", "xqdoc:name"), children(test, "xqdoc:variable", "xqdoc:name"));
+        assertEquals(children(control, "xqdoc:function", "xqdoc:name"), children(test, "xqdoc:function", "xqdoc:name"));
+        assertEquals(children(control, "xqdoc:comment", "xqdoc:description"), children(test, "xqdoc:comment", "xqdoc:description"));
+    }
+
+    /**
+     * @param document The xqDoc XML
+     * @param parent The name of the parent elements
+     * @param child The name of the child elements
+     * @return The text of every child element of a parent element, in document order
+     */
+    private static List<String> children(Document document, String parent, String child) {
+        List<String> texts = new ArrayList<>();
+        NodeList parents = document.getElementsByTagName(parent);
+        for (int i = 0; i < parents.getLength(); i++) {
+            for (Node node = parents.item(i).getFirstChild(); node != null; node = node.getNextSibling()) {
+                if (node instanceof Element && child.equals(node.getNodeName())) {
+                    texts.add(node.getTextContent());
+                }
+            }
+        }
+        return texts;
+    }
+}
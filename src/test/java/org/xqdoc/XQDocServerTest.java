@@ -0,0 +1,143 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the server listens on a free port, answers a valid module with
+ * its xqDoc, a module with syntax errors with status 422 and other methods
+ * than POST with status 405.
+ */
+public class XQDocServerTest
+{
+    private static final String BROKEN = "module namespace x = \"urn:x\";\n"
+            + "declare function x:f( { 1 };\n";
+
+    private XQDocEngine engine;
+    private XQDocServer server;
+
+    @Before
+    public void start() throws IOException {
+        engine = new XQDocEngine(new HashMap());
+        server = new XQDocServer(engine, 0, 2);
+        server.start();
+    }
+
+    @After
+    public void stop() {
+        server.stop();
+    }
+
+    private static String withoutDate(String xml) {
+        return xml.replaceFirst("<xqdoc:date>[^<]*</xqdoc:date>", "");
+    }
+
+    /**
+     * A response of the server.
+     */
+    private static class Response {
+        private final int status;
+        private final String contentType;
+        private final String body;
+
+        Response(HttpURLConnection connection) throws IOException {
+            status = connection.getResponseCode();
+            contentType = connection.getContentType();
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            in.close();
+            body = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private HttpURLConnection connect() throws IOException {
+        URL url = new URL("http://127.0.0.1:" + server.getPort() + XQDocServer.CONTEXT_PATH);
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    private Response post(byte[] source, String contentType) throws IOException {
+        HttpURLConnection connection = connect();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        if (contentType != null) {
+            connection.setRequestProperty("Content-Type", contentType);
+        }
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(source);
+        }
+        return new Response(connection);
+    }
+
+    @Test
+    public void port() {
+        assertTrue(String.valueOf(server.getPort()), server.getPort() > 0);
+    }
+
+    @Test
+    public void fixtures() throws Exception {
+        for (String source : TestResources.xquerySources()) {
+            byte[] bytes = Files.readAllBytes(Paths.get(TestResources.path(source)));
+            Response response = post(bytes, "application/xquery");
+            assertEquals(source + ": " + response.body, 200, response.status);
+            assertEquals("application/xml; charset=UTF-8", response.contentType);
+            String control = engine.process(CharStreams.fromPath(Paths.get(TestResources.path(source))));
+            assertEquals(source, withoutDate(control), withoutDate(response.body));
+        }
+    }
+
+    @Test
+    public void charset() throws Exception {
+        String module = "(:~ Grüße :)\nmodule namespace g = \"urn:g\";\ndeclare function g:f() { \"Köln\" };\n";
+        Response response = post(module.getBytes(StandardCharsets.ISO_8859_1), "application/xquery; charset=\"ISO-8859-1\"");
+        assertEquals(response.body, 200, response.status);
+        assertTrue(response.body, response.body.contains("Grüße"));
+        assertTrue(response.body, response.body.contains("\"Köln\""));
+
+        // Without a charset the source is UTF-8
+        response = post(module.getBytes(StandardCharsets.UTF_8), null);
+        assertTrue(response.body, response.body.contains("Grüße"));
+    }
+
+    @Test
+    public void syntaxError() throws Exception {
+        Response response = post(BROKEN.getBytes(StandardCharsets.UTF_8), "application/xquery");
+        assertEquals(422, response.status);
+        assertEquals("text/plain; charset=UTF-8", response.contentType);
+        assertTrue(response.body, response.body.startsWith("2:"));
+        assertTrue(response.body, response.body.endsWith("\n"));
+
+        // A failed request does not stop the next one
+        response = post("module namespace y = \"urn:y\";\n".getBytes(StandardCharsets.UTF_8), "application/xquery");
+        assertEquals(200, response.status);
+        assertTrue(response.body, response.body.contains("<xqdoc:uri>urn:y</xqdoc:uri>"));
+    }
+
+    @Test
+    public void method() throws Exception {
+        HttpURLConnection connection = connect();
+        Response response = new Response(connection);
+        assertEquals(405, response.status);
+        assertEquals("POST", connection.getHeaderField("Allow"));
+    }
+}
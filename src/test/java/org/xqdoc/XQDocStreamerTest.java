@@ -0,0 +1,76 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xmlunit.builder.DiffBuilder;
+import org.xmlunit.builder.Input;
+import org.xmlunit.diff.Diff;
+import org.xmlunit.util.Nodes;
+import org.xmlunit.util.Predicate;
+
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks that streaming a module gives the xqDoc of a full parse, apart
+ * from the body, invoked functions and referenced variables of the module
+ * section, which the streaming mode does not write.
+ */
+@RunWith(Parameterized.class)
+public class XQDocStreamerTest
+{
+    @Parameters(name = "{index}: stream({0})")
+    public static Iterable<String> data() {
+        return TestResources.xquerySources();
+    }
+
+    private String input;
+
+    public XQDocStreamerTest(String input) {
+        this.input = input;
+    }
+
+    @Test
+    public void test() throws Exception {
+        String source = TestResources.path(input);
+        XQDocEngine engine = new XQDocEngine(new HashMap());
+        String control = engine.generate(CharStreams.fromPath(Paths.get(source)), null).toString();
+        StringWriter test = new StringWriter();
+        try (Reader reader = Files.newBufferedReader(Paths.get(source), StandardCharsets.UTF_8)) {
+            engine.stream(reader, source, test, null);
+        }
+
+        Diff myDiff = DiffBuilder.compare(Input.fromString(control)).withTest(Input.fromString(test.toString()))
+                .withNodeFilter(new Predicate<Node>() {
+                    @Override
+                    public boolean test(Node n) {
+                        if (!(n instanceof Element)) {
+                            return true;
+                        }
+                        String name = Nodes.getQName(n).getLocalPart();
+                        if ("date".equals(name)) {
+                            return false;
+                        }
+                        Node parent = n.getParentNode();
+                        boolean inModule = parent instanceof Element && "module".equals(Nodes.getQName(parent).getLocalPart());
+                        return !(inModule && Arrays.asList("body", "invoked", "ref-variable").contains(name));
+                    }
+                })
+                .checkForSimilar()
+                .ignoreWhitespace()
+                .build();
+        assertFalse("XML similar " + myDiff.toString(), myDiff.hasDifferences());
+    }
+}
@@ -0,0 +1,96 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.Test;
+
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the xqDoc of the fixtures is valid against the bundled
+ * schema, and that invalid or broken xqDoc is reported by line and column.
+ */
+public class XQDocValidatorTest
+{
+    private static final String INVALID = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<xqdoc:xqdoc xmlns:xqdoc=\"http://www.xqdoc.org/1.0\">\n"
+            + "<xqdoc:control><xqdoc:date>2019-05-13</xqdoc:date><xqdoc:version>9.9</xqdoc:version></xqdoc:control>\n"
+            + "<xqdoc:module type=\"library\"><xqdoc:uri>urn:a</xqdoc:uri></xqdoc:module>\n"
+            + "<xqdoc:functions><xqdoc:function><xqdoc:name>f</xqdoc:name>\n"
+            + "<xqdoc:annotations><xqdoc:annotation name=\"a:b\"><xqdoc:literal>1</xqdoc:literal></xqdoc:annotation></xqdoc:annotations>\n"
+            + "<xqdoc:signature>declare function f()</xqdoc:signature></xqdoc:function></xqdoc:functions>\n"
+            + "</xqdoc:xqdoc>\n";
+
+    /**
+     * Check that the xqDoc of every fixture is valid.
+     *
+     * @param engine The engine that writes the xqDoc
+     */
+    private static void assertValid(XQDocEngine engine) throws Exception {
+        XQDocValidator validator = new XQDocValidator();
+        for (String source : TestResources.xquerySources()) {
+            String xml = engine.process(CharStreams.fromPath(Paths.get(TestResources.path(source))));
+            assertEquals(source, Collections.<String>emptyList(), validator.validate(xml));
+        }
+    }
+
+    @Test
+    public void fixtures() throws Exception {
+        assertValid(new XQDocEngine(new HashMap()));
+    }
+
+    @Test
+    public void quickIndex() throws Exception {
+        XQDocEngine engine = new XQDocEngine(new HashMap());
+        engine.setQuickIndex(true);
+        assertValid(engine);
+    }
+
+    @Test
+    public void signaturesOnly() throws Exception {
+        XQDocEngine engine = new XQDocEngine(new HashMap());
+        engine.setSignaturesOnly(true);
+        assertValid(engine);
+    }
+
+    @Test
+    public void stream() throws Exception {
+        XQDocValidator validator = new XQDocValidator();
+        XQDocEngine engine = new XQDocEngine(new HashMap());
+        for (String source : TestResources.xquerySources()) {
+            StringWriter xml = new StringWriter();
+            try (Reader reader = Files.newBufferedReader(Paths.get(TestResources.path(source)), StandardCharsets.UTF_8)) {
+                engine.stream(reader, source, xml, null);
+            }
+            assertEquals(source, Collections.<String>emptyList(), validator.validate(xml.toString()));
+        }
+    }
+
+    @Test
+    public void invalid() throws Exception {
+        List<String> problems = new XQDocValidator().validate(INVALID);
+        // The version is not one of the xqDoc versions, and a literal has no type
+        assertTrue(problems.toString(), problems.get(0).matches("3:\\d+: .*'9\\.9'.*"));
+        assertTrue(problems.toString(), problems.get(problems.size() - 1).matches("6:\\d+: .*'type'.*'xqdoc:literal'.*"));
+        for (String problem : problems) {
+            assertTrue(problem, problem.matches("[36]:\\d+: .*"));
+        }
+    }
+
+    @Test
+    public void notWellFormed() throws Exception {
+        String broken = INVALID.substring(0, INVALID.indexOf("</xqdoc:functions>"));
+        List<String> problems = new XQDocValidator().validate(broken);
+        assertTrue(problems.toString(), problems.size() >= 1);
+        assertTrue(problems.toString(), problems.get(problems.size() - 1).matches("\\d+:\\d+: .*"));
+    }
+}
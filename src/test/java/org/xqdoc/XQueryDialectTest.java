@@ -0,0 +1,172 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the dialects are found by name, that dialects are loaded from
+ * properties, that added prefixes take the place of those underneath them
+ * without changing the dialect they are added to, and that the namespaces of
+ * a dialect cannot be modified.
+ */
+public class XQueryDialectTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void forName() {
+        assertSame(XQueryDialect.MARKLOGIC, XQueryDialect.forName("marklogic"));
+        assertSame(XQueryDialect.MARKLOGIC, XQueryDialect.forName("MarkLogic"));
+        assertSame(XQueryDialect.EXISTDB, XQueryDialect.forName("existdb"));
+        assertSame(XQueryDialect.EXISTDB, XQueryDialect.forName("eXist-db"));
+        assertSame(XQueryDialect.W3C, XQueryDialect.forName("W3C"));
+        assertNull(XQueryDialect.forName("saxon"));
+        assertNull(XQueryDialect.forName(""));
+
+        // The names do not depend on the case rules of the default locale
+        Locale locale = Locale.getDefault();
+        try {
+            Locale.setDefault(new Locale("tr", "TR"));
+            assertSame(XQueryDialect.EXISTDB, XQueryDialect.forName("EXISTDB"));
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    @Test
+    public void builtIn() {
+        assertEquals("marklogic", XQueryDialect.MARKLOGIC.getName());
+        assertEquals("existdb", XQueryDialect.EXISTDB.toString());
+        assertEquals("http://marklogic.com/xdmp", XQueryDialect.MARKLOGIC.getNamespaces().get("xdmp"));
+        assertEquals("http://www.w3.org/2003/05/xpath-functions", XQueryDialect.MARKLOGIC.getNamespaces().get("fn"));
+        assertEquals("http://www.w3.org/2005/xpath-functions", XQueryDialect.W3C.getNamespaces().get("fn"));
+        assertEquals("http://exist-db.org/xquery/lucene", XQueryDialect.EXISTDB.getNamespaces().get("lucene"));
+        assertFalse(XQueryDialect.W3C.getNamespaces().containsKey("xdmp"));
+    }
+
+    @Test
+    public void load() throws Exception {
+        String properties = "# The modules of a test processor\n"
+                + "t=urn:test\n"
+                + "x\\:y = urn:escaped\n"
+                + "u=urn:café\n";
+        XQueryDialect dialect = XQueryDialect.load("test", new StringReader(properties));
+        assertEquals("test", dialect.getName());
+        Map<String, String> expected = new HashMap<>();
+        expected.put("t", "urn:test");
+        expected.put("x:y", "urn:escaped");
+        expected.put("u", "urn:café");
+        assertEquals(expected, dialect.getNamespaces());
+
+        // Files are read as UTF-8, rather than the ISO-8859-1 of Properties.load(InputStream)
+        Path file = folder.newFile("test.properties").toPath();
+        Files.write(file, properties.getBytes(StandardCharsets.UTF_8));
+        assertEquals(expected, XQueryDialect.load("file", file).getNamespaces());
+    }
+
+    @Test
+    public void with() {
+        XQueryDialect base = XQueryDialect.W3C;
+        Map<String, String> before = new TreeMap<>(base.getNamespaces());
+        Map<String, String> prefixes = new HashMap<>();
+        prefixes.put("fn", "urn:my-fn");
+        prefixes.put("app", "urn:app");
+        XQueryDialect layered = base.with(prefixes);
+        assertEquals("w3c", layered.getName());
+
+        // The added prefixes take the place of those of the dialect
+        Map<String, String> namespaces = layered.getNamespaces();
+        assertEquals("urn:my-fn", namespaces.get("fn"));
+        assertEquals("urn:app", namespaces.get("app"));
+        assertEquals(base.getNamespaces().get("map"), namespaces.get("map"));
+        assertTrue(namespaces.containsKey("app"));
+        assertTrue(namespaces.containsKey("math"));
+        assertFalse(namespaces.containsKey("xdmp"));
+        assertNull(namespaces.get("xdmp"));
+        Map<String, String> expected = new TreeMap<>(before);
+        expected.putAll(prefixes);
+        assertEquals(expected, new TreeMap<>(namespaces));
+        assertEquals(expected.size(), namespaces.size());
+
+        // Neither the dialect underneath nor the map of the prefixes is changed or kept
+        assertEquals(before, new TreeMap<>(base.getNamespaces()));
+        prefixes.put("app", "urn:changed");
+        assertEquals("urn:app", namespaces.get("app"));
+
+        // The last layer wins
+        XQueryDialect top = layered.with("app", "urn:top").with("fn", "urn:top-fn");
+        assertEquals("urn:top", top.getNamespaces().get("app"));
+        assertEquals("urn:top-fn", top.getNamespaces().get("fn"));
+        assertEquals("urn:app", layered.getNamespaces().get("app"));
+
+        assertSame(base, base.with(Collections.<String, String>emptyMap()));
+    }
+
+    @Test
+    public void unmodifiable() throws Exception {
+        XQueryDialect loaded = XQueryDialect.load("test", new StringReader("t=urn:test\n"));
+        for (XQueryDialect dialect : Arrays.asList(XQueryDialect.MARKLOGIC, XQueryDialect.W3C.with("app", "urn:app"), loaded)) {
+            Map<String, String> namespaces = dialect.getNamespaces();
+            int size = namespaces.size();
+            try {
+                namespaces.put("new", "urn:new");
+                fail(dialect + ": put");
+            } catch (UnsupportedOperationException ex) {
+                // expected
+            }
+            try {
+                namespaces.remove(namespaces.keySet().iterator().next());
+                fail(dialect + ": remove");
+            } catch (UnsupportedOperationException ex) {
+                // expected
+            }
+            try {
+                namespaces.clear();
+                fail(dialect + ": clear");
+            } catch (UnsupportedOperationException ex) {
+                // expected
+            }
+            try {
+                Iterator<Map.Entry<String, String>> entries = namespaces.entrySet().iterator();
+                entries.next().setValue("urn:changed");
+                fail(dialect + ": setValue");
+            } catch (UnsupportedOperationException ex) {
+                // expected
+            }
+            assertEquals(size, namespaces.size());
+            assertFalse(namespaces.containsKey("new"));
+        }
+    }
+
+    @Test
+    public void engine() throws Exception {
+        // A prefix of the dialect is known to the engine without an import
+        String module = "module namespace a = \"urn:a\";\n"
+                + "declare function a:f() { app:g() };\n";
+        XQDocEngine engine = new XQDocEngine(XQueryDialect.W3C.with("app", "urn:app").getNamespaces());
+        String xml = engine.process(CharStreams.fromString(module));
+        assertTrue(xml, xml.contains("<xqdoc:uri>urn:app</xqdoc:uri>"));
+    }
+}
@@ -0,0 +1,59 @@
+package org.xqdoc;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that profiling the fixtures reports decisions of real grammar
+ * rules, one entry per module, and JSON that parses.
+ */
+public class XQueryProfilerTest
+{
+    @Test
+    public void test() throws Exception {
+        XQueryProfiler profiler = new XQueryProfiler();
+        List<String> names = new ArrayList<>();
+        for (String source : TestResources.xquerySources()) {
+            String path = TestResources.path(source);
+            profiler.profile(CharStreams.fromPath(Paths.get(path)));
+            names.add(path);
+        }
+
+        Map report = (Map) JsonUtility.parse(profiler.toJson());
+        assertEquals(XQDocCache.TOOL_VERSION, report.get("version"));
+
+        List decisions = (List) report.get("decisions");
+        assertFalse(decisions.isEmpty());
+        List<String> rules = Arrays.asList(XQueryParser.ruleNames);
+        long invocations = 0;
+        for (Object decision : decisions) {
+            Map stats = (Map) decision;
+            assertTrue(stats.get("rule") + " is not a rule of the grammar", rules.contains(stats.get("rule")));
+            invocations += ((Number) stats.get("invocations")).longValue();
+        }
+        assertTrue(invocations > 0);
+
+        List<String> modules = new ArrayList<>();
+        for (Object module : (List) report.get("modules")) {
+            modules.add((String) ((Map) module).get("module"));
+        }
+        assertEquals(names, modules);
+
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        profiler.writeReport(new PrintStream(text, true, "UTF-8"), 5);
+        String written = text.toString("UTF-8");
+        assertTrue(written, written.contains(names.get(0)));
+    }
+}